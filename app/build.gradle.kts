@@ -57,6 +57,9 @@ dependencies {
 
     // Testing
     testImplementation(libs.junit)
+    // Real org.json and a main-thread executor for LiveData in local unit tests
+    testImplementation("org.json:json:20231013")
+    testImplementation("androidx.arch.core:core-testing:2.2.0")
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
 }
\ No newline at end of file
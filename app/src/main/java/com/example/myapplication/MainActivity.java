@@ -61,13 +61,7 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
         binding.networkStatusText.setTextColor(getResources().getColor(
                 android.R.color.holo_green_dark, getTheme()));
 
-        // Load courses
-        loadCourses();
-    }
-
-    @Override
-    protected void onResume() {
-        super.onResume();
+        // Observe courses; the shared live query keeps the list current while visible
         loadCourses();
     }
 
@@ -88,6 +82,9 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
         } else if (id == R.id.action_reset) {
             showResetConfirmationDialog();
             return true;
+        } else if (id == R.id.action_migrate) {
+            runDataMigrations();
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -96,7 +93,7 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
     private void loadCourses() {
         binding.progressBar.setVisibility(View.VISIBLE);
         
-        firebaseService.getAllCourses().observe(this, courses -> {
+        firebaseService.observeCourses().observe(this, courses -> {
             binding.progressBar.setVisibility(View.GONE);
             
             if (courses != null && !courses.isEmpty()) {
@@ -121,7 +118,6 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
             
             if (success) {
                 Toast.makeText(this, "Data synchronized successfully", Toast.LENGTH_SHORT).show();
-                loadCourses(); // Reload courses after sync
             } else {
                 Toast.makeText(this, "Failed to synchronize data", Toast.LENGTH_SHORT).show();
             }
@@ -145,13 +141,26 @@ public class MainActivity extends AppCompatActivity implements CourseAdapter.Cou
             
             if (success) {
                 Toast.makeText(this, "All data has been reset", Toast.LENGTH_SHORT).show();
-                loadCourses();
             } else {
                 Toast.makeText(this, "Failed to reset data", Toast.LENGTH_SHORT).show();
             }
         });
     }
 
+    private void runDataMigrations() {
+        binding.progressBar.setVisibility(View.VISIBLE);
+        
+        firebaseService.runDataMigrations().observe(this, success -> {
+            binding.progressBar.setVisibility(View.GONE);
+            
+            if (success) {
+                Toast.makeText(this, "Data migrations completed", Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(this, "Data migrations failed; run them again to resume", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     @Override
     public void onCourseClick(Course course) {
         Intent intent = new Intent(this, CourseDetailActivity.class);
@@ -3,7 +3,11 @@ package com.example.myapplication;
 import android.app.Application;
 import android.util.Log;
 
+import com.example.myapplication.firebase.DataMigrations;
 import com.example.myapplication.firebase.FirebaseInitializer;
+import com.example.myapplication.firebase.FirebaseService;
+import com.example.myapplication.firebase.LocalReadModel;
+import com.example.myapplication.sync.MutationOutbox;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
 import com.google.firebase.firestore.FirebaseFirestore;
@@ -21,6 +25,20 @@ public class MyApplication extends Application {
         
         // Initialize Firebase
         initializeFirebase();
+        
+        // Local read model for searches; FirebaseService keeps it in sync once created
+        LocalReadModel.initialize(this);
+        MutationOutbox.initialize(this);
+        // Flags of data migrations run by an administrator; legacy fallbacks apply until set
+        DataMigrations.initialize(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Let the data layer release its in-memory caches
+        FirebaseService.trimMemory(level);
     }
     
     /**
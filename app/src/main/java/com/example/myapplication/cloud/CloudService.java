@@ -7,15 +7,19 @@ import androidx.annotation.NonNull;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
+import com.example.myapplication.firebase.DataMigrations;
+import com.example.myapplication.firebase.SeatCounter;
 import com.example.myapplication.model.ClassInstance;
 import com.example.myapplication.model.Course;
 import com.example.myapplication.model.Enrollment;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
 import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 import com.google.firebase.firestore.QuerySnapshot;
 import com.google.firebase.firestore.SetOptions;
@@ -44,9 +48,11 @@ public class CloudService {
     // Singleton instance
     private static CloudService instance;
     private final FirebaseFirestore db;
+    private final SeatCounter seatCounter;
     
     private CloudService() {
         db = FirebaseFirestore.getInstance();
+        seatCounter = new SeatCounter(db);
     }
     
     /**
@@ -111,104 +117,63 @@ public class CloudService {
      * @return LiveData with success/failure result
      */
     public LiveData<Boolean> enrollInClass(String userId, String classInstanceId) {
+        // The seat counter checks cancellation and capacity in the same transaction
+        // that writes the enrollment, so concurrent bookings cannot overbook
+        Enrollment enrollment = new Enrollment(userId, classInstanceId);
+        DocumentReference enrollmentRef = db.collection(ENROLLMENTS_COLLECTION)
+                .document(Enrollment.documentId(userId, classInstanceId));
+        return seatCounter.enrollLiveData(enrollmentRef, enrollment);
+    }
+    
+    /**
+     * Cancel enrollment in a class instance
+     * @param userId User ID
+     * @param classInstanceId Class instance ID
+     * @return LiveData with success/failure result
+     */
+    public LiveData<Boolean> cancelEnrollment(String userId, String classInstanceId) {
         MutableLiveData<Boolean> result = new MutableLiveData<>();
         
-        // First get the class instance to check if it's not cancelled
-        db.collection(CLASS_INSTANCES_COLLECTION)
-                .document(classInstanceId)
-                .get()
-                .addOnCompleteListener(task -> {
-                    if (task.isSuccessful() && task.getResult() != null) {
-                        ClassInstance classInstance = task.getResult().toObject(ClassInstance.class);
-                        
-                        if (classInstance != null && !classInstance.isCancelled()) {
-                            // Get the course to check capacity
-                            db.collection(COURSES_COLLECTION)
-                                    .document(classInstance.getCourseId())
-                                    .get()
-                                    .addOnCompleteListener(courseTask -> {
-                                        if (courseTask.isSuccessful() && courseTask.getResult() != null) {
-                                            Course course = courseTask.getResult().toObject(Course.class);
-                                            
-                                            if (course != null) {
-                                                // Check current enrollment count
-                                                db.collection(ENROLLMENTS_COLLECTION)
-                                                        .whereEqualTo("classInstanceId", classInstanceId)
-                                                        .get()
-                                                        .addOnCompleteListener(enrollmentsTask -> {
-                                                            if (enrollmentsTask.isSuccessful()) {
-                                                                int enrollmentCount = enrollmentsTask.getResult().size();
-                                                                
-                                                                if (enrollmentCount < course.getCapacity()) {
-                                                                    // Create enrollment
-                                                                    Enrollment enrollment = new Enrollment(userId, classInstanceId);
-                                                                    
-                                                                    db.collection(ENROLLMENTS_COLLECTION)
-                                                                            .add(enrollment)
-                                                                            .addOnSuccessListener(documentReference -> {
-                                                                                Log.d(TAG, "Enrollment added with ID: " + documentReference.getId());
-                                                                                result.setValue(true);
-                                                                            })
-                                                                            .addOnFailureListener(e -> {
-                                                                                Log.e(TAG, "Error adding enrollment", e);
-                                                                                result.setValue(false);
-                                                                            });
-                                                                } else {
-                                                                    Log.d(TAG, "Class is full");
-                                                                    result.setValue(false);
-                                                                }
-                                                            } else {
-                                                                Log.e(TAG, "Error checking enrollments", enrollmentsTask.getException());
-                                                                result.setValue(false);
-                                                            }
-                                                        });
-                                            } else {
-                                                Log.e(TAG, "Course not found");
-                                                result.setValue(false);
-                                            }
-                                        } else {
-                                            Log.e(TAG, "Error getting course", courseTask.getException());
-                                            result.setValue(false);
-                                        }
-                                    });
-                        } else {
-                            Log.d(TAG, "Class is cancelled or not found");
-                            result.setValue(false);
-                        }
+        // Delete the enrollment by its deterministic ID and release its seat
+        DocumentReference enrollmentRef = db.collection(ENROLLMENTS_COLLECTION)
+                .document(Enrollment.documentId(userId, classInstanceId));
+        seatCounter.cancel(enrollmentRef)
+                .addOnSuccessListener(deleted -> {
+                    if (deleted) {
+                        Log.d(TAG, "Enrollment successfully deleted");
+                        result.setValue(true);
+                    } else if (!DataMigrations.isComplete(DataMigrations.ENROLLMENT_IDS)) {
+                        cancelLegacyEnrollment(userId, classInstanceId, result);
                     } else {
-                        Log.e(TAG, "Error getting class instance", task.getException());
+                        Log.d(TAG, "No matching enrollment found");
                         result.setValue(false);
                     }
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error deleting enrollment", e);
+                    result.setValue(false);
                 });
         
         return result;
     }
     
     /**
-     * Cancel enrollment in a class instance
-     * @param userId User ID
-     * @param classInstanceId Class instance ID
-     * @return LiveData with success/failure result
+     * Cancel an enrollment created before enrollment IDs were derived from user and class,
+     * until the migration that moves them has completed
      */
-    public LiveData<Boolean> cancelEnrollment(String userId, String classInstanceId) {
-        MutableLiveData<Boolean> result = new MutableLiveData<>();
-        
+    private void cancelLegacyEnrollment(String userId, String classInstanceId, MutableLiveData<Boolean> result) {
         db.collection(ENROLLMENTS_COLLECTION)
                 .whereEqualTo("userId", userId)
                 .whereEqualTo("classInstanceId", classInstanceId)
+                .limit(1)
                 .get()
                 .addOnCompleteListener(task -> {
                     if (task.isSuccessful() && !task.getResult().isEmpty()) {
-                        // Get the first matching enrollment
                         DocumentSnapshot enrollmentDoc = task.getResult().getDocuments().get(0);
-                        
-                        // Delete the enrollment
-                        db.collection(ENROLLMENTS_COLLECTION)
-                                .document(enrollmentDoc.getId())
-                                .delete()
-                                .addOnSuccessListener(aVoid -> {
+                        seatCounter.cancel(enrollmentDoc.getReference())
+                                .addOnSuccessListener(deleted -> {
                                     Log.d(TAG, "Enrollment successfully deleted");
-                                    result.setValue(true);
+                                    result.setValue(deleted);
                                 })
                                 .addOnFailureListener(e -> {
                                     Log.e(TAG, "Error deleting enrollment", e);
@@ -219,8 +184,6 @@ public class CloudService {
                         result.setValue(false);
                     }
                 });
-        
-        return result;
     }
     
     /**
@@ -253,20 +216,37 @@ public class CloudService {
     /**
      * Get upcoming class instances for a course
      * @param courseId Course ID
-     * @return LiveData with list of class instances
+     * @return LiveData with list of class instances ordered by date
      */
     public LiveData<List<ClassInstance>> getUpcomingClassInstances(String courseId) {
+        return getUpcomingClassInstances(courseId, 0);
+    }
+    
+    /**
+     * Get the next class instances for a course
+     * @param courseId Course ID
+     * @param limit Maximum number of class instances, or 0 for no limit
+     * @return LiveData with list of class instances ordered by date
+     */
+    public LiveData<List<ClassInstance>> getUpcomingClassInstances(String courseId, int limit) {
         MutableLiveData<List<ClassInstance>> classInstancesLiveData = new MutableLiveData<>();
         
-        db.collection(CLASS_INSTANCES_COLLECTION)
+        Query query = db.collection(CLASS_INSTANCES_COLLECTION)
                 .whereEqualTo("courseId", courseId)
                 .whereGreaterThanOrEqualTo("date", new java.util.Date())
-                .get()
+                .orderBy("date");
+        if (limit > 0) {
+            query = query.limit(limit);
+        }
+        query.get()
                 .addOnCompleteListener(task -> {
                     if (task.isSuccessful()) {
                         List<ClassInstance> classInstances = new ArrayList<>();
                         for (QueryDocumentSnapshot document : task.getResult()) {
                             ClassInstance classInstance = document.toObject(ClassInstance.class);
+                            if (classInstance != null) {
+                                classInstance.markClean();
+                            }
                             classInstances.add(classInstance);
                         }
                         classInstancesLiveData.setValue(classInstances);
@@ -324,6 +304,9 @@ public class CloudService {
                 .addOnCompleteListener(task -> {
                     if (task.isSuccessful() && task.getResult() != null && task.getResult().exists()) {
                         ClassInstance classInstance = task.getResult().toObject(ClassInstance.class);
+                        if (classInstance != null) {
+                            classInstance.markClean();
+                        }
                         classInstanceLiveData.setValue(classInstance);
                         Log.d(TAG, "Retrieved class instance: " + classInstanceId);
                     } else {
@@ -351,6 +334,9 @@ public class CloudService {
                         List<ClassInstance> classInstances = new ArrayList<>();
                         for (QueryDocumentSnapshot document : task.getResult()) {
                             ClassInstance classInstance = document.toObject(ClassInstance.class);
+                            if (classInstance != null) {
+                                classInstance.markClean();
+                            }
                             classInstances.add(classInstance);
                         }
                         classInstancesLiveData.setValue(classInstances);
@@ -422,10 +408,26 @@ public class CloudService {
     public LiveData<Boolean> updateClassInstance(ClassInstance classInstance) {
         MutableLiveData<Boolean> result = new MutableLiveData<>();
         
-        db.collection(CLASS_INSTANCES_COLLECTION)
-                .document(classInstance.getId())
-                .set(classInstance)
+        // Loaded instances send only their changed fields
+        DocumentReference classInstanceRef = db.collection(CLASS_INSTANCES_COLLECTION)
+                .document(classInstance.getId());
+        Task<Void> write;
+        if (!classInstance.isTracked()) {
+            // Merge so fields maintained elsewhere, such as the seat count, survive
+            write = classInstanceRef.set(classInstance, SetOptions.merge());
+        } else if (classInstance.isDirty()) {
+            write = classInstanceRef.update(classInstance.getChanges());
+        } else {
+            write = Tasks.forResult(null);
+        }
+        Map<String, Object> changes = classInstance.getChanges();
+        write
                 .addOnSuccessListener(aVoid -> {
+                    // Only once saved, so a failed write is sent again on retry; edits made
+                    // while it was in flight stay pending
+                    if (!classInstance.isTracked() || classInstance.getChanges().equals(changes)) {
+                        classInstance.markClean();
+                    }
                     Log.d(TAG, "Class instance updated successfully");
                     
                     // If class is cancelled, send notification
@@ -0,0 +1,286 @@
+package com.example.myapplication.firebase;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Deletes every document in a list of collections, one page at a time.
+ *
+ * Each collection is read in document ID order with a cursor, and every page is deleted
+ * with its own WriteBatch while the next page is fetched, with a bounded number of
+ * commits in flight. Only one page is held in memory per in-flight commit. Collections
+ * that were fully deleted are remembered, so starting again after a failure resumes at
+ * the collection that failed. Seat shards stored under a class instance are deleted in
+ * the same batch as the class instance. All callbacks run on the main thread.
+ */
+public class BulkDeleter {
+    private static final String TAG = "BulkDeleter";
+    private static final int MAX_BATCH_WRITES = 500;
+
+    /**
+     * Snapshot of a running or finished deletion
+     */
+    public static final class Progress {
+        private final String collection;
+        private final long deletedCount;
+        private final int completedCollections;
+        private final int totalCollections;
+        private final boolean finished;
+        private final boolean failed;
+
+        Progress(String collection, long deletedCount, int completedCollections, int totalCollections,
+                 boolean finished, boolean failed) {
+            this.collection = collection;
+            this.deletedCount = deletedCount;
+            this.completedCollections = completedCollections;
+            this.totalCollections = totalCollections;
+            this.finished = finished;
+            this.failed = failed;
+        }
+
+        /**
+         * @return Collection currently being deleted, or null once finished
+         */
+        public String getCollection() {
+            return collection;
+        }
+
+        /**
+         * @return Documents deleted so far, including earlier attempts that were resumed
+         */
+        public long getDeletedCount() {
+            return deletedCount;
+        }
+
+        public int getCompletedCollections() {
+            return completedCollections;
+        }
+
+        public int getTotalCollections() {
+            return totalCollections;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    private final FirebaseFirestore db;
+    private final List<String> collections;
+    private final MutableLiveData<Progress> progress = new MutableLiveData<>();
+
+    // Run state; only touched on the main thread
+    private MutableLiveData<Boolean> result;
+    private int pageSize;
+    private int maxParallelCommits;
+    private int collectionIndex = 0;
+    private long deletedCount = 0;
+    private int inFlightCommits = 0;
+    private boolean fetching = false;
+    private boolean pageExhausted = false;
+    private boolean failed = false;
+    private DocumentSnapshot nextCursor;
+    private boolean hasNextCursor = false;
+
+    /**
+     * @param db Firestore instance
+     * @param collections Collections to delete, in order
+     */
+    public BulkDeleter(FirebaseFirestore db, List<String> collections) {
+        this.db = db;
+        this.collections = Collections.unmodifiableList(new ArrayList<>(collections));
+    }
+
+    /**
+     * @return LiveData updated after every committed page
+     */
+    public LiveData<Progress> getProgress() {
+        return progress;
+    }
+
+    public boolean isRunning() {
+        return result != null;
+    }
+
+    /**
+     * Start deleting, or resume after a failed run. A run that is already in progress
+     * is joined rather than started twice.
+     * @param pageSize Documents per page and per batch, at most 500
+     * @param maxParallelCommits Maximum number of batch commits in flight
+     * @return LiveData with boolean result
+     */
+    public LiveData<Boolean> start(int pageSize, int maxParallelCommits) {
+        if (pageSize < 1 || pageSize > MAX_BATCH_WRITES) {
+            throw new IllegalArgumentException("pageSize must be between 1 and " + MAX_BATCH_WRITES);
+        }
+        if (maxParallelCommits < 1) {
+            throw new IllegalArgumentException("maxParallelCommits must be positive");
+        }
+        if (result != null) {
+            return result;
+        }
+        this.pageSize = pageSize;
+        this.maxParallelCommits = maxParallelCommits;
+        result = new MutableLiveData<>();
+        MutableLiveData<Boolean> runResult = result;
+
+        if (collectionIndex >= collections.size()) {
+            // A previous run finished; start over to pick up documents written since
+            collectionIndex = 0;
+            deletedCount = 0;
+        }
+        failed = false;
+        startCollection();
+        return runResult;
+    }
+
+    private void startCollection() {
+        pageExhausted = false;
+        hasNextCursor = false;
+        nextCursor = null;
+        publish(false);
+        fetchPage(null);
+    }
+
+    private void fetchPage(DocumentSnapshot cursor) {
+        fetching = true;
+        String collection = collections.get(collectionIndex);
+        Query query = db.collection(collection)
+                .orderBy(FieldPath.documentId())
+                .limit(pageSize);
+        if (cursor != null) {
+            query = query.startAfter(cursor);
+        }
+
+        query.get()
+                .addOnSuccessListener(snapshot -> {
+                    fetching = false;
+                    if (failed) {
+                        finishIfIdle();
+                        return;
+                    }
+                    if (snapshot.isEmpty()) {
+                        pageExhausted = true;
+                        finishIfIdle();
+                        return;
+                    }
+
+                    WriteBatch batch = db.batch();
+                    int writes = 0;
+                    DocumentSnapshot last = null;
+                    for (QueryDocumentSnapshot document : snapshot) {
+                        List<DocumentReference> shardRefs = SeatCounter.shardRefs(document);
+                        if (writes + shardRefs.size() + 1 > MAX_BATCH_WRITES) {
+                            commit(batch, writes);
+                            batch = db.batch();
+                            writes = 0;
+                        }
+                        for (DocumentReference shardRef : shardRefs) {
+                            batch.delete(shardRef);
+                        }
+                        batch.delete(document.getReference());
+                        writes += shardRefs.size() + 1;
+                        last = document;
+                    }
+                    commit(batch, writes);
+
+                    if (snapshot.size() < pageSize) {
+                        pageExhausted = true;
+                    } else if (inFlightCommits < maxParallelCommits) {
+                        fetchPage(last);
+                    } else {
+                        // Wait for a commit slot before reading further
+                        nextCursor = last;
+                        hasNextCursor = true;
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    fetching = false;
+                    Log.e(TAG, "Error reading page of " + collection, e);
+                    fail();
+                });
+    }
+
+    private void commit(WriteBatch batch, int size) {
+        inFlightCommits++;
+        batch.commit()
+                .addOnSuccessListener(aVoid -> {
+                    inFlightCommits--;
+                    deletedCount += size;
+                    publish(false);
+                    if (!failed && hasNextCursor) {
+                        hasNextCursor = false;
+                        DocumentSnapshot cursor = nextCursor;
+                        nextCursor = null;
+                        fetchPage(cursor);
+                    } else {
+                        finishIfIdle();
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    inFlightCommits--;
+                    Log.e(TAG, "Error deleting page of " + collections.get(collectionIndex), e);
+                    fail();
+                });
+    }
+
+    private void fail() {
+        failed = true;
+        hasNextCursor = false;
+        nextCursor = null;
+        finishIfIdle();
+    }
+
+    private void finishIfIdle() {
+        if (fetching || inFlightCommits > 0) {
+            return;
+        }
+        if (failed) {
+            publish(true);
+            complete(false);
+            return;
+        }
+        if (!pageExhausted || hasNextCursor) {
+            return;
+        }
+
+        Log.d(TAG, "Deleted collection " + collections.get(collectionIndex));
+        collectionIndex++;
+        if (collectionIndex < collections.size()) {
+            startCollection();
+        } else {
+            publish(true);
+            complete(true);
+        }
+    }
+
+    private void complete(boolean success) {
+        MutableLiveData<Boolean> runResult = result;
+        result = null;
+        runResult.setValue(success);
+    }
+
+    private void publish(boolean finished) {
+        String collection = collectionIndex < collections.size() ? collections.get(collectionIndex) : null;
+        progress.setValue(new Progress(collection, deletedCount, collectionIndex, collections.size(),
+                finished, failed));
+    }
+}
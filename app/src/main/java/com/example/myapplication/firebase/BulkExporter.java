@@ -0,0 +1,382 @@
+package com.example.myapplication.firebase;
+
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.GeoPoint;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.Source;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports every document in a list of collections to a newline-delimited JSON file,
+ * one page at a time.
+ *
+ * Each line is {"collection": ..., "id": ..., "data": {...}}. Dates and timestamps are
+ * written as {"$date": millis}, matching the offline outbox, and references, geo points
+ * and blobs get similar markers. Collections are read in document ID order with a
+ * cursor, and the next page is requested before the current one is written, so at most
+ * two pages are in memory whatever the collection size.
+ *
+ * After every page the file is synced and a checkpoint with the file length and the
+ * last exported document is saved next to it. Starting again after a failure or process
+ * death truncates the file to the checkpoint and continues from that document. With
+ * compression, every page is written as its own gzip member; concatenated members form
+ * a valid gzip file, and a checkpoint always falls on a member boundary.
+ */
+public class BulkExporter {
+    private static final String TAG = "BulkExporter";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    /**
+     * Snapshot of a running or finished export
+     */
+    public static final class Progress {
+        private final String collection;
+        private final long exportedCount;
+        private final long bytesWritten;
+        private final int completedCollections;
+        private final int totalCollections;
+        private final boolean finished;
+        private final boolean failed;
+
+        Progress(String collection, long exportedCount, long bytesWritten, int completedCollections,
+                 int totalCollections, boolean finished, boolean failed) {
+            this.collection = collection;
+            this.exportedCount = exportedCount;
+            this.bytesWritten = bytesWritten;
+            this.completedCollections = completedCollections;
+            this.totalCollections = totalCollections;
+            this.finished = finished;
+            this.failed = failed;
+        }
+
+        /**
+         * @return Collection currently being exported, or null once finished
+         */
+        public String getCollection() {
+            return collection;
+        }
+
+        /**
+         * @return Documents exported so far, including earlier attempts that were resumed
+         */
+        public long getExportedCount() {
+            return exportedCount;
+        }
+
+        /**
+         * @return Size of the export file so far
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public int getCompletedCollections() {
+            return completedCollections;
+        }
+
+        public int getTotalCollections() {
+            return totalCollections;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    private final FirebaseFirestore db;
+    private final List<String> collections;
+    private final File output;
+    private final File checkpointFile;
+    private final boolean gzip;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final MutableLiveData<Progress> progress = new MutableLiveData<>();
+
+    // Run state; only touched on the worker thread
+    private int collectionIndex;
+    private String lastId;
+    private long exportedCount;
+    private long bytesWritten;
+
+    /**
+     * @param db Firestore instance
+     * @param collections Collections to export, in order
+     * @param output File to write; a checkpoint file is kept next to it while exporting
+     * @param gzip true to gzip-compress the output
+     */
+    public BulkExporter(FirebaseFirestore db, List<String> collections, File output, boolean gzip) {
+        this.db = db;
+        this.collections = Collections.unmodifiableList(new ArrayList<>(collections));
+        this.output = output;
+        this.checkpointFile = new File(output.getPath() + CHECKPOINT_SUFFIX);
+        this.gzip = gzip;
+    }
+
+    /**
+     * @return LiveData updated after every written page
+     */
+    public LiveData<Progress> getProgress() {
+        return progress;
+    }
+
+    /**
+     * Start exporting, resuming from the checkpoint of an interrupted export of the same
+     * file if there is one. An exporter runs once; to retry, start a new one for the file.
+     * @param pageSize Documents per query page
+     * @return LiveData with boolean result
+     */
+    public LiveData<Boolean> start(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        MutableLiveData<Boolean> result = new MutableLiveData<>();
+        worker.execute(() -> {
+            boolean success = false;
+            try {
+                run(pageSize);
+                success = true;
+            } catch (IOException | JSONException | ExecutionException e) {
+                Log.e(TAG, "Export to " + output + " failed; starting again resumes", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "Export to " + output + " interrupted", e);
+            }
+            publish(!success || collectionIndex >= collections.size(), !success);
+            result.postValue(success);
+            worker.shutdown();
+        });
+        return result;
+    }
+
+    private void run(int pageSize) throws IOException, JSONException, ExecutionException, InterruptedException {
+        restoreCheckpoint();
+        try (FileOutputStream file = new FileOutputStream(output, true)) {
+            // Drop anything written after the last checkpoint
+            file.getChannel().truncate(bytesWritten);
+
+            while (collectionIndex < collections.size()) {
+                String collection = collections.get(collectionIndex);
+                publish(false, false);
+                Task<QuerySnapshot> next = fetchPage(collection, lastId, pageSize);
+                while (next != null) {
+                    QuerySnapshot page = Tasks.await(next);
+                    if (page.isEmpty()) {
+                        break;
+                    }
+                    List<DocumentSnapshot> documents = page.getDocuments();
+                    String pageLastId = documents.get(documents.size() - 1).getId();
+                    // Read ahead while this page is written
+                    next = page.size() < pageSize ? null : fetchPage(collection, pageLastId, pageSize);
+
+                    writePage(file, collection, documents);
+                    lastId = pageLastId;
+                    exportedCount += documents.size();
+                    saveCheckpoint();
+                    publish(false, false);
+                }
+                Log.d(TAG, "Exported collection " + collection);
+                collectionIndex++;
+                lastId = null;
+                saveCheckpoint();
+            }
+        }
+        if (!checkpointFile.delete()) {
+            Log.w(TAG, "Could not delete checkpoint " + checkpointFile);
+        }
+        Log.d(TAG, "Exported " + exportedCount + " documents to " + output + " (" + bytesWritten + " bytes)");
+    }
+
+    private Task<QuerySnapshot> fetchPage(String collection, String afterId, int pageSize) {
+        Query query = db.collection(collection)
+                .orderBy(FieldPath.documentId())
+                .limit(pageSize);
+        if (afterId != null) {
+            query = query.startAfter(afterId);
+        }
+        // From the server, so an offline export fails and resumes later instead of
+        // completing with whatever happens to be cached
+        return query.get(Source.SERVER);
+    }
+
+    private void writePage(FileOutputStream file, String collection, List<DocumentSnapshot> documents)
+            throws IOException, JSONException {
+        // The file itself stays open across pages; only the per-page layers are closed
+        OutputStream target = new FilterOutputStream(file) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        if (gzip) {
+            target = new GZIPOutputStream(target, 64 * 1024);
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8))) {
+            for (DocumentSnapshot document : documents) {
+                JSONObject line = new JSONObject();
+                line.put("collection", collection);
+                line.put("id", document.getId());
+                line.put("data", encode(document.getData()));
+                writer.write(line.toString());
+                writer.write('\n');
+            }
+        }
+        file.getFD().sync();
+        bytesWritten = file.getChannel().position();
+    }
+
+    private static Object encode(Object value) throws JSONException {
+        if (value == null) {
+            return JSONObject.NULL;
+        }
+        if (value instanceof Timestamp) {
+            value = ((Timestamp) value).toDate();
+        }
+        if (value instanceof Date) {
+            return marker("$date", ((Date) value).getTime());
+        }
+        if (value instanceof DocumentReference) {
+            return marker("$ref", ((DocumentReference) value).getPath());
+        }
+        if (value instanceof GeoPoint) {
+            JSONArray point = new JSONArray();
+            point.put(((GeoPoint) value).getLatitude());
+            point.put(((GeoPoint) value).getLongitude());
+            return marker("$geo", point);
+        }
+        if (value instanceof Blob) {
+            return marker("$bytes", Base64.encodeToString(((Blob) value).toBytes(), Base64.NO_WRAP));
+        }
+        if (value instanceof Map) {
+            JSONObject object = new JSONObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                object.put(String.valueOf(entry.getKey()), encode(entry.getValue()));
+            }
+            return object;
+        }
+        if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object item : (List<?>) value) {
+                array.put(encode(item));
+            }
+            return array;
+        }
+        return value;
+    }
+
+    private static JSONObject marker(String name, Object value) throws JSONException {
+        JSONObject marker = new JSONObject();
+        marker.put(name, value);
+        return marker;
+    }
+
+    private void restoreCheckpoint() throws IOException {
+        collectionIndex = 0;
+        lastId = null;
+        exportedCount = 0;
+        bytesWritten = 0;
+        if (!checkpointFile.exists()) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        try (Reader reader = new InputStreamReader(new FileInputStream(checkpointFile), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[256];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+        }
+        try {
+            JSONObject checkpoint = new JSONObject(text.toString());
+            // A checkpoint from an export with other settings does not describe this file
+            if (checkpoint.getBoolean("gzip") != gzip
+                    || !checkpoint.getJSONArray("collections").toString().equals(new JSONArray(collections).toString())) {
+                Log.w(TAG, "Ignoring checkpoint for a different export");
+                return;
+            }
+            collectionIndex = checkpoint.getInt("collectionIndex");
+            lastId = checkpoint.isNull("lastId") ? null : checkpoint.getString("lastId");
+            exportedCount = checkpoint.getLong("exportedCount");
+            bytesWritten = checkpoint.getLong("bytesWritten");
+            Log.d(TAG, "Resuming export after " + exportedCount + " documents");
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring unreadable checkpoint", e);
+            collectionIndex = 0;
+            lastId = null;
+            exportedCount = 0;
+            bytesWritten = 0;
+        }
+    }
+
+    private void saveCheckpoint() throws IOException, JSONException {
+        JSONObject checkpoint = new JSONObject();
+        checkpoint.put("collections", new JSONArray(collections));
+        checkpoint.put("gzip", gzip);
+        checkpoint.put("collectionIndex", collectionIndex);
+        checkpoint.put("lastId", lastId != null ? lastId : JSONObject.NULL);
+        checkpoint.put("exportedCount", exportedCount);
+        checkpoint.put("bytesWritten", bytesWritten);
+
+        // Write and rename, so a crash never leaves a half-written checkpoint
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(checkpoint.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(checkpointFile)) {
+            throw new IOException("Could not save checkpoint " + checkpointFile);
+        }
+    }
+
+    private void publish(boolean finished, boolean failed) {
+        String collection = collectionIndex < collections.size() ? collections.get(collectionIndex) : null;
+        progress.postValue(new Progress(collection, exportedCount, bytesWritten, collectionIndex,
+                collections.size(), finished, failed));
+    }
+}
@@ -0,0 +1,587 @@
+package com.example.myapplication.firebase;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.example.myapplication.model.Course;
+import com.example.myapplication.utils.CsvReader;
+import com.example.myapplication.utils.EpochDays;
+import com.example.myapplication.utils.SearchTokens;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Imports courses and class instances from a CSV or JSON file.
+ *
+ * Every record has a "record" field, either "course" or "class". Course records carry
+ * key, name, type, description, dayOfWeek, time, capacity, duration and price, where key
+ * is any label that later class records in the same file use to refer to the course.
+ * Class records carry course (a key from the file or the ID of an existing course),
+ * date (yyyy-MM-dd), teacherName, comments and cancelled. CSV files start with a header
+ * row naming the columns; JSON files hold an array of objects with the same fields.
+ *
+ * The file is parsed as a stream on a background thread, so memory does not grow with
+ * the number of rows, only with the number of distinct courses. Rows are checked with
+ * the same rules as the add course form and {@link FirebaseService#addClassInstance},
+ * including the day of week check, and valid rows are written in WriteBatch commits of
+ * up to 500 operations with a bounded number of commits in flight. Each class instance
+ * is linked to its course with an arrayUnion update in the same batch, committed only
+ * once the course itself is. Invalid rows and rows in failed commits are listed in the
+ * report.
+ *
+ * An importer runs a single import and stops its worker thread when it finishes; create
+ * a new one for each file.
+ */
+public class BulkImporter {
+    private static final String TAG = "BulkImporter";
+    private static final String COURSES_COLLECTION = "courses";
+    private static final String CLASS_INSTANCES_COLLECTION = "classInstances";
+    private static final int MAX_BATCH_WRITES = 500;
+    // Errors beyond this are counted but not listed
+    private static final int MAX_REPORTED_ERRORS = 1000;
+
+    /**
+     * Problem with one row of the input
+     */
+    public static final class RowError {
+        private final int row;
+        private final String message;
+
+        RowError(int row, String message) {
+            this.row = row;
+            this.message = message;
+        }
+
+        /**
+         * @return Line number for CSV, or 1-based record index for JSON
+         */
+        public int getRow() {
+            return row;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "Row " + row + ": " + message;
+        }
+    }
+
+    /**
+     * Snapshot of a running or finished import
+     */
+    public static final class Report {
+        private final int rowsRead;
+        private final int coursesImported;
+        private final int classInstancesImported;
+        private final int failedRows;
+        private final List<RowError> errors;
+        private final boolean finished;
+
+        Report(int rowsRead, int coursesImported, int classInstancesImported, int failedRows,
+               List<RowError> errors, boolean finished) {
+            this.rowsRead = rowsRead;
+            this.coursesImported = coursesImported;
+            this.classInstancesImported = classInstancesImported;
+            this.failedRows = failedRows;
+            this.errors = errors;
+            this.finished = finished;
+        }
+
+        public int getRowsRead() {
+            return rowsRead;
+        }
+
+        public int getCoursesImported() {
+            return coursesImported;
+        }
+
+        public int getClassInstancesImported() {
+            return classInstancesImported;
+        }
+
+        /**
+         * @return Rows that were invalid or whose commit failed
+         */
+        public int getFailedRows() {
+            return failedRows;
+        }
+
+        /**
+         * @return Errors for the first failed rows, in no particular order
+         */
+        public List<RowError> getErrors() {
+            return errors;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return true if the import finished and every row was written
+         */
+        public boolean isSuccess() {
+            return finished && failedRows == 0;
+        }
+    }
+
+    /**
+     * Course a class record can be linked to
+     */
+    private static final class CourseTarget {
+        final String id;
+        final int dayOfWeek;
+
+        CourseTarget(String id, int dayOfWeek) {
+            this.id = id;
+            this.dayOfWeek = dayOfWeek;
+        }
+    }
+
+    private final FirebaseFirestore db;
+    private final int maxParallelCommits;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final MutableLiveData<Report> progress = new MutableLiveData<>();
+    private final TimeZone timeZone = TimeZone.getDefault();
+
+    // Parse state; only touched on the worker thread
+    private final Map<String, CourseTarget> courses = new HashMap<>();
+    // Commit of the batch that creates each new course; batches linking class instances
+    // to the course are committed after it
+    private final Map<String, Task<Void>> courseCommits = new HashMap<>();
+    private final Semaphore commitSlots;
+    private WriteBatch batch;
+    private int batchWrites;
+    private List<Integer> batchRows;
+    private Map<String, List<Object>> batchLinks;
+    private int batchCourses;
+    private int batchClassInstances;
+    private List<String> batchNewCourseIds;
+
+    // New courses whose batch failed; later class rows for them are rejected
+    private final Set<String> failedCourseIds = Collections.synchronizedSet(new HashSet<String>());
+
+    // Totals; updated from the worker and from commit callbacks
+    private int rowsRead;
+    private int coursesImported;
+    private int classInstancesImported;
+    private int failedRows;
+    private final List<RowError> errors = new ArrayList<>();
+
+    /**
+     * @param db Firestore instance
+     * @param maxParallelCommits Maximum number of batch commits in flight
+     */
+    public BulkImporter(FirebaseFirestore db, int maxParallelCommits) {
+        if (maxParallelCommits < 1) {
+            throw new IllegalArgumentException("maxParallelCommits must be positive");
+        }
+        this.db = db;
+        this.maxParallelCommits = maxParallelCommits;
+        this.commitSlots = new Semaphore(maxParallelCommits);
+    }
+
+    /**
+     * @return LiveData updated after every committed batch
+     */
+    public LiveData<Report> getProgress() {
+        return progress;
+    }
+
+    /**
+     * Import a CSV file with a header row. The stream is closed when the import ends.
+     * @param input UTF-8 encoded CSV
+     * @return LiveData with the final report
+     * @throws IllegalStateException if this importer has already run an import
+     */
+    public LiveData<Report> importCsv(InputStream input) {
+        checkNotStarted();
+        MutableLiveData<Report> result = new MutableLiveData<>();
+        worker.execute(() -> {
+            try (CsvReader reader = new CsvReader(new BufferedReader(
+                    new InputStreamReader(input, StandardCharsets.UTF_8)))) {
+                List<String> header = reader.readRecord();
+                if (header == null) {
+                    addError(1, "File is empty");
+                } else {
+                    List<String> values;
+                    while ((values = reader.readRecord()) != null) {
+                        Map<String, String> row = new HashMap<>();
+                        for (int i = 0; i < header.size() && i < values.size(); i++) {
+                            row.put(header.get(i).trim(), values.get(i));
+                        }
+                        importRow(reader.getRecordLine(), row);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading CSV", e);
+                addError(rowsRead + 1, "Could not read file: " + e.getMessage());
+            }
+            finish(result);
+        });
+        return result;
+    }
+
+    /**
+     * Import a JSON array of objects. The stream is closed when the import ends.
+     * @param input UTF-8 encoded JSON
+     * @return LiveData with the final report
+     * @throws IllegalStateException if this importer has already run an import
+     */
+    public LiveData<Report> importJson(InputStream input) {
+        checkNotStarted();
+        MutableLiveData<Report> result = new MutableLiveData<>();
+        worker.execute(() -> {
+            int index = 0;
+            try (JsonReader reader = new JsonReader(new BufferedReader(
+                    new InputStreamReader(input, StandardCharsets.UTF_8)))) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    index++;
+                    importRow(index, readJsonRow(reader));
+                }
+                reader.endArray();
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "Error reading JSON", e);
+                addError(index, "Could not read file: " + e.getMessage());
+            }
+            finish(result);
+        });
+        return result;
+    }
+
+    private void checkNotStarted() {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("An importer runs one import; create a new one");
+        }
+    }
+
+    private static Map<String, String> readJsonRow(JsonReader reader) throws IOException {
+        Map<String, String> row = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                row.put(name, reader.nextString());
+            } else if (token == JsonToken.BOOLEAN) {
+                row.put(name, String.valueOf(reader.nextBoolean()));
+            } else if (token == JsonToken.NULL) {
+                reader.nextNull();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return row;
+    }
+
+    private void importRow(int row, Map<String, String> values) {
+        synchronized (this) {
+            rowsRead++;
+        }
+        String record = value(values, "record");
+        try {
+            if ("course".equalsIgnoreCase(record)) {
+                importCourse(row, values);
+            } else if ("class".equalsIgnoreCase(record)) {
+                importClassInstance(row, values);
+            } else {
+                addError(row, "Unknown record type \"" + record + "\"; expected course or class");
+            }
+        } catch (IllegalArgumentException e) {
+            addError(row, e.getMessage());
+        }
+    }
+
+    private void importCourse(int row, Map<String, String> values) {
+        String key = value(values, "key");
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Key is required");
+        }
+        if (courses.containsKey(key)) {
+            throw new IllegalArgumentException("Duplicate course key \"" + key + "\"");
+        }
+        String name = value(values, "name");
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Name is required");
+        }
+        int dayOfWeek = EpochDays.parseDayOfWeek(value(values, "dayOfWeek"));
+        if (dayOfWeek < 0) {
+            throw new IllegalArgumentException("Invalid day of week \"" + value(values, "dayOfWeek") + "\"");
+        }
+        int capacity = parseInt(values, "capacity", "Capacity");
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than 0");
+        }
+        int duration = parseInt(values, "duration", "Duration");
+        if (duration <= 0) {
+            throw new IllegalArgumentException("Duration must be greater than 0");
+        }
+        double price = parseDouble(values, "price", "Price");
+        if (price < 0) {
+            throw new IllegalArgumentException("Price cannot be negative");
+        }
+
+        Course course = new Course(name, value(values, "type"), value(values, "description"),
+                EpochDays.dayOfWeekName(dayOfWeek), value(values, "time"), capacity, duration, price);
+        DocumentReference ref = db.collection(COURSES_COLLECTION).document();
+        // Without classInstanceIds; each batch adds its links with an update once this
+        // batch has committed
+        Map<String, Object> data = course.toMap();
+        data.remove("classInstanceIds");
+
+        reserve(row, 1, null);
+        batch.set(ref, data, SetOptions.merge());
+        batchCourses++;
+        batchNewCourseIds.add(ref.getId());
+        courses.put(key, new CourseTarget(ref.getId(), dayOfWeek));
+    }
+
+    private void importClassInstance(int row, Map<String, String> values) {
+        String courseRef = value(values, "course");
+        if (courseRef.isEmpty()) {
+            throw new IllegalArgumentException("Course is required");
+        }
+        CourseTarget course = resolveCourse(courseRef);
+        if (course == null) {
+            throw new IllegalArgumentException("Course not found: " + courseRef);
+        }
+        if (failedCourseIds.contains(course.id)) {
+            throw new IllegalArgumentException("Course " + courseRef + " failed to import");
+        }
+        long epochDay = EpochDays.parseIsoDate(value(values, "date"));
+        if (EpochDays.dayOfWeek(epochDay) != course.dayOfWeek) {
+            throw new IllegalArgumentException("Class instance date does not match course day of week");
+        }
+
+        Map<String, Object> data = new HashMap<>();
+        data.put("courseId", course.id);
+        data.put("date", new Date(EpochDays.toStartOfDayMillis(epochDay, timeZone)));
+        data.put("teacherName", value(values, "teacherName"));
+        data.put("teacherTokens", SearchTokens.prefixes(value(values, "teacherName")));
+        data.put("comments", value(values, "comments"));
+        data.put("cancelled", Boolean.parseBoolean(value(values, "cancelled")));
+        // New documents start counting seats at once, so their first booking needs no recount
+        data.put(SeatCounter.ENROLLED_COUNT_FIELD, 0L);
+        DocumentReference ref = db.collection(CLASS_INSTANCES_COLLECTION).document();
+
+        reserve(row, 1, course.id);
+        batch.set(ref, data);
+        List<Object> ids = batchLinks.get(course.id);
+        if (ids == null) {
+            ids = new ArrayList<>();
+            batchLinks.put(course.id, ids);
+        }
+        ids.add(ref.getId());
+        batchClassInstances++;
+    }
+
+    /**
+     * Find a course by import key, or else by document ID. Existing courses are read
+     * once and remembered.
+     */
+    private CourseTarget resolveCourse(String reference) {
+        if (courses.containsKey(reference)) {
+            return courses.get(reference);
+        }
+        CourseTarget target = null;
+        try {
+            DocumentSnapshot snapshot = Tasks.await(db.collection(COURSES_COLLECTION).document(reference).get());
+            if (snapshot.exists()) {
+                int dayOfWeek = EpochDays.parseDayOfWeek(snapshot.getString("dayOfWeek"));
+                if (dayOfWeek < 0) {
+                    throw new IllegalArgumentException("Course has no valid day of week: " + reference);
+                }
+                target = new CourseTarget(reference, dayOfWeek);
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalArgumentException("Could not read course " + reference + ": " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException("Interrupted while reading course " + reference);
+        }
+        courses.put(reference, target);
+        return target;
+    }
+
+    /**
+     * Make room for a row's writes in the current batch, committing it first if full
+     * @param linkedCourseId Course the row's class instance is linked to, or null; the
+     *                       first row of a course in a batch also counts the link write
+     */
+    private void reserve(int row, int writes, String linkedCourseId) {
+        if (batch != null && batchWrites + writes + linkWrites(linkedCourseId) > MAX_BATCH_WRITES) {
+            commitBatch();
+        }
+        if (batch == null) {
+            batch = db.batch();
+            batchWrites = 0;
+            batchRows = new ArrayList<>();
+            batchLinks = new LinkedHashMap<>();
+            batchCourses = 0;
+            batchClassInstances = 0;
+            batchNewCourseIds = new ArrayList<>();
+        }
+        // Counted against the batch the row lands in, which may have just been started
+        batchWrites += writes + linkWrites(linkedCourseId);
+        batchRows.add(row);
+    }
+
+    private int linkWrites(String courseId) {
+        return courseId != null && (batchLinks == null || !batchLinks.containsKey(courseId)) ? 1 : 0;
+    }
+
+    private void commitBatch() {
+        for (Map.Entry<String, List<Object>> link : batchLinks.entrySet()) {
+            // An update, so a link can never create a course document on its own; a course
+            // from an earlier batch must have been committed first. If that batch failed,
+            // this one fails too rather than leaving a course without its fields.
+            awaitCourseCommit(link.getKey());
+            batch.update(db.collection(COURSES_COLLECTION).document(link.getKey()),
+                    "classInstanceIds", FieldValue.arrayUnion(link.getValue().toArray()));
+        }
+        WriteBatch committing = batch;
+        List<Integer> rows = batchRows;
+        List<String> newCourseIds = batchNewCourseIds;
+        int courseCount = batchCourses;
+        int classInstanceCount = batchClassInstances;
+        batch = null;
+        batchRows = null;
+        batchLinks = null;
+        batchNewCourseIds = null;
+
+        commitSlots.acquireUninterruptibly();
+        Task<Void> commit = committing.commit();
+        for (String courseId : newCourseIds) {
+            courseCommits.put(courseId, commit);
+        }
+        // Callbacks run on the completing thread; the worker may be blocked on a slot
+        commit.addOnCompleteListener(Runnable::run, task -> {
+            synchronized (this) {
+                if (task.isSuccessful()) {
+                    coursesImported += courseCount;
+                    classInstancesImported += classInstanceCount;
+                } else {
+                    failedCourseIds.addAll(newCourseIds);
+                    Log.e(TAG, "Error committing import batch", task.getException());
+                    String message = "Write failed: " + task.getException();
+                    for (int row : rows) {
+                        addError(row, message);
+                    }
+                }
+                progress.postValue(snapshot(false));
+            }
+            commitSlots.release();
+        });
+    }
+
+    private void awaitCourseCommit(String courseId) {
+        Task<Void> commit = courseCommits.get(courseId);
+        if (commit == null || commit.isComplete()) {
+            return;
+        }
+        try {
+            Tasks.await(commit);
+        } catch (ExecutionException e) {
+            // Reported by the commit's own callback; the link update will fail as well
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void finish(MutableLiveData<Report> result) {
+        if (batch != null) {
+            commitBatch();
+        }
+        // Wait for every commit to complete
+        commitSlots.acquireUninterruptibly(maxParallelCommits);
+        commitSlots.release(maxParallelCommits);
+        Report report;
+        synchronized (this) {
+            report = snapshot(true);
+        }
+        Log.d(TAG, "Import finished: " + report.getRowsRead() + " rows, " + report.getCoursesImported()
+                + " courses, " + report.getClassInstancesImported() + " class instances, "
+                + report.getFailedRows() + " failed");
+        progress.postValue(report);
+        result.postValue(report);
+        worker.shutdown();
+    }
+
+    private synchronized void addError(int row, String message) {
+        failedRows++;
+        if (errors.size() < MAX_REPORTED_ERRORS) {
+            errors.add(new RowError(row, message));
+        }
+    }
+
+    private Report snapshot(boolean finished) {
+        return new Report(rowsRead, coursesImported, classInstancesImported, failedRows,
+                Collections.unmodifiableList(new ArrayList<>(errors)), finished);
+    }
+
+    private static String value(Map<String, String> values, String name) {
+        String value = values.get(name);
+        return value == null ? "" : value.trim();
+    }
+
+    private static int parseInt(Map<String, String> values, String name, String label) {
+        String value = value(values, name);
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException(label + " is required");
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + label.toLowerCase() + " \"" + value + "\"");
+        }
+    }
+
+    private static double parseDouble(Map<String, String> values, String name, String label) {
+        String value = value(values, name);
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException(label + " is required");
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + label.toLowerCase() + " \"" + value + "\"");
+        }
+    }
+}
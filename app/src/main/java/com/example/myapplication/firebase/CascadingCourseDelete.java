@@ -0,0 +1,208 @@
+package com.example.myapplication.firebase;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes a course together with all of its class instances, their seat shards and their
+ * enrollments.
+ *
+ * Class instances are processed a page at a time. For each page, enrollments are looked
+ * up with whereIn queries over chunks of class instance IDs, then the enrollments and the
+ * class instances are deleted in WriteBatch commits of at most 500 operations, with a
+ * bounded number of commits in flight. The course document is deleted last, so an
+ * interrupted delete can simply be run again. All callbacks run on the main thread.
+ */
+class CascadingCourseDelete {
+    private static final String TAG = "CascadingCourseDelete";
+    private static final int MAX_BATCH_WRITES = 500;
+    // Firestore limits the number of values in a whereIn filter
+    private static final int MAX_WHERE_IN_VALUES = 30;
+
+    private final FirebaseFirestore db;
+    private final String coursesCollection;
+    private final String classInstancesCollection;
+    private final String enrollmentsCollection;
+    private final String courseId;
+    private final int pageSize;
+    private final int maxParallelCommits;
+    private final MutableLiveData<Integer> progress;
+    private final MutableLiveData<Boolean> result = new MutableLiveData<>();
+    private final List<String> deletedClassInstanceIds = new ArrayList<>();
+
+    private int deletedCount = 0;
+    private List<WriteBatch> pendingBatches;
+    private int nextBatch;
+    private int inFlightCommits;
+    private boolean failed = false;
+
+    CascadingCourseDelete(FirebaseFirestore db, String coursesCollection, String classInstancesCollection,
+                          String enrollmentsCollection, String courseId, int pageSize,
+                          int maxParallelCommits, MutableLiveData<Integer> progress) {
+        this.db = db;
+        this.coursesCollection = coursesCollection;
+        this.classInstancesCollection = classInstancesCollection;
+        this.enrollmentsCollection = enrollmentsCollection;
+        this.courseId = courseId;
+        this.pageSize = pageSize;
+        this.maxParallelCommits = maxParallelCommits;
+        this.progress = progress;
+    }
+
+    /**
+     * @return LiveData with boolean result
+     */
+    LiveData<Boolean> run() {
+        fetchPage();
+        return result;
+    }
+
+    /**
+     * @return IDs of the class instances deleted so far
+     */
+    List<String> getDeletedClassInstanceIds() {
+        return deletedClassInstanceIds;
+    }
+
+    private void fetchPage() {
+        // Every page is deleted before the next is read, so each read starts from the top
+        db.collection(classInstancesCollection)
+                .whereEqualTo("courseId", courseId)
+                .orderBy(FieldPath.documentId())
+                .limit(pageSize)
+                .get()
+                .addOnSuccessListener(snapshot -> {
+                    if (snapshot.isEmpty()) {
+                        deleteCourseDocument();
+                        return;
+                    }
+                    List<DocumentReference> classInstanceRefs = new ArrayList<>(snapshot.size());
+                    List<DocumentReference> shardRefs = new ArrayList<>();
+                    List<String> classInstanceIds = new ArrayList<>(snapshot.size());
+                    for (QueryDocumentSnapshot document : snapshot) {
+                        shardRefs.addAll(SeatCounter.shardRefs(document));
+                        classInstanceRefs.add(document.getReference());
+                        classInstanceIds.add(document.getId());
+                    }
+                    boolean lastPage = snapshot.size() < pageSize;
+                    fetchEnrollments(classInstanceIds, shardRefs, classInstanceRefs, lastPage);
+                })
+                .addOnFailureListener(e -> fail("Error getting class instances for course", e));
+    }
+
+    private void fetchEnrollments(List<String> classInstanceIds, List<DocumentReference> shardRefs,
+                                  List<DocumentReference> classInstanceRefs, boolean lastPage) {
+        List<Task<QuerySnapshot>> lookups = new ArrayList<>();
+        for (int from = 0; from < classInstanceIds.size(); from += MAX_WHERE_IN_VALUES) {
+            List<String> chunk = classInstanceIds.subList(from,
+                    Math.min(from + MAX_WHERE_IN_VALUES, classInstanceIds.size()));
+            lookups.add(db.collection(enrollmentsCollection)
+                    .whereIn("classInstanceId", new ArrayList<>(chunk))
+                    .get());
+        }
+
+        Tasks.<QuerySnapshot>whenAllSuccess(lookups)
+                .addOnSuccessListener(snapshots -> {
+                    // Enrollments and seat shards go before their class instances, so a
+                    // partial run never leaves them behind under deleted classes
+                    List<DocumentReference> refs = new ArrayList<>();
+                    for (QuerySnapshot enrollments : snapshots) {
+                        for (QueryDocumentSnapshot document : enrollments) {
+                            refs.add(document.getReference());
+                        }
+                    }
+                    refs.addAll(shardRefs);
+                    refs.addAll(classInstanceRefs);
+
+                    commitAll(refs, () -> {
+                        deletedClassInstanceIds.addAll(classInstanceIds);
+                        if (lastPage) {
+                            deleteCourseDocument();
+                        } else {
+                            fetchPage();
+                        }
+                    });
+                })
+                .addOnFailureListener(e -> fail("Error getting enrollments for class instances", e));
+    }
+
+    private void commitAll(List<DocumentReference> refs, Runnable onDone) {
+        pendingBatches = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        for (int from = 0; from < refs.size(); from += MAX_BATCH_WRITES) {
+            int to = Math.min(from + MAX_BATCH_WRITES, refs.size());
+            WriteBatch batch = db.batch();
+            for (DocumentReference ref : refs.subList(from, to)) {
+                batch.delete(ref);
+            }
+            pendingBatches.add(batch);
+            sizes.add(to - from);
+        }
+        nextBatch = 0;
+        inFlightCommits = 0;
+        commitNext(sizes, onDone);
+    }
+
+    private void commitNext(List<Integer> sizes, Runnable onDone) {
+        while (!failed && inFlightCommits < maxParallelCommits && nextBatch < pendingBatches.size()) {
+            int index = nextBatch++;
+            inFlightCommits++;
+            pendingBatches.get(index).commit()
+                    .addOnSuccessListener(aVoid -> {
+                        inFlightCommits--;
+                        deletedCount += sizes.get(index);
+                        if (progress != null) {
+                            progress.setValue(deletedCount);
+                        }
+                        if (nextBatch >= pendingBatches.size() && inFlightCommits == 0) {
+                            if (!failed) {
+                                onDone.run();
+                            }
+                        } else {
+                            commitNext(sizes, onDone);
+                        }
+                    })
+                    .addOnFailureListener(e -> {
+                        inFlightCommits--;
+                        fail("Error deleting class instances and enrollments", e);
+                    });
+        }
+    }
+
+    private void deleteCourseDocument() {
+        db.collection(coursesCollection)
+                .document(courseId)
+                .delete()
+                .addOnSuccessListener(aVoid -> {
+                    deletedCount++;
+                    if (progress != null) {
+                        progress.setValue(deletedCount);
+                    }
+                    result.setValue(true);
+                    Log.d(TAG, "Deleted course " + courseId + " and " + (deletedCount - 1) + " dependent documents");
+                })
+                .addOnFailureListener(e -> fail("Error deleting course", e));
+    }
+
+    private void fail(String message, Exception e) {
+        Log.e(TAG, message, e);
+        if (!failed) {
+            failed = true;
+            result.setValue(false);
+        }
+    }
+}
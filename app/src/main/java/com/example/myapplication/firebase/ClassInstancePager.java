@@ -0,0 +1,229 @@
+package com.example.myapplication.firebase;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.example.myapplication.model.ClassInstance;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out the results of one class instance search a page at a time, for lists that
+ * grow as the user scrolls.
+ *
+ * Server searches read with a document cursor. Documents that fail the client-side
+ * filter are skipped and reading continues until the page is full, so a broad search
+ * only reads about as many documents as are shown. A server search can be narrowed into
+ * a new pager for a stricter filter over the same query: the rows already loaded are
+ * filtered again, and reading resumes at the same cursor, so refining a search does not
+ * start over. Searches answered from memory or the local read model produce their
+ * whole result once and are sliced into pages.
+ *
+ * Not thread safe; call from the main thread.
+ */
+public class ClassInstancePager {
+    private static final String TAG = "ClassInstancePager";
+
+    /**
+     * Client-side check for criteria the server query does not cover
+     */
+    interface Filter {
+        boolean matches(ClassInstance classInstance);
+    }
+
+    /**
+     * Receives every result once a server search has been read to the end without errors
+     */
+    interface CompletionListener {
+        void onComplete(List<ClassInstance> classInstances);
+    }
+
+    private final int pageSize;
+    private final List<ClassInstance> loaded = new ArrayList<>();
+    private boolean hasMore = true;
+    private boolean loading = false;
+
+    // Server searches
+    private final Query query;
+    private final Filter filter;
+    private final CompletionListener completionListener;
+    private DocumentSnapshot cursor;
+    private boolean serverExhausted = false;
+    private boolean failed = false;
+    // Rows taken over from the pager this one narrows, handed out before reading further
+    private List<ClassInstance> carried = new ArrayList<>();
+
+    // Searches with a precomputed result
+    private final LiveData<List<ClassInstance>> allResults;
+    private List<ClassInstance> remaining;
+
+    /**
+     * Page through a server query
+     * @param query Query ordered as results should be shown, without limit or cursor
+     * @param filter Check for each document, or null to accept all
+     * @param completionListener Told about the full result once it has all been read, or null
+     */
+    ClassInstancePager(Query query, Filter filter, CompletionListener completionListener, int pageSize) {
+        this.query = query;
+        this.filter = filter;
+        this.completionListener = completionListener;
+        this.allResults = null;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Page through a result that is computed in full
+     * @param allResults LiveData that receives the full result once
+     */
+    ClassInstancePager(LiveData<List<ClassInstance>> allResults, int pageSize) {
+        this.query = null;
+        this.filter = null;
+        this.completionListener = null;
+        this.allResults = allResults;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return true if more pages may follow the ones loaded so far
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    public boolean isLoading() {
+        return loading;
+    }
+
+    /**
+     * @return Number of class instances loaded so far
+     */
+    public int getLoadedCount() {
+        return loaded.size();
+    }
+
+    /**
+     * Continue this server search with a stricter filter, for a refined query. The new
+     * pager starts with the rows loaded so far that pass the filter and then reads on
+     * from where this one stopped. This pager is left unchanged.
+     * @param narrower Check that accepts only rows this pager's filter accepts too
+     * @param completionListener Told about the full result once it has all been read, or null
+     * @return Narrowed pager, or null if this pager is not a server search or is busy
+     */
+    ClassInstancePager narrow(Filter narrower, CompletionListener completionListener) {
+        if (query == null || loading || failed) {
+            return null;
+        }
+        ClassInstancePager pager = new ClassInstancePager(query, narrower, completionListener, pageSize);
+        pager.cursor = cursor;
+        pager.serverExhausted = serverExhausted;
+        // Rows still carried here were read before the cursor too
+        List<ClassInstance> read = new ArrayList<>(loaded);
+        read.addAll(carried);
+        for (ClassInstance classInstance : read) {
+            if (narrower.matches(classInstance)) {
+                pager.carried.add(classInstance);
+            }
+        }
+        pager.hasMore = !pager.carried.isEmpty() || !serverExhausted;
+        return pager;
+    }
+
+    /**
+     * Load the next page. Nothing is loaded while another page is loading or after the
+     * last one.
+     * @return LiveData that receives the page once, empty if there is nothing more
+     */
+    public LiveData<List<ClassInstance>> loadNextPage() {
+        MutableLiveData<List<ClassInstance>> page = new MutableLiveData<>();
+        if (!hasMore || loading) {
+            page.setValue(new ArrayList<>());
+            return page;
+        }
+        loading = true;
+
+        if (query != null) {
+            int end = Math.min(pageSize, carried.size());
+            List<ClassInstance> rows = new ArrayList<>(carried.subList(0, end));
+            carried = carried.subList(end, carried.size());
+            if (rows.size() < pageSize && !serverExhausted) {
+                readServerPage(rows, page);
+            } else {
+                finishPage(rows, page);
+            }
+        } else if (remaining != null) {
+            sliceNextPage(page);
+        } else {
+            allResults.observeForever(results -> {
+                if (remaining == null) {
+                    remaining = results != null ? results : new ArrayList<>();
+                    sliceNextPage(page);
+                }
+            });
+        }
+        return page;
+    }
+
+    private void readServerPage(List<ClassInstance> page, MutableLiveData<List<ClassInstance>> result) {
+        Query pageQuery = query.limit(pageSize);
+        if (cursor != null) {
+            pageQuery = pageQuery.startAfter(cursor);
+        }
+
+        pageQuery.get()
+                .addOnSuccessListener(snapshot -> {
+                    List<DocumentSnapshot> documents = snapshot.getDocuments();
+                    int used = 0;
+                    while (used < documents.size() && page.size() < pageSize) {
+                        // The next read resumes after the last document used, even mid-batch
+                        DocumentSnapshot document = documents.get(used++);
+                        cursor = document;
+                        ClassInstance classInstance = document.toObject(ClassInstance.class);
+                        if (classInstance != null && (filter == null || filter.matches(classInstance))) {
+                            classInstance.markClean();
+                            page.add(classInstance);
+                        }
+                    }
+                    if (documents.size() < pageSize && used == documents.size()) {
+                        serverExhausted = true;
+                    }
+                    if (!serverExhausted && page.size() < pageSize) {
+                        readServerPage(page, result);
+                    } else {
+                        finishPage(page, result);
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error loading page of class instances", e);
+                    failed = true;
+                    serverExhausted = true;
+                    finishPage(page, result);
+                });
+    }
+
+    private void sliceNextPage(MutableLiveData<List<ClassInstance>> result) {
+        int end = Math.min(pageSize, remaining.size());
+        List<ClassInstance> page = new ArrayList<>(remaining.subList(0, end));
+        remaining = remaining.subList(end, remaining.size());
+        hasMore = !remaining.isEmpty();
+        finishPage(page, result);
+    }
+
+    private void finishPage(List<ClassInstance> page, MutableLiveData<List<ClassInstance>> result) {
+        loaded.addAll(page);
+        loading = false;
+        if (query != null) {
+            hasMore = !carried.isEmpty() || !serverExhausted;
+        }
+        if (!hasMore && !failed && completionListener != null) {
+            completionListener.onComplete(loaded);
+        }
+        Log.d(TAG, "Loaded page of " + page.size() + " class instances, " + loaded.size() + " in total"
+                + (hasMore ? "" : ", no more"));
+        result.setValue(page);
+    }
+}
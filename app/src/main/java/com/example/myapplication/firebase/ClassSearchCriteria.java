@@ -0,0 +1,124 @@
+package com.example.myapplication.firebase;
+
+import java.util.Date;
+
+/**
+ * Combined search criteria for class instances. Every criterion is optional; a class
+ * instance matches when it satisfies all that are set.
+ *
+ * Teacher, date range and cancelled status apply to the class instance itself; weekday,
+ * course type and price band apply to its course.
+ */
+public class ClassSearchCriteria {
+    public static final int DEFAULT_LIMIT = 500;
+
+    private String teacher;
+    private Date fromDate;
+    private Date toDate;
+    private String dayOfWeek;
+    private String courseType;
+    private Double minPrice;
+    private Double maxPrice;
+    private Boolean cancelled;
+    private int limit = DEFAULT_LIMIT;
+
+    /**
+     * @param teacher Words that must each start a word of the teacher name, ignoring case
+     */
+    public ClassSearchCriteria setTeacher(String teacher) {
+        this.teacher = teacher;
+        return this;
+    }
+
+    /**
+     * @param fromDate First instant to include, or null for no lower bound
+     * @param toDate Last instant to include, or null for no upper bound
+     */
+    public ClassSearchCriteria setDateRange(Date fromDate, Date toDate) {
+        this.fromDate = fromDate;
+        this.toDate = toDate;
+        return this;
+    }
+
+    /**
+     * @param dayOfWeek Course day name, matched case-insensitively
+     */
+    public ClassSearchCriteria setDayOfWeek(String dayOfWeek) {
+        this.dayOfWeek = dayOfWeek;
+        return this;
+    }
+
+    public ClassSearchCriteria setCourseType(String courseType) {
+        this.courseType = courseType;
+        return this;
+    }
+
+    /**
+     * @param minPrice Lowest course price to include, or null for no lower bound
+     * @param maxPrice Highest course price to include, or null for no upper bound
+     */
+    public ClassSearchCriteria setPriceRange(Double minPrice, Double maxPrice) {
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        return this;
+    }
+
+    /**
+     * @param cancelled true for only cancelled classes, false for only running ones
+     */
+    public ClassSearchCriteria setCancelled(Boolean cancelled) {
+        this.cancelled = cancelled;
+        return this;
+    }
+
+    /**
+     * @param limit Maximum number of results
+     */
+    public ClassSearchCriteria setLimit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public String getTeacher() {
+        return teacher;
+    }
+
+    public Date getFromDate() {
+        return fromDate;
+    }
+
+    public Date getToDate() {
+        return toDate;
+    }
+
+    public String getDayOfWeek() {
+        return dayOfWeek;
+    }
+
+    public String getCourseType() {
+        return courseType;
+    }
+
+    public Double getMinPrice() {
+        return minPrice;
+    }
+
+    public Double getMaxPrice() {
+        return maxPrice;
+    }
+
+    public Boolean getCancelled() {
+        return cancelled;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return true if any criterion applies to the course rather than the class instance
+     */
+    public boolean hasCourseCriteria() {
+        return dayOfWeek != null || courseType != null || minPrice != null || maxPrice != null;
+    }
+}
@@ -0,0 +1,343 @@
+package com.example.myapplication.firebase;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.example.myapplication.model.ClassInstance;
+import com.example.myapplication.model.Course;
+import com.example.myapplication.utils.EpochDays;
+import com.example.myapplication.utils.SearchTokens;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.AggregateQuerySnapshot;
+import com.google.firebase.firestore.AggregateSource;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs one {@link ClassSearchCriteria} search over class instances.
+ *
+ * Course criteria are resolved first into a set of course IDs, from a courses query on
+ * one of them with the rest checked locally. Each class instance criterion that
+ * Firestore can index (teacher token, date range, course IDs and cancelled status)
+ * becomes a candidate query, and a count aggregate is run for each to find the one
+ * matching the fewest documents. Only that query is sent to the server; its results are
+ * read a page at a time in date order and every criterion is checked on each document
+ * as it arrives, so only matches are kept and a result cut off at the limit holds the
+ * earliest matches. If counting fails, for example offline, candidates are tried in a
+ * fixed order of typical selectivity. All callbacks run on the main thread.
+ *
+ * Every candidate is ordered by date, so each needs its composite index with date in
+ * firestore.indexes.json.
+ */
+class ClassSearchPlanner {
+    private static final String TAG = "ClassSearchPlanner";
+    private static final int PAGE_SIZE = 300;
+    // Firestore limits the number of values in a whereIn filter
+    private static final int MAX_WHERE_IN_VALUES = 30;
+    // Beyond this many whereIn chunks the course IDs are only checked locally
+    private static final int MAX_COURSE_ID_CHUNKS = 10;
+
+    /**
+     * Server-side plan for one indexable criterion: the union of one or more disjoint
+     * queries, in order of typical selectivity
+     */
+    private static final class Candidate {
+        final String name;
+        final List<Query> queries;
+        long estimate = Long.MAX_VALUE;
+
+        Candidate(String name, List<Query> queries) {
+            this.name = name;
+            this.queries = queries;
+        }
+    }
+
+    private final FirebaseFirestore db;
+    private final String coursesCollection;
+    private final String classInstancesCollection;
+    private final ClassSearchCriteria criteria;
+    private final List<String> teacherWords;
+    // False while older class instances may lack teacherTokens, so they cannot be queried by it
+    private final boolean teacherTokensIndexed;
+    private final MutableLiveData<List<ClassInstance>> result = new MutableLiveData<>();
+    private final List<ClassInstance> matches = new ArrayList<>();
+
+    // Null when there are no course criteria
+    private Set<String> courseIds;
+    private long scanned = 0;
+    // Matches found by the query being read; each query of a union reads up to the limit
+    private int queryMatches = 0;
+
+    ClassSearchPlanner(FirebaseFirestore db, String coursesCollection, String classInstancesCollection,
+                       ClassSearchCriteria criteria, boolean teacherTokensIndexed) {
+        this.db = db;
+        this.coursesCollection = coursesCollection;
+        this.classInstancesCollection = classInstancesCollection;
+        this.criteria = criteria;
+        this.teacherTokensIndexed = teacherTokensIndexed;
+        this.teacherWords = criteria.getTeacher() != null
+                ? SearchTokens.words(criteria.getTeacher()) : Collections.<String>emptyList();
+    }
+
+    /**
+     * @return LiveData with matching class instances ordered by date
+     */
+    LiveData<List<ClassInstance>> run() {
+        if (criteria.hasCourseCriteria()) {
+            resolveCourses();
+        } else {
+            plan();
+        }
+        return result;
+    }
+
+    // Course criteria
+
+    private void resolveCourses() {
+        Query query = db.collection(coursesCollection);
+        String day = canonicalDay(criteria.getDayOfWeek());
+        if (criteria.getDayOfWeek() != null && day == null) {
+            finish("Invalid day of week: " + criteria.getDayOfWeek());
+            return;
+        }
+        // Course type and day are equality filters; the price band only if neither is set
+        if (criteria.getCourseType() != null) {
+            query = query.whereEqualTo("type", criteria.getCourseType());
+        } else if (day != null) {
+            query = query.whereEqualTo("dayOfWeek", day);
+        } else {
+            if (criteria.getMinPrice() != null) {
+                query = query.whereGreaterThanOrEqualTo("price", criteria.getMinPrice());
+            }
+            if (criteria.getMaxPrice() != null) {
+                query = query.whereLessThanOrEqualTo("price", criteria.getMaxPrice());
+            }
+        }
+
+        query.get()
+                .addOnSuccessListener(snapshot -> {
+                    courseIds = new HashSet<>();
+                    for (QueryDocumentSnapshot document : snapshot) {
+                        Course course = document.toObject(Course.class);
+                        if (matchesCourse(course, day)) {
+                            courseIds.add(document.getId());
+                        }
+                    }
+                    if (courseIds.isEmpty()) {
+                        finish("No courses match");
+                    } else {
+                        plan();
+                    }
+                })
+                .addOnFailureListener(e -> fail("Error finding courses for search", e));
+    }
+
+    private boolean matchesCourse(Course course, String day) {
+        if (criteria.getCourseType() != null && !criteria.getCourseType().equals(course.getType())) {
+            return false;
+        }
+        if (day != null && !day.equalsIgnoreCase(course.getDayOfWeek())) {
+            return false;
+        }
+        if (criteria.getMinPrice() != null && course.getPrice() < criteria.getMinPrice()) {
+            return false;
+        }
+        return criteria.getMaxPrice() == null || course.getPrice() <= criteria.getMaxPrice();
+    }
+
+    // Planning
+
+    private void plan() {
+        List<Candidate> candidates = buildCandidates();
+        if (candidates.isEmpty()) {
+            // Nothing indexable; scan the collection in pages
+            execute(new Candidate("full scan", Collections.singletonList(
+                    (Query) db.collection(classInstancesCollection))));
+            return;
+        }
+        if (candidates.size() == 1) {
+            execute(candidates.get(0));
+            return;
+        }
+
+        List<Task<?>> counts = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            for (Query query : candidate.queries) {
+                counts.add(query.count().get(AggregateSource.SERVER));
+            }
+        }
+        Tasks.whenAllComplete(counts).addOnCompleteListener(task -> {
+            int index = 0;
+            for (Candidate candidate : candidates) {
+                long total = 0;
+                for (int i = 0; i < candidate.queries.size(); i++) {
+                    Task<?> count = counts.get(index++);
+                    if (!count.isSuccessful() || total == Long.MAX_VALUE) {
+                        total = Long.MAX_VALUE;
+                    } else {
+                        total += ((AggregateQuerySnapshot) count.getResult()).getCount();
+                    }
+                }
+                candidate.estimate = total;
+            }
+
+            // The first candidate wins ties, so the fixed order applies when counts failed
+            Candidate best = candidates.get(0);
+            for (Candidate candidate : candidates) {
+                if (candidate.estimate < best.estimate) {
+                    best = candidate;
+                }
+            }
+            execute(best);
+        });
+    }
+
+    private List<Candidate> buildCandidates() {
+        Query classInstances = db.collection(classInstancesCollection);
+        List<Candidate> candidates = new ArrayList<>();
+
+        if (!teacherWords.isEmpty() && teacherTokensIndexed) {
+            candidates.add(new Candidate("teacher", Collections.singletonList(
+                    classInstances.whereArrayContains("teacherTokens", SearchTokens.lookupToken(teacherWords)))));
+        }
+        if (courseIds != null && courseIds.size() <= MAX_WHERE_IN_VALUES * MAX_COURSE_ID_CHUNKS) {
+            List<String> ids = new ArrayList<>(courseIds);
+            List<Query> chunks = new ArrayList<>();
+            for (int from = 0; from < ids.size(); from += MAX_WHERE_IN_VALUES) {
+                chunks.add(classInstances.whereIn("courseId",
+                        new ArrayList<>(ids.subList(from, Math.min(from + MAX_WHERE_IN_VALUES, ids.size())))));
+            }
+            candidates.add(new Candidate("course", chunks));
+        }
+        if (criteria.getFromDate() != null || criteria.getToDate() != null) {
+            Query query = classInstances;
+            if (criteria.getFromDate() != null) {
+                query = query.whereGreaterThanOrEqualTo("date", criteria.getFromDate());
+            }
+            if (criteria.getToDate() != null) {
+                query = query.whereLessThanOrEqualTo("date", criteria.getToDate());
+            }
+            candidates.add(new Candidate("date range", Collections.singletonList(query)));
+        }
+        if (criteria.getCancelled() != null) {
+            candidates.add(new Candidate("cancelled", Collections.singletonList(
+                    classInstances.whereEqualTo("cancelled", criteria.getCancelled()))));
+        }
+        return candidates;
+    }
+
+    // Execution
+
+    private void execute(Candidate candidate) {
+        Log.d(TAG, "Searching by " + candidate.name + (candidate.estimate != Long.MAX_VALUE
+                ? " (about " + candidate.estimate + " documents)" : ""));
+        fetchPage(candidate, 0, null);
+    }
+
+    private void fetchPage(Candidate candidate, int queryIndex, DocumentSnapshot cursor) {
+        List<Query> queries = candidate.queries;
+        if (queryIndex >= queries.size()) {
+            finish(null);
+            return;
+        }
+        if (queryMatches >= criteria.getLimit()) {
+            // This query's earliest matches are in; any later ones cannot make the cut
+            queryMatches = 0;
+            fetchPage(candidate, queryIndex + 1, null);
+            return;
+        }
+        // In date order, so stopping at the limit keeps the earliest matches
+        Query query = queries.get(queryIndex)
+                .orderBy("date")
+                .orderBy(FieldPath.documentId())
+                .limit(PAGE_SIZE);
+        if (cursor != null) {
+            query = query.startAfter(cursor);
+        }
+
+        query.get()
+                .addOnSuccessListener(snapshot -> {
+                    DocumentSnapshot last = null;
+                    for (QueryDocumentSnapshot document : snapshot) {
+                        last = document;
+                        scanned++;
+                        ClassInstance classInstance = document.toObject(ClassInstance.class);
+                        if (matches(classInstance)) {
+                            classInstance.markClean();
+                            matches.add(classInstance);
+                            if (++queryMatches >= criteria.getLimit()) {
+                                break;
+                            }
+                        }
+                    }
+                    if (snapshot.size() < PAGE_SIZE) {
+                        queryMatches = 0;
+                        fetchPage(candidate, queryIndex + 1, null);
+                    } else {
+                        fetchPage(candidate, queryIndex, last);
+                    }
+                })
+                .addOnFailureListener(e -> fail("Error searching class instances", e));
+    }
+
+    private boolean matches(ClassInstance classInstance) {
+        if (!teacherWords.isEmpty() && !SearchTokens.matches(teacherWords, classInstance.getTeacherName())) {
+            return false;
+        }
+        if (criteria.getFromDate() != null || criteria.getToDate() != null) {
+            if (classInstance.getDate() == null
+                    || (criteria.getFromDate() != null && classInstance.getDate().before(criteria.getFromDate()))
+                    || (criteria.getToDate() != null && classInstance.getDate().after(criteria.getToDate()))) {
+                return false;
+            }
+        }
+        if (criteria.getCancelled() != null && classInstance.isCancelled() != criteria.getCancelled()) {
+            return false;
+        }
+        return courseIds == null || courseIds.contains(classInstance.getCourseId());
+    }
+
+    private void finish(String reason) {
+        // Unions of several queries come back grouped by query; merge them by date, with
+        // missing dates first as Firestore orders them, and keep the earliest up to the limit
+        Collections.sort(matches, (a, b) -> {
+            if (a.getDate() == null || b.getDate() == null) {
+                return a.getDate() == null ? (b.getDate() == null ? 0 : -1) : 1;
+            }
+            return a.getDate().compareTo(b.getDate());
+        });
+        boolean truncated = matches.size() >= criteria.getLimit();
+        if (matches.size() > criteria.getLimit()) {
+            matches.subList(criteria.getLimit(), matches.size()).clear();
+        }
+        Log.d(TAG, "Found " + matches.size() + " class instances after reading " + scanned
+                + (truncated ? ", stopped at the limit" : "")
+                + (reason != null ? " (" + reason + ")" : ""));
+        result.setValue(matches);
+    }
+
+    private void fail(String message, Exception e) {
+        Log.e(TAG, message, e);
+        result.setValue(new ArrayList<>());
+    }
+
+    private static String canonicalDay(String dayOfWeek) {
+        if (dayOfWeek == null) {
+            return null;
+        }
+        int day = EpochDays.parseDayOfWeek(dayOfWeek);
+        return day < 0 ? null : EpochDays.dayOfWeekName(day);
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.myapplication.firebase;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.example.myapplication.model.CompactCourse;
+import com.example.myapplication.model.Course;
+import com.example.myapplication.utils.SearchTokens;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory trigram index over course name, type and description, for typo-tolerant
+ * search: "vinyas" and "vinyasa flw" both find "Vinyasa Flow".
+ *
+ * Text is folded with {@link SearchTokens} and every word is split into trigrams padded
+ * at the word edges. A course matches when at least half of the query's trigrams occur
+ * in it, and matches are ranked by the number of shared trigrams, each weighted by the
+ * best field it occurs in (name highest), then by shortest name. Posting lists are plain
+ * int arrays; changed and deleted courses leave dead entries behind that are dropped by
+ * a rebuild once they outnumber the live ones.
+ *
+ * Updates and searches run in order on one background thread, so a search always sees
+ * every update made before it.
+ */
+public class CourseSearchIndex {
+    private static final String TAG = "CourseSearchIndex";
+
+    private static final int FIELD_NAME = 0;
+    private static final int FIELD_TYPE = 1;
+    private static final int FIELD_DESCRIPTION = 2;
+    private static final int[] FIELD_WEIGHTS = {3, 2, 1};
+    private static final float MIN_MATCHED_TRIGRAMS = 0.5f;
+    private static final int MIN_DEAD_FOR_REBUILD = 1024;
+
+    /**
+     * Growable list of posting entries, each (document << 2 | field)
+     */
+    private static final class Postings {
+        int[] entries = new int[4];
+        int size;
+
+        void add(int entry) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = entry;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // Index state; only touched on the executor thread
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<String, Integer> docsById = new HashMap<>();
+    private final List<CompactCourse> docs = new ArrayList<>();
+    // Name length in trigrams per document, so closer name matches rank first on ties
+    private final Postings nameLengths = new Postings();
+    private int deadDocs = 0;
+    private volatile boolean populated = false;
+
+    /**
+     * Add or replace a course
+     */
+    public void put(CompactCourse course) {
+        if (course == null || course.getId() == null) {
+            return;
+        }
+        executor.execute(() -> {
+            Integer doc = docsById.get(course.getId());
+            if (doc != null && sameText(docs.get(doc), course)) {
+                // Reloads usually leave the indexed text unchanged
+                docs.set(doc, course);
+                return;
+            }
+            removeDoc(course.getId());
+            addDoc(course);
+        });
+    }
+
+    /**
+     * Remove a course
+     */
+    public void remove(String courseId) {
+        executor.execute(() -> removeDoc(courseId));
+    }
+
+    /**
+     * Remove every course
+     */
+    public void clear() {
+        populated = false;
+        executor.execute(() -> {
+            postings.clear();
+            docsById.clear();
+            docs.clear();
+            nameLengths.size = 0;
+            deadDocs = 0;
+        });
+    }
+
+    /**
+     * Record that the full course list has been added, so the index can answer searches
+     * on its own
+     */
+    public void markPopulated() {
+        populated = true;
+    }
+
+    public boolean isPopulated() {
+        return populated;
+    }
+
+    /**
+     * Find the best matching courses
+     * @param query Free text
+     * @param limit Maximum number of results
+     * @return LiveData with matching courses, best first
+     */
+    public LiveData<List<Course>> search(String query, int limit) {
+        MutableLiveData<List<Course>> result = new MutableLiveData<>();
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            List<Course> courses = topMatches(query, limit);
+            Log.d(TAG, "Found " + courses.size() + " courses for \"" + query + "\" in "
+                    + (System.nanoTime() - start) / 1000 + " us");
+            result.postValue(courses);
+        });
+        return result;
+    }
+
+    private List<Course> topMatches(String query, int limit) {
+        List<String> queryTrigrams = new ArrayList<>(trigrams(query));
+        if (queryTrigrams.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        int docCount = docs.size();
+        int[] scores = new int[docCount];
+        int[] hits = new int[docCount];
+        int[] lastHit = new int[docCount];
+        int[] lastWeight = new int[docCount];
+        Arrays.fill(lastHit, -1);
+        for (int q = 0; q < queryTrigrams.size(); q++) {
+            Postings list = postings.get(queryTrigrams.get(q));
+            if (list == null) {
+                continue;
+            }
+            // Each query trigram counts once per course, with its best field's weight
+            for (int i = 0; i < list.size; i++) {
+                int doc = list.entries[i] >>> 2;
+                int weight = FIELD_WEIGHTS[list.entries[i] & 3];
+                if (lastHit[doc] != q) {
+                    lastHit[doc] = q;
+                    lastWeight[doc] = weight;
+                    scores[doc] += weight;
+                    hits[doc]++;
+                } else if (weight > lastWeight[doc]) {
+                    scores[doc] += weight - lastWeight[doc];
+                    lastWeight[doc] = weight;
+                }
+            }
+        }
+
+        // Keep the best matches in a min-heap of size limit
+        int minHits = Math.max(1, (int) Math.ceil(queryTrigrams.size() * MIN_MATCHED_TRIGRAMS));
+        PriorityQueue<Integer> best = new PriorityQueue<>(limit + 1,
+                (a, b) -> {
+                    if (scores[a] != scores[b]) {
+                        return Integer.compare(scores[a], scores[b]);
+                    }
+                    int lengths = Integer.compare(nameLengths.entries[b], nameLengths.entries[a]);
+                    return lengths != 0 ? lengths : Integer.compare(b, a);
+                });
+        for (int doc = 0; doc < docCount; doc++) {
+            if (hits[doc] < minHits || docs.get(doc) == null) {
+                continue;
+            }
+            best.add(doc);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+
+        List<Course> courses = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            courses.add(docs.get(best.poll()).toCourse());
+        }
+        Collections.reverse(courses);
+        return courses;
+    }
+
+    private void addDoc(CompactCourse course) {
+        int doc = docs.size();
+        docs.add(course);
+        docsById.put(course.getId(), doc);
+        nameLengths.add(index(doc, FIELD_NAME, course.getName()));
+        index(doc, FIELD_TYPE, course.getType());
+        index(doc, FIELD_DESCRIPTION, course.getDescription());
+    }
+
+    private int index(int doc, int field, String text) {
+        Set<String> trigrams = trigrams(text);
+        for (String trigram : trigrams) {
+            Postings list = postings.get(trigram);
+            if (list == null) {
+                list = new Postings();
+                postings.put(trigram, list);
+            }
+            list.add(doc << 2 | field);
+        }
+        return trigrams.size();
+    }
+
+    private void removeDoc(String courseId) {
+        Integer doc = docsById.remove(courseId);
+        if (doc == null) {
+            return;
+        }
+        docs.set(doc, null);
+        deadDocs++;
+        if (deadDocs >= MIN_DEAD_FOR_REBUILD && deadDocs > docs.size() - deadDocs) {
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        List<CompactCourse> live = new ArrayList<>(docs.size() - deadDocs);
+        for (CompactCourse course : docs) {
+            if (course != null) {
+                live.add(course);
+            }
+        }
+        postings.clear();
+        docsById.clear();
+        docs.clear();
+        nameLengths.size = 0;
+        deadDocs = 0;
+        for (CompactCourse course : live) {
+            addDoc(course);
+        }
+        Log.d(TAG, "Rebuilt index with " + live.size() + " courses");
+    }
+
+    private static boolean sameText(CompactCourse first, CompactCourse second) {
+        return Objects.equals(first.getName(), second.getName())
+                && Objects.equals(first.getType(), second.getType())
+                && Objects.equals(first.getDescription(), second.getDescription());
+    }
+
+    /**
+     * @return Distinct trigrams of the folded words of the text, each word padded with
+     *         two leading spaces and one trailing space, so short words and word starts count
+     */
+    private static Set<String> trigrams(String text) {
+        Set<String> trigrams = new HashSet<>();
+        for (String word : SearchTokens.words(text)) {
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                trigrams.add(padded.substring(i, i + 3));
+            }
+        }
+        return trigrams;
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.myapplication.firebase;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Completion flags of one-off data migrations.
+ *
+ * Migrations are run once by an administrator through
+ * {@link FirebaseService#runDataMigrations()}, never by every installation. Each records
+ * its completion as a field of the meta/migrations document, and clients keep using the
+ * legacy fallback a migration replaces until they have seen its flag. Flags only ever
+ * turn on, so once seen they are remembered on the device and not read again.
+ */
+public class DataMigrations {
+    private static final String TAG = "DataMigrations";
+    private static final String META_COLLECTION = "meta";
+    private static final String MIGRATIONS_DOCUMENT = "migrations";
+    private static final String PREFS = "migrations";
+
+    /**
+     * Every enrollment is stored under its deterministic user and class instance ID
+     */
+    public static final String ENROLLMENT_IDS = "enrollmentIds";
+
+    /**
+     * Every class instance carries the teacherTokens search field
+     */
+    public static final String TEACHER_TOKENS = "teacherTokens";
+
+    private static final String[] ALL = {ENROLLMENT_IDS, TEACHER_TOKENS};
+
+    private static DataMigrations instance;
+
+    private final SharedPreferences prefs;
+    private final Set<String> completed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private DataMigrations(Context context) {
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        for (String name : ALL) {
+            if (prefs.getBoolean(name, false)) {
+                completed.add(name);
+            }
+        }
+    }
+
+    /**
+     * Load the remembered flags and read any others from the server. Called once from
+     * the Application.
+     * @param context Application context
+     */
+    public static synchronized void initialize(Context context) {
+        if (instance == null) {
+            instance = new DataMigrations(context.getApplicationContext());
+            instance.refresh(FirebaseFirestore.getInstance());
+        }
+    }
+
+    /**
+     * @return The flags, or null if {@link #initialize(Context)} has not been called
+     */
+    public static synchronized DataMigrations getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param name Migration name, e.g. {@link #ENROLLMENT_IDS}
+     * @return true if the migration is known to have completed; false if it has not, or
+     *         if that is not known yet
+     */
+    public static boolean isComplete(String name) {
+        DataMigrations migrations = getInstance();
+        return migrations != null && migrations.completed.contains(name);
+    }
+
+    /**
+     * Read the flags not seen yet from the server. Does nothing once all are set.
+     * @param db Firestore instance
+     */
+    public void refresh(FirebaseFirestore db) {
+        if (completed.size() == ALL.length) {
+            return;
+        }
+        db.collection(META_COLLECTION)
+                .document(MIGRATIONS_DOCUMENT)
+                .get()
+                .addOnSuccessListener(document -> {
+                    for (String name : ALL) {
+                        if (Boolean.TRUE.equals(document.getBoolean(name))) {
+                            remember(name);
+                        }
+                    }
+                })
+                .addOnFailureListener(e -> Log.e(TAG, "Error reading migration flags", e));
+    }
+
+    /**
+     * Record for every client that a migration has completed
+     * @param db Firestore instance
+     * @param name Migration name
+     * @return Task of the flag write
+     */
+    static Task<Void> markComplete(FirebaseFirestore db, String name) {
+        Map<String, Object> flag = new HashMap<>();
+        flag.put(name, true);
+        return db.collection(META_COLLECTION)
+                .document(MIGRATIONS_DOCUMENT)
+                .set(flag, SetOptions.merge())
+                .addOnSuccessListener(aVoid -> {
+                    DataMigrations migrations = getInstance();
+                    if (migrations != null) {
+                        migrations.remember(name);
+                    }
+                    Log.d(TAG, "Migration completed: " + name);
+                });
+    }
+
+    private void remember(String name) {
+        if (completed.add(name)) {
+            prefs.edit().putBoolean(name, true).apply();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.example.myapplication.firebase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe in-memory cache used by FirebaseService.
+ *
+ * Entries are weighed on insertion and the cache never holds more than the configured
+ * total weight. Every entry carries an expiry time, and admission of new keys is guarded
+ * by a small frequency sketch so that a scan of cold documents (e.g. loading the whole
+ * course list once) cannot push frequently read documents out of the cache.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class EntityCache<K, V> {
+
+    /**
+     * Computes the approximate retained size of a cached value
+     */
+    public interface Weigher<V> {
+        int weigh(V value);
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final int weight;
+        final long expiresAt;
+
+        Entry(V value, int weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    // Access-ordered so that iteration starts at the least recently used entry
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private final Weigher<V> weigher;
+    private final long maxWeight;
+    private final long defaultTtlMillis;
+    private long totalWeight = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long rejectionCount = 0;
+
+    /**
+     * @param maxWeight Maximum total weight held by the cache
+     * @param defaultTtlMillis Time to live applied by {@link #put(Object, Object)}
+     * @param expectedSize Expected number of entries, used to size the frequency sketch
+     * @param weigher Weigher for values, or null to count every entry as 1
+     */
+    public EntityCache(long maxWeight, long defaultTtlMillis, int expectedSize, Weigher<V> weigher) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be positive");
+        }
+        this.maxWeight = maxWeight;
+        this.defaultTtlMillis = defaultTtlMillis;
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(Math.max(16, expectedSize));
+    }
+
+    /**
+     * Get a cached value
+     * @param key Key to look up
+     * @return Cached value, or null if absent or expired
+     */
+    public synchronized V get(K key) {
+        sketch.increment(key);
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        if (entry.isExpired(now())) {
+            removeEntry(key);
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    public synchronized boolean containsKey(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null && !entry.isExpired(now());
+    }
+
+    /**
+     * Cache a value using the default time to live
+     * @return true if the value was admitted to the cache
+     */
+    public boolean put(K key, V value) {
+        return put(key, value, defaultTtlMillis);
+    }
+
+    /**
+     * Cache a value with an explicit time to live
+     * @param key Key
+     * @param value Value
+     * @param ttlMillis Time to live in milliseconds
+     * @return true if the value was admitted to the cache
+     */
+    public synchronized boolean put(K key, V value, long ttlMillis) {
+        if (key == null || value == null) {
+            return false;
+        }
+        sketch.increment(key);
+
+        int weight = weigher != null ? Math.max(1, weigher.weigh(value)) : 1;
+        long now = now();
+        Entry<V> previous = entries.remove(key);
+        if (previous != null) {
+            totalWeight -= previous.weight;
+        }
+
+        if (weight > maxWeight) {
+            rejectionCount++;
+            return false;
+        }
+
+        // Updates of resident keys are always admitted; new keys must beat the victims
+        if (!makeRoom(key, weight, previous != null, now)) {
+            rejectionCount++;
+            return false;
+        }
+
+        entries.put(key, new Entry<>(value, weight, now + ttlMillis));
+        totalWeight += weight;
+        return true;
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> entry = removeEntry(key);
+        return entry != null ? entry.value : null;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    /**
+     * Shrink the cache to a fraction of its maximum weight, dropping expired entries first
+     * and then the least recently used ones
+     * @param fraction Target fraction of the maximum weight, between 0 and 1
+     */
+    public synchronized void trimTo(float fraction) {
+        if (fraction <= 0f) {
+            clear();
+            return;
+        }
+        long target = (long) (maxWeight * Math.min(1f, fraction));
+        removeExpired(now());
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (totalWeight > target && iterator.hasNext()) {
+            Map.Entry<K, Entry<V>> eldest = iterator.next();
+            totalWeight -= eldest.getValue().weight;
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Snapshot of all live values, in least-recently-used order
+     */
+    public synchronized List<V> values() {
+        long now = now();
+        List<V> values = new ArrayList<>(entries.size());
+        for (Entry<V> entry : entries.values()) {
+            if (!entry.isExpired(now)) {
+                values.add(entry.value);
+            }
+        }
+        return values;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return totalWeight;
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized String stats() {
+        return "size=" + entries.size()
+                + ", weight=" + totalWeight + "/" + maxWeight
+                + ", hits=" + hitCount
+                + ", misses=" + missCount
+                + ", evictions=" + evictionCount
+                + ", rejections=" + rejectionCount;
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private boolean makeRoom(K candidate, int weight, boolean resident, long now) {
+        if (totalWeight + weight <= maxWeight) {
+            return true;
+        }
+        removeExpired(now);
+
+        // Collect victims from the LRU end before evicting so that a rejected
+        // candidate leaves the cache untouched
+        List<K> victims = new ArrayList<>();
+        long freed = 0;
+        int candidateFrequency = sketch.frequency(candidate);
+        for (Map.Entry<K, Entry<V>> e : entries.entrySet()) {
+            if (totalWeight - freed + weight <= maxWeight) {
+                break;
+            }
+            if (!resident && sketch.frequency(e.getKey()) > candidateFrequency) {
+                return false;
+            }
+            victims.add(e.getKey());
+            freed += e.getValue().weight;
+        }
+        for (K victim : victims) {
+            removeEntry(victim);
+            evictionCount++;
+        }
+        return totalWeight + weight <= maxWeight;
+    }
+
+    private void removeExpired(long now) {
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<V> entry = iterator.next().getValue();
+            if (entry.isExpired(now)) {
+                totalWeight -= entry.weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    private Entry<V> removeEntry(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            totalWeight -= entry.weight;
+        }
+        return entry;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters with periodic halving, so that frequencies
+     * reflect recent popularity rather than all-time totals
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int expectedSize) {
+            int width = Integer.highestOneBit(expectedSize - 1) << 1;
+            table = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = indexOf(hash, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][indexOf(hash, i)]);
+            }
+            return min;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = (byte) (row[j] >> 1);
+                }
+            }
+            additions /= 2;
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 16;
+            h *= 0x45D9F3B;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.myapplication.firebase;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkCapabilities;
@@ -12,29 +13,51 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
 import com.example.myapplication.model.ClassInstance;
+import com.example.myapplication.model.CompactClassInstance;
+import com.example.myapplication.model.CompactCourse;
 import com.example.myapplication.model.Course;
+import com.example.myapplication.model.DirtyTracking;
 import com.example.myapplication.model.Enrollment;
+import com.example.myapplication.utils.EpochDays;
+import com.example.myapplication.utils.SearchTokens;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 import com.google.firebase.firestore.CollectionReference;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
 import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.firebase.firestore.FirebaseFirestoreSettings;
 import com.google.firebase.firestore.Query;
 import com.google.firebase.firestore.QueryDocumentSnapshot;
 import com.google.firebase.firestore.Source;
 import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
 import com.google.firebase.firestore.WriteBatch;
 
+import java.io.File;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Service class to handle all Firebase Firestore operations
@@ -44,13 +67,104 @@ public class FirebaseService {
     private static final String COURSES_COLLECTION = "courses";
     private static final String CLASS_INSTANCES_COLLECTION = "classInstances";
 
+    // Firestore rejects batches with more than 500 writes
+    private static final int MAX_BATCH_WRITES = 500;
+    // Firestore limits the number of values in a whereIn filter
+    private static final int MAX_WHERE_IN_VALUES = 30;
+
+    // Course cache limits; weights are approximate retained bytes
+    private static final long COURSE_CACHE_MAX_WEIGHT = 2 * 1024 * 1024;
+    private static final long COURSE_CACHE_TTL_MILLIS = 10 * 60 * 1000;
+    private static final int COURSE_CACHE_EXPECTED_SIZE = 1024;
+
+    // Per-course class instance cache limits
+    private static final long CLASS_INSTANCES_CACHE_MAX_WEIGHT = 2 * 1024 * 1024;
+    private static final long CLASS_INSTANCES_CACHE_TTL_MILLIS = 5 * 60 * 1000;
+    private static final int CLASS_INSTANCES_CACHE_EXPECTED_SIZE = 256;
+
+    // Teacher search results per index token, reused for longer queries while typing
+    private static final long TEACHER_SEARCH_CACHE_MAX_WEIGHT = 1024 * 1024;
+    private static final long TEACHER_SEARCH_CACHE_TTL_MILLIS = 60 * 1000;
+    private static final int TEACHER_SEARCH_CACHE_EXPECTED_SIZE = 64;
+
+    // Negative cache for document IDs the server reported as missing
+    private static final long MISSING_CACHE_MAX_ENTRIES = 1024;
+    private static final long MISSING_CACHE_TTL_MILLIS = 30 * 1000;
+
     private static FirebaseService instance;
     private final FirebaseFirestore db;
     
     // Cache for frequently accessed data
-    private final Map<String, Course> courseCache = new HashMap<>();
-    private final Map<String, List<ClassInstance>> classInstancesCache = new HashMap<>();
+    private final EntityCache<String, CompactCourse> courseCache = new EntityCache<>(
+            COURSE_CACHE_MAX_WEIGHT, COURSE_CACHE_TTL_MILLIS, COURSE_CACHE_EXPECTED_SIZE,
+            CompactCourse::estimateRetainedBytes);
+    // Typo-tolerant text search over every course seen; unlike the cache it is not evicted
+    private final CourseSearchIndex courseSearchIndex = new CourseSearchIndex();
+    private final EntityCache<String, List<CompactClassInstance>> classInstancesCache = new EntityCache<>(
+            CLASS_INSTANCES_CACHE_MAX_WEIGHT, CLASS_INSTANCES_CACHE_TTL_MILLIS,
+            CLASS_INSTANCES_CACHE_EXPECTED_SIZE, FirebaseService::estimateClassInstancesWeight);
+    // Unfiltered server results of teacher searches, keyed by the teacherTokens value queried
+    private final EntityCache<String, List<CompactClassInstance>> teacherSearchCache = new EntityCache<>(
+            TEACHER_SEARCH_CACHE_MAX_WEIGHT, TEACHER_SEARCH_CACHE_TTL_MILLIS,
+            TEACHER_SEARCH_CACHE_EXPECTED_SIZE, FirebaseService::estimateClassInstancesWeight);
+    
+    // IDs known not to exist, so stale references do not cost two reads per lookup
+    private final EntityCache<String, Boolean> missingCourses = new EntityCache<>(
+            MISSING_CACHE_MAX_ENTRIES, MISSING_CACHE_TTL_MILLIS, 256, null);
+    private final EntityCache<String, Boolean> missingClassInstances = new EntityCache<>(
+            MISSING_CACHE_MAX_ENTRIES, MISSING_CACHE_TTL_MILLIS, 256, null);
+    
+    // In-flight document fetches, keyed by document ID
+    private final SingleFlight<Course> courseRequests =
+            new SingleFlight<>(course -> CompactCourse.from(course).toCourse());
+    private final SingleFlight<ClassInstance> classInstanceRequests =
+            new SingleFlight<>(classInstance -> CompactClassInstance.from(classInstance).toClassInstance());
+    private final SingleFlight<List<CompactClassInstance>> teacherSearchRequests = new SingleFlight<>();
+    
+    // Shared snapshot listeners for screens that observe query results
+    private final LiveQueryHub liveQueryHub = new LiveQueryHub();
+
+    // Transactional seat counts for enrollments
+    private final SeatCounter seatCounter;
+
+    // Coalesces bursts of whole-document course rewrites into batched commits
+    private final WriteBehindQueue courseWrites;
+
+    // Paged deletion used by resetAllData; keeps its position for resuming
+    private static final int RESET_PAGE_SIZE = 400;
+    private static final int RESET_MAX_PARALLEL_COMMITS = 4;
+    private final BulkDeleter resetDeleter;
+    private static final int IMPORT_MAX_PARALLEL_COMMITS = 8;
+    private static final int EXPORT_PAGE_SIZE = 500;
+    private static final String BOOKINGS_COLLECTION = "bookings";
+
+    // Class instances per page when reading a date range
+    private static final int DATE_RANGE_PAGE_SIZE = 500;
+
+    // Documents per page in data migrations; each page's transactions run at once
+    private static final int MIGRATION_PAGE_SIZE = 100;
+
+    // Cascading course delete: class instances per page, and commits in flight
+    private static final int COURSE_DELETE_PAGE_SIZE = 300;
+    private static final int COURSE_DELETE_MAX_PARALLEL_COMMITS = 4;
+    
+    // Local SQLite mirror used to answer searches; null if the app did not create one
+    private final LocalReadModel localReadModel;
+    private final ExecutorService localReadExecutor = Executors.newFixedThreadPool(2);
     private boolean persistenceEnabled = false;
+    
+    // Stale-while-revalidate policy for the course list
+    private static final long DEFAULT_COURSE_LIST_MAX_STALENESS_MILLIS = 60 * 1000;
+    private volatile long courseListMaxStalenessMillis = DEFAULT_COURSE_LIST_MAX_STALENESS_MILLIS;
+    private volatile long courseListRevalidatedAt = 0;
+
+    // Last single-word teacher pager, narrowed for refinements of its word; main thread only
+    private ClassInstancePager lastTeacherPager;
+    private String lastTeacherPagerWord;
+    private long lastTeacherPagerCreatedAt;
+
+    // Guards runDataMigrations, which may be started again before a previous run finishes
+    private final AtomicBoolean dataMigrationsRunning = new AtomicBoolean(false);
 
     private FirebaseService() {
         db = FirebaseFirestore.getInstance();
@@ -62,6 +176,17 @@ public class FirebaseService {
                 .build();
         db.setFirestoreSettings(settings);
         persistenceEnabled = true;
+        courseWrites = new WriteBehindQueue(db);
+        seatCounter = new SeatCounter(db);
+        // Children first, so an interrupted reset never leaves enrollments for deleted classes
+        resetDeleter = new BulkDeleter(db, Arrays.asList(
+                ENROLLMENTS_COLLECTION, CLASS_INSTANCES_COLLECTION, COURSES_COLLECTION));
+        
+        // Keep the local read model current from snapshot listeners
+        localReadModel = LocalReadModel.getInstance();
+        if (localReadModel != null) {
+            localReadModel.attach(db);
+        }
     }
 
     public static synchronized FirebaseService getInstance() {
@@ -77,8 +202,61 @@ public class FirebaseService {
     public void clearCache() {
         courseCache.clear();
         classInstancesCache.clear();
+        teacherSearchCache.clear();
+        lastTeacherPager = null;
+        missingCourses.clear();
+        missingClassInstances.clear();
         Log.d(TAG, "Cache cleared");
     }
+
+    /**
+     * Release cached data in response to a memory pressure signal
+     * @param level Trim level from {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(int level) {
+        // The process may be killed once in the background, so write pending edits now
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            courseWrites.flush();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clearCache();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            courseCache.trimTo(0.25f);
+            classInstancesCache.trimTo(0.25f);
+            teacherSearchCache.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            courseCache.trimTo(0.5f);
+            classInstancesCache.trimTo(0.5f);
+            teacherSearchCache.trimTo(0.5f);
+        }
+        Log.d(TAG, "Trimmed cache for level " + level + ": " + getCacheStats());
+    }
+
+    /**
+     * Describe cache and request coalescing counters, for diagnostics
+     * @return Human readable statistics
+     */
+    public String getCacheStats() {
+        return "courses [" + courseCache.stats() + "], course fetches [" + courseRequests.stats()
+                + "], class instances [" + classInstancesCache.stats()
+                + "], class instance fetches [" + classInstanceRequests.stats()
+                + "], course writes [" + courseWrites.stats() + "]";
+    }
+
+    /**
+     * Forward a memory pressure signal to the service if it has been created
+     * @param level Trim level from {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public static void trimMemory(int level) {
+        FirebaseService service;
+        synchronized (FirebaseService.class) {
+            service = instance;
+        }
+        if (service != null) {
+            service.onTrimMemory(level);
+        }
+    }
     
     /**
      * Checks if the device is currently online
@@ -123,7 +301,8 @@ public class FirebaseService {
                 .addOnSuccessListener(documentReference -> {
                     course.setId(documentReference.getId());
                     // Add to cache
-                    courseCache.put(documentReference.getId(), course);
+                    putCourse(CompactCourse.from(course));
+                    missingCourses.remove(documentReference.getId());
                     result.setValue(true);
                     Log.d(TAG, "Course added with ID: " + documentReference.getId());
                 })
@@ -139,60 +318,81 @@ public class FirebaseService {
         MutableLiveData<Boolean> result = new MutableLiveData<>();
         
         // Update cache first for immediate UI response
-        courseCache.put(course.getId(), course);
+        CompactCourse previous = courseCache.get(course.getId());
+        CompactCourse snapshot = CompactCourse.from(course);
+        putCourse(snapshot);
+        missingCourses.remove(course.getId());
         
-        db.collection(COURSES_COLLECTION)
-                .document(course.getId())
-                .set(course)
-                .addOnSuccessListener(aVoid -> {
-                    result.setValue(true);
-                    Log.d(TAG, "Course updated successfully");
-                })
-                .addOnFailureListener(e -> {
-                    // Remove from cache if update fails
+        if (course.isTracked() && !course.isDirty()) {
+            result.setValue(true);
+            return result;
+        }
+        
+        // Loaded courses send only their changed fields; others are rewritten from a copy,
+        // so later edits by the caller do not leak into the pending write
+        DocumentReference courseRef = db.collection(COURSES_COLLECTION).document(course.getId());
+        Map<String, Object> changes = course.getChanges();
+        LiveData<Boolean> write = course.isTracked()
+                ? courseWrites.update(courseRef, changes)
+                : courseWrites.set(courseRef, snapshot.toCourse());
+        write.observeForever(success -> {
+            if (success) {
+                // Only once saved, so a failed write is sent again on retry
+                markCleanIfUnchanged(course, changes);
+                Log.d(TAG, "Course updated successfully");
+            } else {
+                // Put back the saved version, so neither the cache nor the search index
+                // keeps the unsaved text
+                if (previous != null) {
+                    putCourse(previous);
+                } else {
                     courseCache.remove(course.getId());
-                    result.setValue(false);
-                    Log.e(TAG, "Error updating course", e);
-                });
+                    courseSearchIndex.remove(course.getId());
+                }
+                Log.e(TAG, "Error updating course");
+            }
+            result.setValue(success);
+        });
         
         return result;
     }
 
     public LiveData<Boolean> deleteCourse(String courseId) {
+        return deleteCourse(courseId, null);
+    }
+
+    /**
+     * Delete a course with all of its class instances and their enrollments.
+     * Large courses are deleted in pages; if it fails part way, deleting again finishes the job.
+     * @param courseId Course ID
+     * @param deletedDocuments Optional LiveData receiving the number of documents deleted so far
+     * @return LiveData with boolean result
+     */
+    public LiveData<Boolean> deleteCourse(String courseId, MutableLiveData<Integer> deletedDocuments) {
         MutableLiveData<Boolean> result = new MutableLiveData<>();
         
-        // First, get all class instances for this course
-        db.collection(CLASS_INSTANCES_COLLECTION)
-                .whereEqualTo("courseId", courseId)
-                .get()
-                .addOnSuccessListener(queryDocumentSnapshots -> {
-                    // Use a batch to delete all class instances and the course
-                    WriteBatch batch = db.batch();
-                    
-                    // Add class instance deletions to batch
-                    for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
-                        batch.delete(document.getReference());
-                    }
-                    
-                    // Add course deletion to batch
-                    DocumentReference courseRef = db.collection(COURSES_COLLECTION).document(courseId);
-                    batch.delete(courseRef);
-                    
-                    // Commit the batch
-                    batch.commit()
-                            .addOnSuccessListener(aVoid -> {
-                                result.setValue(true);
-                                Log.d(TAG, "Course and all its class instances deleted successfully");
-                            })
-                            .addOnFailureListener(e -> {
-                                result.setValue(false);
-                                Log.e(TAG, "Error deleting course and its class instances", e);
-                            });
-                })
-                .addOnFailureListener(e -> {
-                    result.setValue(false);
-                    Log.e(TAG, "Error getting class instances for course", e);
-                });
+        // A pending update must not recreate the course after it is deleted
+        courseWrites.discard(db.collection(COURSES_COLLECTION).document(courseId));
+        
+        CascadingCourseDelete delete = new CascadingCourseDelete(db, COURSES_COLLECTION,
+                CLASS_INSTANCES_COLLECTION, ENROLLMENTS_COLLECTION, courseId,
+                COURSE_DELETE_PAGE_SIZE, COURSE_DELETE_MAX_PARALLEL_COMMITS, deletedDocuments);
+        delete.run().observeForever(success -> {
+            // Drop cached state even after a partial delete
+            courseCache.remove(courseId);
+            classInstancesCache.remove(courseId);
+            for (String classInstanceId : delete.getDeletedClassInstanceIds()) {
+                missingClassInstances.put(classInstanceId, Boolean.TRUE);
+            }
+            if (success) {
+                missingCourses.put(courseId, Boolean.TRUE);
+                courseSearchIndex.remove(courseId);
+                Log.d(TAG, "Course and all its class instances deleted successfully");
+            } else {
+                Log.e(TAG, "Error deleting course and its class instances");
+            }
+            result.setValue(success);
+        });
         
         return result;
     }
@@ -207,13 +407,18 @@ public class FirebaseService {
                     if (!queryDocumentSnapshots.isEmpty()) {
                         List<Course> courses = new ArrayList<>();
                         for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
-                            Course course = document.toObject(Course.class);
+                            Course course = tracked(document.toObject(Course.class));
                             courses.add(course);
                             // Update cache
-                            courseCache.put(course.getId(), course);
+                            putCourse(CompactCourse.from(course));
                         }
                         coursesLiveData.setValue(courses);
                         Log.d(TAG, "Retrieved " + courses.size() + " courses from cache");
+                        
+                        // Serve the cached list now and refresh it in the background if stale
+                        if (isCourseListStale()) {
+                            revalidateCourses(coursesLiveData, courses);
+                        }
                     } else {
                         // If cache is empty, get from server
                         getCoursesFromServer(coursesLiveData);
@@ -233,11 +438,12 @@ public class FirebaseService {
                 .addOnSuccessListener(queryDocumentSnapshots -> {
                     List<Course> courses = new ArrayList<>();
                     for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
-                        Course course = document.toObject(Course.class);
+                        Course course = tracked(document.toObject(Course.class));
                         courses.add(course);
                         // Update cache
-                        courseCache.put(course.getId(), course);
+                        putCourse(CompactCourse.from(course));
                     }
+                    courseListRevalidatedAt = System.currentTimeMillis();
                     coursesLiveData.setValue(courses);
                     Log.d(TAG, "Retrieved " + courses.size() + " courses from server");
                 })
@@ -246,62 +452,173 @@ public class FirebaseService {
                     Log.e(TAG, "Error getting courses from server", e);
                 });
     }
+    
+    /**
+     * Fetch the course list from the server after a cached list has been emitted, and
+     * emit the server list only if it differs from what observers already have
+     * @param coursesLiveData LiveData that received the cached list
+     * @param cachedCourses Cached list already emitted
+     */
+    private void revalidateCourses(MutableLiveData<List<Course>> coursesLiveData, List<Course> cachedCourses) {
+        db.collection(COURSES_COLLECTION)
+                .get(Source.SERVER)
+                .addOnSuccessListener(queryDocumentSnapshots -> {
+                    courseListRevalidatedAt = System.currentTimeMillis();
+                    List<Course> courses = new ArrayList<>();
+                    Set<String> serverIds = new HashSet<>();
+                    for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
+                        Course course = tracked(document.toObject(Course.class));
+                        courses.add(course);
+                        serverIds.add(course.getId());
+                        putCourse(CompactCourse.from(course));
+                    }
+                    
+                    if (sameCourses(cachedCourses, courses)) {
+                        Log.d(TAG, "Cached course list is up to date");
+                        return;
+                    }
+                    
+                    // Forget courses that were deleted on the server
+                    for (Course cached : cachedCourses) {
+                        if (!serverIds.contains(cached.getId())) {
+                            courseCache.remove(cached.getId());
+                            classInstancesCache.remove(cached.getId());
+                            courseSearchIndex.remove(cached.getId());
+                        }
+                    }
+                    coursesLiveData.setValue(courses);
+                    Log.d(TAG, "Revalidated course list changed, emitted " + courses.size() + " courses");
+                })
+                .addOnFailureListener(e -> {
+                    // Keep showing the cached list; the next call will try again
+                    Log.w(TAG, "Error revalidating courses with server", e);
+                });
+    }
+    
+    /**
+     * Set how old the course list may be before getAllCourses revalidates it with the
+     * server in the background. Zero revalidates on every call.
+     * @param maxStalenessMillis Maximum staleness in milliseconds
+     */
+    public void setCourseListMaxStaleness(long maxStalenessMillis) {
+        courseListMaxStalenessMillis = Math.max(0, maxStalenessMillis);
+    }
+    
+    private boolean isCourseListStale() {
+        return System.currentTimeMillis() - courseListRevalidatedAt >= courseListMaxStalenessMillis;
+    }
+
+    /**
+     * Observe all courses through a shared snapshot listener. The list updates
+     * incrementally as courses are added, changed or removed.
+     * @return LiveData with the live list of courses
+     */
+    public LiveData<List<Course>> observeCourses() {
+        return liveQueryHub.observe(COURSES_COLLECTION, db.collection(COURSES_COLLECTION), Course.class,
+                (courseId, course) -> {
+                    if (course != null) {
+                        putCourse(CompactCourse.from(course));
+                        missingCourses.remove(courseId);
+                    } else {
+                        courseCache.remove(courseId);
+                        classInstancesCache.remove(courseId);
+                        courseSearchIndex.remove(courseId);
+                    }
+                });
+    }
 
     public LiveData<Course> getCourseById(String courseId) {
-        MutableLiveData<Course> courseLiveData = new MutableLiveData<>();
-        
         // Check cache first
-        if (courseCache.containsKey(courseId)) {
-            Log.d(TAG, "Retrieved course from cache: " + courseCache.get(courseId).getName());
-            courseLiveData.setValue(courseCache.get(courseId));
+        CompactCourse cached = courseCache.get(courseId);
+        if (cached != null) {
+            Course course = cached.toCourse();
+            Log.d(TAG, "Retrieved course from cache: " + course.getName());
+            MutableLiveData<Course> courseLiveData = new MutableLiveData<>();
+            courseLiveData.setValue(course);
             return courseLiveData;
         }
         
-        // If not in cache, get from Firestore with source options
-        db.collection(COURSES_COLLECTION)
+        // Known to be missing; skip the cache and server round trips
+        if (missingCourses.containsKey(courseId)) {
+            Log.d(TAG, "Course recently not found, skipping lookup: " + courseId);
+            MutableLiveData<Course> courseLiveData = new MutableLiveData<>();
+            courseLiveData.setValue(null);
+            return courseLiveData;
+        }
+        
+        // If not in cache, join or start a single Firestore fetch for this ID
+        return courseRequests.execute(courseId, done -> db.collection(COURSES_COLLECTION)
                 .document(courseId)
                 .get(Source.CACHE)
                 .addOnSuccessListener(documentSnapshot -> {
                     if (documentSnapshot.exists()) {
-                        Course course = documentSnapshot.toObject(Course.class);
-                        courseCache.put(courseId, course); // Add to cache
-                        courseLiveData.setValue(course);
+                        Course course = tracked(documentSnapshot.toObject(Course.class));
+                        putCourse(CompactCourse.from(course)); // Add to cache
+                        done.complete(course);
                         Log.d(TAG, "Retrieved course from cache: " + course.getName());
                     } else {
                         // If not in cache, try server
-                        getFromServer(courseId, courseLiveData);
+                        getFromServer(courseId, done);
                     }
                 })
                 .addOnFailureListener(e -> {
                     // On failure, try server
                     Log.w(TAG, "Cache retrieval failed, trying server", e);
-                    getFromServer(courseId, courseLiveData);
-                });
-        
-        return courseLiveData;
+                    getFromServer(courseId, done);
+                }));
     }
     
-    private void getFromServer(String courseId, MutableLiveData<Course> courseLiveData) {
+    private void getFromServer(String courseId, SingleFlight.Completion<Course> done) {
         db.collection(COURSES_COLLECTION)
                 .document(courseId)
                 .get(Source.SERVER)
                 .addOnSuccessListener(documentSnapshot -> {
                     if (documentSnapshot.exists()) {
-                        Course course = documentSnapshot.toObject(Course.class);
-                        courseCache.put(courseId, course); // Add to cache
-                        courseLiveData.setValue(course);
+                        Course course = tracked(documentSnapshot.toObject(Course.class));
+                        putCourse(CompactCourse.from(course)); // Add to cache
+                        done.complete(course);
                         Log.d(TAG, "Retrieved course from server: " + course.getName());
                     } else {
-                        courseLiveData.setValue(null);
+                        missingCourses.put(courseId, Boolean.TRUE);
+                        done.complete(null);
                         Log.d(TAG, "No course found with ID: " + courseId);
                     }
                 })
                 .addOnFailureListener(e -> {
-                    courseLiveData.setValue(null);
+                    done.complete(null);
                     Log.e(TAG, "Error getting course from server", e);
                 });
     }
 
+    /**
+     * Record a course written through the offline outbox, so reads see it before the
+     * write reaches the server
+     * @param course Course with its ID set
+     */
+    public void cacheCourse(Course course) {
+        putCourse(CompactCourse.from(course));
+        missingCourses.remove(course.getId());
+    }
+
+    /**
+     * Record a class instance written through the offline outbox, linking it to its
+     * cached course as well
+     * @param classInstance Class instance with its ID set
+     */
+    public void cacheClassInstance(ClassInstance classInstance) {
+        applyToClassInstancesCache(classInstance.getCourseId(), classInstance.getId(), classInstance);
+        missingClassInstances.remove(classInstance.getId());
+        CompactCourse cached = courseCache.get(classInstance.getCourseId());
+        if (cached != null) {
+            Course course = cached.toCourse();
+            List<String> ids = course.getClassInstanceIds();
+            if (ids == null || !ids.contains(classInstance.getId())) {
+                course.addClassInstanceId(classInstance.getId());
+                putCourse(CompactCourse.from(course));
+            }
+        }
+    }
+
     // Class Instance operations
     public LiveData<Boolean> addClassInstance(ClassInstance classInstance) {
         MutableLiveData<Boolean> result = new MutableLiveData<>();
@@ -309,22 +626,22 @@ public class FirebaseService {
         // First, verify that the date matches the day of week of the course
         getCourseById(classInstance.getCourseId()).observeForever(course -> {
             if (course != null) {
-                Calendar calendar = Calendar.getInstance();
-                calendar.setTime(classInstance.getDate());
-                int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
-                String dayName = getDayNameFromCalendar(dayOfWeek);
-                
-                if (!dayName.equalsIgnoreCase(course.getDayOfWeek())) {
+                if (!isOnCourseDay(classInstance.getDate(), course)) {
                     result.setValue(false);
                     Log.e(TAG, "Class instance date does not match course day of week");
                     return;
                 }
                 
-                // Date matches, proceed with adding the class instance
-                db.collection(CLASS_INSTANCES_COLLECTION)
-                        .add(classInstance)
-                        .addOnSuccessListener(documentReference -> {
+                // Date matches, proceed with adding the class instance, with its seat count
+                DocumentReference documentReference = db.collection(CLASS_INSTANCES_COLLECTION).document();
+                WriteBatch batch = db.batch();
+                batch.set(documentReference, classInstance);
+                SeatCounter.initializeSeatCount(batch, documentReference);
+                batch.commit()
+                        .addOnSuccessListener(aVoid -> {
                             classInstance.setId(documentReference.getId());
+                            applyToClassInstancesCache(classInstance.getCourseId(), classInstance.getId(), classInstance);
+                            missingClassInstances.remove(classInstance.getId());
                             
                             // Update the course with the new class instance ID
                             course.addClassInstanceId(documentReference.getId());
@@ -350,28 +667,150 @@ public class FirebaseService {
         return result;
     }
 
+    /**
+     * Create a class instance for every date between start and end (inclusive) that falls
+     * on the course's day of week, and link them to the course.
+     *
+     * Instances and the course's classInstanceIds are written together in WriteBatch
+     * chunks, so a term of weekly classes takes a handful of commits instead of one
+     * read-modify-write cycle per date. Each chunk is self-contained: if a later chunk
+     * fails, earlier ones remain valid and linked to the course.
+     * @param courseId Course to generate classes for
+     * @param startDate First date to consider
+     * @param endDate Last date to consider
+     * @param teacherName Teacher assigned to every generated class
+     * @param skipDates Dates to leave out, e.g. holidays; may be null
+     * @return LiveData with boolean result
+     */
+    public LiveData<Boolean> addRecurringClassInstances(String courseId, Date startDate, Date endDate,
+                                                        String teacherName, Collection<Date> skipDates) {
+        MutableLiveData<Boolean> result = new MutableLiveData<>();
+
+        getCourseById(courseId).observeForever(course -> {
+            if (course == null) {
+                result.setValue(false);
+                Log.e(TAG, "Course not found with ID: " + courseId);
+                return;
+            }
+            int courseDay = EpochDays.parseDayOfWeek(course.getDayOfWeek());
+            if (courseDay < 0) {
+                result.setValue(false);
+                Log.e(TAG, "Course has no valid day of week: " + course.getDayOfWeek());
+                return;
+            }
+
+            TimeZone timeZone = TimeZone.getDefault();
+            long firstDay = EpochDays.fromMillis(startDate.getTime(), timeZone);
+            long lastDay = EpochDays.fromMillis(endDate.getTime(), timeZone);
+            Set<Long> skipDays = new HashSet<>();
+            if (skipDates != null) {
+                for (Date skipDate : skipDates) {
+                    skipDays.add(EpochDays.fromMillis(skipDate.getTime(), timeZone));
+                }
+            }
+
+            // Jump straight to the first matching weekday, then step a week at a time
+            long day = firstDay + Math.floorMod(courseDay - EpochDays.dayOfWeek(firstDay), 7);
+            List<ClassInstance> classInstances = new ArrayList<>();
+            for (; day <= lastDay; day += 7) {
+                if (skipDays.contains(day)) {
+                    continue;
+                }
+                Date date = new Date(EpochDays.toStartOfDayMillis(day, timeZone));
+                ClassInstance classInstance = new ClassInstance(courseId, date, teacherName, "");
+                classInstance.setId(db.collection(CLASS_INSTANCES_COLLECTION).document().getId());
+                classInstances.add(classInstance);
+            }
+
+            if (classInstances.isEmpty()) {
+                result.setValue(true);
+                Log.d(TAG, "No dates to generate for course: " + courseId);
+                return;
+            }
+            commitClassInstanceChunk(course, classInstances, 0, result);
+        });
+
+        return result;
+    }
+
+    private void commitClassInstanceChunk(Course course, List<ClassInstance> classInstances, int from,
+                                          MutableLiveData<Boolean> result) {
+        // Commit pending course rewrites first so they cannot overwrite the IDs added here
+        courseWrites.flush();
+
+        // One slot of every batch is taken by the course update, and each class instance
+        // takes two, one for the document and one for its seat count
+        int to = Math.min(from + (MAX_BATCH_WRITES - 1) / 2, classInstances.size());
+        List<ClassInstance> chunk = classInstances.subList(from, to);
+
+        WriteBatch batch = db.batch();
+        Object[] ids = new Object[chunk.size()];
+        for (int i = 0; i < chunk.size(); i++) {
+            ClassInstance classInstance = chunk.get(i);
+            ids[i] = classInstance.getId();
+            DocumentReference ref = db.collection(CLASS_INSTANCES_COLLECTION).document(classInstance.getId());
+            batch.set(ref, classInstance);
+            SeatCounter.initializeSeatCount(batch, ref);
+        }
+        batch.update(db.collection(COURSES_COLLECTION).document(course.getId()),
+                "classInstanceIds", FieldValue.arrayUnion(ids));
+
+        batch.commit()
+                .addOnSuccessListener(aVoid -> {
+                    for (ClassInstance classInstance : chunk) {
+                        course.addClassInstanceId(classInstance.getId());
+                        applyToClassInstancesCache(course.getId(), classInstance.getId(), classInstance);
+                        missingClassInstances.remove(classInstance.getId());
+                    }
+                    // The added IDs are already stored, so they are not pending changes
+                    course.markClean();
+                    putCourse(CompactCourse.from(course));
+
+                    if (to < classInstances.size()) {
+                        commitClassInstanceChunk(course, classInstances, to, result);
+                    } else {
+                        result.setValue(true);
+                        Log.d(TAG, "Generated " + classInstances.size() + " class instances for course: " + course.getId());
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    result.setValue(false);
+                    Log.e(TAG, "Error generating class instances after " + from + " of " + classInstances.size(), e);
+                });
+    }
+
     public LiveData<Boolean> updateClassInstance(ClassInstance classInstance) {
         MutableLiveData<Boolean> result = new MutableLiveData<>();
         
         // First, verify that the date matches the day of week of the course
         getCourseById(classInstance.getCourseId()).observeForever(course -> {
             if (course != null) {
-                Calendar calendar = Calendar.getInstance();
-                calendar.setTime(classInstance.getDate());
-                int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
-                String dayName = getDayNameFromCalendar(dayOfWeek);
-                
-                if (!dayName.equalsIgnoreCase(course.getDayOfWeek())) {
+                if (!isOnCourseDay(classInstance.getDate(), course)) {
                     result.setValue(false);
                     Log.e(TAG, "Class instance date does not match course day of week");
                     return;
                 }
                 
                 // Date matches, proceed with updating the class instance
-                db.collection(CLASS_INSTANCES_COLLECTION)
-                        .document(classInstance.getId())
-                        .set(classInstance)
+                DocumentReference classInstanceRef = db.collection(CLASS_INSTANCES_COLLECTION)
+                        .document(classInstance.getId());
+                // Loaded instances send only their changed fields
+                Task<Void> write;
+                if (!classInstance.isTracked()) {
+                    // Merge so fields maintained elsewhere, such as the seat count, survive
+                    write = classInstanceRef.set(classInstance, SetOptions.merge());
+                } else if (classInstance.isDirty()) {
+                    write = classInstanceRef.update(classInstance.getChanges());
+                } else {
+                    write = Tasks.forResult(null);
+                }
+                Map<String, Object> changes = classInstance.getChanges();
+                write
                         .addOnSuccessListener(aVoid -> {
+                            // Only once saved, so a failed write is sent again on retry
+                            markCleanIfUnchanged(classInstance, changes);
+                            applyToClassInstancesCache(classInstance.getCourseId(), classInstance.getId(), classInstance);
+                            missingClassInstances.remove(classInstance.getId());
                             result.setValue(true);
                             Log.d(TAG, "Class instance updated successfully");
                         })
@@ -397,52 +836,28 @@ public class FirebaseService {
                 .get()
                 .addOnSuccessListener(documentSnapshot -> {
                     if (documentSnapshot.exists()) {
-                        ClassInstance classInstance = documentSnapshot.toObject(ClassInstance.class);
+                        ClassInstance classInstance = tracked(documentSnapshot.toObject(ClassInstance.class));
                         String courseId = classInstance.getCourseId();
                         
-                        // Get the course to remove the class instance ID
-                        getCourseById(courseId).observeForever(course -> {
-                            if (course != null) {
-                                // Remove the class instance ID from the course
-                                List<String> classInstanceIds = course.getClassInstanceIds();
-                                classInstanceIds.remove(classInstanceId);
-                                course.setClassInstanceIds(classInstanceIds);
-                                
-                                // Use a batch to update the course and delete the class instance
-                                WriteBatch batch = db.batch();
-                                
-                                DocumentReference courseRef = db.collection(COURSES_COLLECTION).document(courseId);
-                                batch.set(courseRef, course);
-                                
-                                DocumentReference classInstanceRef = db.collection(CLASS_INSTANCES_COLLECTION).document(classInstanceId);
-                                batch.delete(classInstanceRef);
-                                
-                                // Commit the batch
-                                batch.commit()
-                                        .addOnSuccessListener(aVoid -> {
-                                            result.setValue(true);
-                                            Log.d(TAG, "Class instance deleted successfully");
-                                        })
-                                        .addOnFailureListener(e -> {
-                                            result.setValue(false);
-                                            Log.e(TAG, "Error deleting class instance", e);
-                                        });
-                            } else {
-                                // If course not found, just delete the class instance
-                                db.collection(CLASS_INSTANCES_COLLECTION)
-                                        .document(classInstanceId)
-                                        .delete()
-                                        .addOnSuccessListener(aVoid -> {
-                                            result.setValue(true);
-                                            Log.d(TAG, "Class instance deleted successfully (course not found)");
-                                        })
-                                        .addOnFailureListener(e -> {
-                                            result.setValue(false);
-                                            Log.e(TAG, "Error deleting class instance", e);
-                                        });
-                            }
-                        });
+                        // Enrollments and seat shards are deleted together with the class instance
+                        db.collection(ENROLLMENTS_COLLECTION)
+                                .whereEqualTo("classInstanceId", classInstanceId)
+                                .get()
+                                .addOnSuccessListener(enrollments -> {
+                                    List<DocumentReference> dependents =
+                                            new ArrayList<>(SeatCounter.shardRefs(documentSnapshot));
+                                    for (QueryDocumentSnapshot enrollment : enrollments) {
+                                        dependents.add(enrollment.getReference());
+                                    }
+                                    getCourseById(courseId).observeForever(course ->
+                                            deleteClassInstance(classInstanceId, courseId, course, dependents, result));
+                                })
+                                .addOnFailureListener(e -> {
+                                    result.setValue(false);
+                                    Log.e(TAG, "Error getting enrollments of class instance", e);
+                                });
                     } else {
+                        missingClassInstances.put(classInstanceId, Boolean.TRUE);
                         result.setValue(false);
                         Log.e(TAG, "Class instance not found with ID: " + classInstanceId);
                     }
@@ -455,18 +870,93 @@ public class FirebaseService {
         return result;
     }
 
+    /**
+     * Delete a class instance with its dependent documents, and unlink it from its course
+     * if the course exists
+     */
+    private void deleteClassInstance(String classInstanceId, String courseId, Course course,
+                                     List<DocumentReference> dependents, MutableLiveData<Boolean> result) {
+        // Dependents that do not fit next to the class instance and course go first, so a
+        // failure never leaves them behind a deleted class instance
+        List<Task<Void>> leading = new ArrayList<>();
+        int inline = MAX_BATCH_WRITES - 2;
+        for (int from = 0; dependents.size() - from > inline; from += MAX_BATCH_WRITES) {
+            WriteBatch batch = db.batch();
+            for (DocumentReference ref : dependents.subList(from, Math.min(from + MAX_BATCH_WRITES, dependents.size() - inline))) {
+                batch.delete(ref);
+            }
+            leading.add(batch.commit());
+        }
+        List<DocumentReference> inlineDependents =
+                dependents.subList(Math.max(0, dependents.size() - inline), dependents.size());
+        
+        Tasks.whenAll(leading).continueWithTask(task -> {
+            if (!task.isSuccessful()) {
+                return task;
+            }
+            WriteBatch batch = db.batch();
+            for (DocumentReference ref : inlineDependents) {
+                batch.delete(ref);
+            }
+            if (course != null) {
+                // Remove the class instance ID from the course, ordered after any pending
+                // rewrite of the course
+                course.removeClassInstanceId(classInstanceId);
+                courseWrites.flush();
+                DocumentReference courseRef = db.collection(COURSES_COLLECTION).document(courseId);
+                if (!course.isTracked()) {
+                    batch.set(courseRef, course);
+                } else if (course.isDirty()) {
+                    batch.update(courseRef, course.getChanges());
+                }
+                course.markClean();
+            }
+            batch.delete(db.collection(CLASS_INSTANCES_COLLECTION).document(classInstanceId));
+            return batch.commit();
+        })
+                .addOnSuccessListener(aVoid -> {
+                    if (course != null) {
+                        putCourse(CompactCourse.from(course));
+                    }
+                    applyToClassInstancesCache(courseId, classInstanceId, null);
+                    missingClassInstances.put(classInstanceId, Boolean.TRUE);
+                    result.setValue(true);
+                    Log.d(TAG, "Class instance deleted successfully with " + dependents.size()
+                            + " enrollments and seat shards" + (course != null ? "" : " (course not found)"));
+                })
+                .addOnFailureListener(e -> {
+                    result.setValue(false);
+                    Log.e(TAG, "Error deleting class instance", e);
+                });
+    }
+
     public LiveData<List<ClassInstance>> getClassInstancesForCourse(String courseId) {
         MutableLiveData<List<ClassInstance>> classInstancesLiveData = new MutableLiveData<>();
         
+        // Check cache first
+        List<CompactClassInstance> cached = classInstancesCache.get(courseId);
+        if (cached != null) {
+            List<ClassInstance> classInstances = new ArrayList<>(cached.size());
+            for (CompactClassInstance compact : cached) {
+                classInstances.add(compact.toClassInstance());
+            }
+            classInstancesLiveData.setValue(classInstances);
+            Log.d(TAG, "Retrieved " + cached.size() + " class instances from cache for course: " + courseId);
+            return classInstancesLiveData;
+        }
+        
         db.collection(CLASS_INSTANCES_COLLECTION)
                 .whereEqualTo("courseId", courseId)
                 .get()
                 .addOnSuccessListener(queryDocumentSnapshots -> {
                     List<ClassInstance> classInstances = new ArrayList<>();
+                    List<CompactClassInstance> compact = new ArrayList<>();
                     for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
-                        ClassInstance classInstance = document.toObject(ClassInstance.class);
+                        ClassInstance classInstance = tracked(document.toObject(ClassInstance.class));
                         classInstances.add(classInstance);
+                        compact.add(CompactClassInstance.from(classInstance));
                     }
+                    classInstancesCache.put(courseId, compact);
                     classInstancesLiveData.setValue(classInstances);
                     Log.d(TAG, "Retrieved " + classInstances.size() + " class instances for course: " + courseId);
                 })
@@ -478,6 +968,18 @@ public class FirebaseService {
         return classInstancesLiveData;
     }
     
+    /**
+     * Observe the class instances of a course through a shared snapshot listener
+     * @param courseId Course ID
+     * @return LiveData with the live list of class instances
+     */
+    public LiveData<List<ClassInstance>> observeClassInstancesForCourse(String courseId) {
+        Query query = db.collection(CLASS_INSTANCES_COLLECTION).whereEqualTo("courseId", courseId);
+        return liveQueryHub.observe(CLASS_INSTANCES_COLLECTION + "/courseId=" + courseId, query, ClassInstance.class,
+                (classInstanceId, classInstance) ->
+                        applyToClassInstancesCache(courseId, classInstanceId, classInstance));
+    }
+    
     /**
      * Get class instances by course ID (alias for getClassInstancesForCourse)
      * @param courseId Course ID
@@ -487,111 +989,573 @@ public class FirebaseService {
         // This is an alias for getClassInstancesForCourse to maintain API compatibility
         return getClassInstancesForCourse(courseId);
     }
-    
+
+    /**
+     * Get the class instances of several courses with one whereIn query per chunk of
+     * course IDs, run in parallel, instead of one query per course. Courses already
+     * cached are not queried.
+     * @param courseIds Course IDs
+     * @return LiveData with the class instances of all the courses ordered by date,
+     *         set once every query has finished
+     */
+    public LiveData<List<ClassInstance>> getClassInstancesForCourses(Collection<String> courseIds) {
+        MutableLiveData<List<ClassInstance>> classInstancesLiveData = new MutableLiveData<>();
+
+        List<ClassInstance> classInstances = new ArrayList<>();
+        List<String> uncachedIds = new ArrayList<>();
+        for (String courseId : new LinkedHashSet<>(courseIds)) {
+            List<CompactClassInstance> cached = classInstancesCache.get(courseId);
+            if (cached == null) {
+                uncachedIds.add(courseId);
+                continue;
+            }
+            for (CompactClassInstance compact : cached) {
+                classInstances.add(compact.toClassInstance());
+            }
+        }
+        if (uncachedIds.isEmpty()) {
+            classInstancesLiveData.setValue(sortedByDate(classInstances));
+            return classInstancesLiveData;
+        }
+
+        List<List<String>> chunks = new ArrayList<>();
+        List<Task<QuerySnapshot>> queries = new ArrayList<>();
+        for (int from = 0; from < uncachedIds.size(); from += MAX_WHERE_IN_VALUES) {
+            List<String> chunk = new ArrayList<>(uncachedIds.subList(from,
+                    Math.min(from + MAX_WHERE_IN_VALUES, uncachedIds.size())));
+            chunks.add(chunk);
+            queries.add(db.collection(CLASS_INSTANCES_COLLECTION).whereIn("courseId", chunk).get());
+        }
+
+        Tasks.whenAllComplete(queries).addOnCompleteListener(done -> {
+            int failed = 0;
+            for (int i = 0; i < queries.size(); i++) {
+                Task<QuerySnapshot> query = queries.get(i);
+                if (!query.isSuccessful()) {
+                    failed++;
+                    Log.e(TAG, "Error getting class instances for courses", query.getException());
+                    continue;
+                }
+
+                // Every class instance of the chunk's courses is here, so cache each course
+                Map<String, List<CompactClassInstance>> byCourse = new HashMap<>();
+                for (String courseId : chunks.get(i)) {
+                    byCourse.put(courseId, new ArrayList<>());
+                }
+                for (QueryDocumentSnapshot document : query.getResult()) {
+                    ClassInstance classInstance = tracked(document.toObject(ClassInstance.class));
+                    classInstances.add(classInstance);
+                    List<CompactClassInstance> compact = byCourse.get(classInstance.getCourseId());
+                    if (compact != null) {
+                        compact.add(CompactClassInstance.from(classInstance));
+                    }
+                }
+                for (Map.Entry<String, List<CompactClassInstance>> entry : byCourse.entrySet()) {
+                    classInstancesCache.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            classInstancesLiveData.setValue(sortedByDate(classInstances));
+            Log.d(TAG, "Retrieved " + classInstances.size() + " class instances for " + courseIds.size()
+                    + " courses with " + queries.size() + " queries"
+                    + (failed > 0 ? " (" + failed + " failed)" : ""));
+        });
+
+        return classInstancesLiveData;
+    }
+
+    private static List<ClassInstance> sortedByDate(List<ClassInstance> classInstances) {
+        Collections.sort(classInstances, (a, b) -> {
+            if (a.getDate() == null || b.getDate() == null) {
+                return a.getDate() == null ? (b.getDate() == null ? 0 : 1) : -1;
+            }
+            return a.getDate().compareTo(b.getDate());
+        });
+        return classInstances;
+    }
+
     /**
      * Get class instance by ID
      * @param id Class instance ID
      * @return LiveData with class instance
      */
     public LiveData<ClassInstance> getClassInstanceById(String id) {
-        MutableLiveData<ClassInstance> classInstanceLiveData = new MutableLiveData<>();
+        // Known to be missing; skip the round trip
+        if (missingClassInstances.containsKey(id)) {
+            Log.d(TAG, "Class instance recently not found, skipping lookup: " + id);
+            MutableLiveData<ClassInstance> classInstanceLiveData = new MutableLiveData<>();
+            classInstanceLiveData.setValue(null);
+            return classInstanceLiveData;
+        }
         
-        db.collection(CLASS_INSTANCES_COLLECTION)
+        // Concurrent requests for the same ID share one Firestore fetch
+        return classInstanceRequests.execute(id, done -> db.collection(CLASS_INSTANCES_COLLECTION)
                 .document(id)
                 .get()
                 .addOnSuccessListener(documentSnapshot -> {
                     if (documentSnapshot.exists()) {
-                        ClassInstance classInstance = documentSnapshot.toObject(ClassInstance.class);
-                        classInstanceLiveData.setValue(classInstance);
+                        ClassInstance classInstance = tracked(documentSnapshot.toObject(ClassInstance.class));
+                        done.complete(classInstance);
                         Log.d(TAG, "Retrieved class instance with ID: " + id);
                     } else {
-                        classInstanceLiveData.setValue(null);
+                        missingClassInstances.put(id, Boolean.TRUE);
+                        done.complete(null);
                         Log.d(TAG, "No class instance found with ID: " + id);
                     }
                 })
                 .addOnFailureListener(e -> {
-                    classInstanceLiveData.setValue(null);
+                    done.complete(null);
                     Log.e(TAG, "Error getting class instance", e);
-                });
-        
-        return classInstanceLiveData;
+                }));
     }
 
     // Search operations
+
+    /**
+     * Find class instances by teacher, ignoring case and accents. Every word of the query
+     * must start a word of the teacher name, so "smith" and "an sm" both find "Anna Smith".
+     * Served by an array-contains query on the teacherTokens index field.
+     *
+     * Server results are kept briefly per queried token. A query with a word that extends
+     * a cached token is answered by filtering that result, so typing a name letter by
+     * letter costs one network query.
+     * @param teacherName Teacher name or part of it
+     * @return LiveData with matching class instances
+     */
     public LiveData<List<ClassInstance>> searchClassInstancesByTeacher(String teacherName) {
         MutableLiveData<List<ClassInstance>> classInstancesLiveData = new MutableLiveData<>();
         
-        db.collection(CLASS_INSTANCES_COLLECTION)
-                .whereGreaterThanOrEqualTo("teacherName", teacherName)
-                .whereLessThanOrEqualTo("teacherName", teacherName + "\uf8ff")
+        if (localReadModel != null && localReadModel.isClassInstancesHydrated()) {
+            runLocalSearch(classInstancesLiveData, () -> localReadModel.findClassInstancesByTeacher(teacherName),
+                    "class instances for teacher: " + teacherName);
+            return classInstancesLiveData;
+        }
+        
+        List<String> queryWords = SearchTokens.words(teacherName);
+        if (queryWords.isEmpty()) {
+            classInstancesLiveData.setValue(new ArrayList<>());
+            return classInstancesLiveData;
+        }
+        
+        if (!teacherTokensIndexed()) {
+            searchClassInstancesByTeacherDuringBackfill(teacherName, queryWords, classInstancesLiveData);
+            return classInstancesLiveData;
+        }
+        
+        // Any cached token that starts a query word holds a superset of the matches
+        for (String word : queryWords) {
+            for (int length = Math.min(word.length(), SearchTokens.MAX_PREFIX_LENGTH); length > 0; length--) {
+                List<CompactClassInstance> cached = teacherSearchCache.get(word.substring(0, length));
+                if (cached != null) {
+                    classInstancesLiveData.setValue(filterByTeacher(cached, queryWords));
+                    Log.d(TAG, "Found " + classInstancesLiveData.getValue().size()
+                            + " class instances for teacher: " + teacherName + " (cached prefix)");
+                    return classInstancesLiveData;
+                }
+            }
+        }
+        
+        // Look up the most selective word; the others are checked on the results
+        String token = SearchTokens.lookupToken(queryWords);
+        teacherSearchRequests.execute(token, completion -> db.collection(CLASS_INSTANCES_COLLECTION)
+                .whereArrayContains("teacherTokens", token)
                 .get()
                 .addOnSuccessListener(queryDocumentSnapshots -> {
-                    List<ClassInstance> classInstances = new ArrayList<>();
+                    List<CompactClassInstance> compact = new ArrayList<>();
                     for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
-                        ClassInstance classInstance = document.toObject(ClassInstance.class);
-                        classInstances.add(classInstance);
+                        compact.add(CompactClassInstance.from(document.toObject(ClassInstance.class)));
                     }
-                    classInstancesLiveData.setValue(classInstances);
-                    Log.d(TAG, "Found " + classInstances.size() + " class instances for teacher: " + teacherName);
+                    teacherSearchCache.put(token, compact);
+                    completion.complete(compact);
                 })
                 .addOnFailureListener(e -> {
-                    classInstancesLiveData.setValue(new ArrayList<>());
                     Log.e(TAG, "Error searching class instances by teacher", e);
+                    completion.complete(null);
+                }))
+                .observeForever(compact -> {
+                    List<ClassInstance> classInstances = compact != null
+                            ? filterByTeacher(compact, queryWords) : new ArrayList<>();
+                    classInstancesLiveData.setValue(classInstances);
+                    Log.d(TAG, "Found " + classInstances.size() + " class instances for teacher: " + teacherName);
                 });
         
         return classInstancesLiveData;
     }
 
+    /**
+     * Teacher search while older class instances may still lack teacherTokens: the token
+     * query is combined with the original case-sensitive teacherName prefix query, and
+     * nothing is cached since the token result may be incomplete
+     */
+    private void searchClassInstancesByTeacherDuringBackfill(String teacherName, List<String> queryWords,
+                                                           MutableLiveData<List<ClassInstance>> classInstancesLiveData) {
+        String prefix = teacherName.trim();
+        Task<QuerySnapshot> byToken = db.collection(CLASS_INSTANCES_COLLECTION)
+                .whereArrayContains("teacherTokens", SearchTokens.lookupToken(queryWords))
+                .get();
+        Task<QuerySnapshot> byName = db.collection(CLASS_INSTANCES_COLLECTION)
+                .whereGreaterThanOrEqualTo("teacherName", prefix)
+                .whereLessThanOrEqualTo("teacherName", prefix + "\uf8ff")
+                .get();
+        Tasks.whenAllComplete(byToken, byName).addOnCompleteListener(done -> {
+            Map<String, ClassInstance> found = new LinkedHashMap<>();
+            for (Task<QuerySnapshot> query : Arrays.asList(byToken, byName)) {
+                if (!query.isSuccessful()) {
+                    Log.e(TAG, "Error searching class instances by teacher", query.getException());
+                    continue;
+                }
+                for (QueryDocumentSnapshot document : query.getResult()) {
+                    ClassInstance classInstance = tracked(document.toObject(ClassInstance.class));
+                    if (SearchTokens.matches(queryWords, classInstance.getTeacherName())) {
+                        found.put(document.getId(), classInstance);
+                    }
+                }
+            }
+            classInstancesLiveData.setValue(new ArrayList<>(found.values()));
+            Log.d(TAG, "Found " + found.size() + " class instances for teacher: " + teacherName
+                    + " (teacher tokens not yet backfilled)");
+        });
+    }
+
+    /**
+     * Page through the class instances of a teacher, matched as in
+     * {@link #searchClassInstancesByTeacher(String)}, ordered by date. A broad query reads
+     * only the pages that are asked for.
+     * @param teacherName Teacher name or part of it
+     * @param pageSize Class instances per page
+     * @return Pager for the results; no page is loaded until asked for
+     */
+    public ClassInstancePager pageClassInstancesByTeacher(String teacherName, int pageSize) {
+        if (localReadModel != null && localReadModel.isClassInstancesHydrated()) {
+            return new ClassInstancePager(searchClassInstancesByTeacher(teacherName), pageSize);
+        }
+        
+        List<String> queryWords = SearchTokens.words(teacherName);
+        String token = SearchTokens.lookupToken(queryWords);
+        if (token == null || !teacherTokensIndexed() || hasCachedTeacherPrefix(queryWords)) {
+            return new ClassInstancePager(searchClassInstancesByTeacher(teacherName), pageSize);
+        }
+        
+        // A single word up to the stored prefix length is matched by the token alone, so the
+        // complete result can seed the prefix cache for longer queries
+        boolean cacheable = queryWords.size() == 1 && queryWords.get(0).equals(token);
+        ClassInstancePager.Filter filter =
+                classInstance -> SearchTokens.matches(queryWords, classInstance.getTeacherName());
+        ClassInstancePager.CompletionListener seedCache = cacheable ? classInstances -> {
+            List<CompactClassInstance> compact = new ArrayList<>(classInstances.size());
+            for (ClassInstance classInstance : classInstances) {
+                compact.add(CompactClassInstance.from(classInstance));
+            }
+            teacherSearchCache.put(token, compact);
+        } : null;
+        
+        // Typing more letters refines the last search; its pager is narrowed so the rows
+        // already read are reused and reading resumes at its cursor, without a new query
+        ClassInstancePager pager = null;
+        if (lastTeacherPager != null
+                && System.currentTimeMillis() - lastTeacherPagerCreatedAt < TEACHER_SEARCH_CACHE_TTL_MILLIS
+                && refinesWord(queryWords, lastTeacherPagerWord)) {
+            pager = lastTeacherPager.narrow(filter, seedCache);
+        }
+        if (pager == null) {
+            // Needs the teacherTokens + date composite index in firestore.indexes.json
+            Query query = db.collection(CLASS_INSTANCES_COLLECTION)
+                    .whereArrayContains("teacherTokens", token)
+                    .orderBy("date");
+            pager = new ClassInstancePager(query, filter, seedCache, pageSize);
+            lastTeacherPagerCreatedAt = System.currentTimeMillis();
+        }
+        // Only a single-word search accepts every row a refinement of it can match
+        if (queryWords.size() == 1) {
+            lastTeacherPager = pager;
+            lastTeacherPagerWord = queryWords.get(0);
+        } else {
+            lastTeacherPager = null;
+        }
+        return pager;
+    }
+
+    /**
+     * @return true if every teacher matching the query words also matches the word, i.e.
+     *         some query word starts with it
+     */
+    private static boolean refinesWord(List<String> queryWords, String word) {
+        for (String queryWord : queryWords) {
+            if (queryWord.startsWith(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasCachedTeacherPrefix(List<String> queryWords) {
+        for (String word : queryWords) {
+            for (int length = Math.min(word.length(), SearchTokens.MAX_PREFIX_LENGTH); length > 0; length--) {
+                if (teacherSearchCache.containsKey(word.substring(0, length))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<ClassInstance> filterByTeacher(List<CompactClassInstance> candidates, List<String> queryWords) {
+        List<ClassInstance> classInstances = new ArrayList<>();
+        for (CompactClassInstance candidate : candidates) {
+            if (SearchTokens.matches(queryWords, candidate.getTeacherName())) {
+                classInstances.add(candidate.toClassInstance());
+            }
+        }
+        return classInstances;
+    }
+
+    /**
+     * Find class instances matching several criteria at once. Only the criterion expected
+     * to match the fewest documents is queried on the server; the others are checked on
+     * each page of results as it arrives.
+     * @param criteria Combined search criteria
+     * @return LiveData with matching class instances ordered by date
+     */
+    public LiveData<List<ClassInstance>> searchClassInstances(ClassSearchCriteria criteria) {
+        return new ClassSearchPlanner(db, COURSES_COLLECTION, CLASS_INSTANCES_COLLECTION, criteria,
+                teacherTokensIndexed()).run();
+    }
+
+    /**
+     * Until every class instance has teacherTokens, teacher searches also run the legacy query
+     */
+    private boolean teacherTokensIndexed() {
+        return DataMigrations.isComplete(DataMigrations.TEACHER_TOKENS);
+    }
+
+    /**
+     * Write the teacherTokens search field on class instances saved before it existed,
+     * or whose tokens are out of date, a page at a time, then set
+     * {@link DataMigrations#TEACHER_TOKENS}
+     */
+    private void backfillTeacherTokensPage(DocumentSnapshot cursor, int updatedSoFar,
+                                           MutableLiveData<Boolean> result, Runnable then) {
+        Query query = db.collection(CLASS_INSTANCES_COLLECTION)
+                .orderBy(FieldPath.documentId())
+                .limit(MAX_BATCH_WRITES);
+        if (cursor != null) {
+            query = query.startAfter(cursor);
+        }
+        // From the server, so an offline run fails instead of finishing on cached pages
+        query.get(Source.SERVER)
+                .addOnSuccessListener(snapshot -> {
+                    WriteBatch batch = db.batch();
+                    int updated = 0;
+                    DocumentSnapshot last = null;
+                    for (QueryDocumentSnapshot document : snapshot) {
+                        last = document;
+                        List<String> tokens = SearchTokens.prefixes(document.getString("teacherName"));
+                        if (!tokens.equals(document.get("teacherTokens"))) {
+                            batch.update(document.getReference(), "teacherTokens", tokens);
+                            updated++;
+                        }
+                    }
+                    int total = updatedSoFar + updated;
+                    boolean lastPage = snapshot.size() < MAX_BATCH_WRITES;
+                    DocumentSnapshot next = last;
+                    Task<Void> commit = updated > 0 ? batch.commit() : Tasks.forResult(null);
+                    commit.addOnSuccessListener(aVoid -> {
+                                if (!lastPage) {
+                                    backfillTeacherTokensPage(next, total, result, then);
+                                    return;
+                                }
+                                Log.d(TAG, "Backfilled teacher tokens on " + total + " class instances");
+                                DataMigrations.markComplete(db, DataMigrations.TEACHER_TOKENS)
+                                        .addOnSuccessListener(flag -> then.run())
+                                        .addOnFailureListener(e -> {
+                                            Log.e(TAG, "Error recording teacher token backfill", e);
+                                            finishDataMigrations(result, false);
+                                        });
+                            })
+                            .addOnFailureListener(e -> {
+                                Log.e(TAG, "Error writing teacher tokens", e);
+                                finishDataMigrations(result, false);
+                            });
+                })
+                .addOnFailureListener(e -> {
+                    Log.e(TAG, "Error reading class instances for teacher tokens", e);
+                    finishDataMigrations(result, false);
+                });
+    }
+
+    /**
+     * Find courses whose name, type or description resembles the query, tolerating typos
+     * and partial words, e.g. "vinyasa flw" for "Vinyasa Flow". The first search loads
+     * the course list to build the index; later ones are answered from memory.
+     * @param query Free text
+     * @param limit Maximum number of results
+     * @return LiveData with matching courses, best first
+     */
+    public LiveData<List<Course>> searchCourses(String query, int limit) {
+        if (courseSearchIndex.isPopulated()) {
+            return courseSearchIndex.search(query, limit);
+        }
+        
+        MutableLiveData<List<Course>> result = new MutableLiveData<>();
+        boolean[] searched = {false};
+        getAllCourses().observeForever(courses -> {
+            // Loading the list has put every course into the index; an empty list may be
+            // a failed load, so try again next time
+            if (!courses.isEmpty()) {
+                courseSearchIndex.markPopulated();
+            }
+            if (!searched[0]) {
+                searched[0] = true;
+                courseSearchIndex.search(query, limit).observeForever(result::setValue);
+            }
+        });
+        return result;
+    }
+
     public LiveData<List<ClassInstance>> searchClassInstancesByDate(Date date) {
+        TimeZone timeZone = TimeZone.getDefault();
+        long day = EpochDays.fromMillis(date.getTime(), timeZone);
+        return getClassInstancesBetween(new Date(EpochDays.toStartOfDayMillis(day, timeZone)),
+                new Date(EpochDays.toStartOfDayMillis(day + 1, timeZone)), 0);
+    }
+
+    /**
+     * Page through the class instances of one day, ordered by date
+     * @param date Any instant in the day
+     * @param pageSize Class instances per page
+     * @return Pager for the results; no page is loaded until asked for
+     */
+    public ClassInstancePager pageClassInstancesByDate(Date date, int pageSize) {
+        TimeZone timeZone = TimeZone.getDefault();
+        long day = EpochDays.fromMillis(date.getTime(), timeZone);
+        Date start = new Date(EpochDays.toStartOfDayMillis(day, timeZone));
+        Date end = new Date(EpochDays.toStartOfDayMillis(day + 1, timeZone));
+        if (localReadModel != null && localReadModel.isClassInstancesHydrated()) {
+            return new ClassInstancePager(getClassInstancesBetween(start, end, 0), pageSize);
+        }
+        
+        Query query = db.collection(CLASS_INSTANCES_COLLECTION)
+                .whereGreaterThanOrEqualTo("date", start)
+                .whereLessThan("date", end)
+                .orderBy("date");
+        return new ClassInstancePager(query, null, null, pageSize);
+    }
+
+    /**
+     * Get the class instances dated within a range, ordered by date. The server is read
+     * a page at a time with a cursor, so a month costs one paged query.
+     * @param start Range start, inclusive
+     * @param end Range end, exclusive
+     * @param limit Maximum number of class instances, or 0 for no limit
+     * @return LiveData with matching class instances ordered by date
+     */
+    public LiveData<List<ClassInstance>> getClassInstancesBetween(Date start, Date end, int limit) {
         MutableLiveData<List<ClassInstance>> classInstancesLiveData = new MutableLiveData<>();
         
-        // Set time to beginning of day
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(date);
-        calendar.set(Calendar.HOUR_OF_DAY, 0);
-        calendar.set(Calendar.MINUTE, 0);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
-        Date startDate = calendar.getTime();
-        
-        // Set time to end of day
-        calendar.set(Calendar.HOUR_OF_DAY, 23);
-        calendar.set(Calendar.MINUTE, 59);
-        calendar.set(Calendar.SECOND, 59);
-        calendar.set(Calendar.MILLISECOND, 999);
-        Date endDate = calendar.getTime();
+        if (localReadModel != null && localReadModel.isClassInstancesHydrated()) {
+            runLocalSearch(classInstancesLiveData, () -> {
+                List<ClassInstance> found = localReadModel.findClassInstancesBetween(start.getTime(), end.getTime() - 1);
+                return limit > 0 && found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+            }, "class instances from " + start + " to " + end);
+            return classInstancesLiveData;
+        }
         
-        db.collection(CLASS_INSTANCES_COLLECTION)
-                .whereGreaterThanOrEqualTo("date", startDate)
-                .whereLessThanOrEqualTo("date", endDate)
-                .get()
+        getClassInstancesBetweenPage(start, end, limit, null, new ArrayList<>(), classInstancesLiveData);
+        return classInstancesLiveData;
+    }
+
+    private void getClassInstancesBetweenPage(Date start, Date end, int limit, DocumentSnapshot cursor,
+                                              List<ClassInstance> found,
+                                              MutableLiveData<List<ClassInstance>> classInstancesLiveData) {
+        int pageSize = limit > 0 ? Math.min(DATE_RANGE_PAGE_SIZE, limit - found.size()) : DATE_RANGE_PAGE_SIZE;
+        Query query = db.collection(CLASS_INSTANCES_COLLECTION)
+                .whereGreaterThanOrEqualTo("date", start)
+                .whereLessThan("date", end)
+                .orderBy("date")
+                .limit(pageSize);
+        if (cursor != null) {
+            query = query.startAfter(cursor);
+        }
+        
+        query.get()
                 .addOnSuccessListener(queryDocumentSnapshots -> {
-                    List<ClassInstance> classInstances = new ArrayList<>();
-                    for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
-                        ClassInstance classInstance = document.toObject(ClassInstance.class);
-                        classInstances.add(classInstance);
+                    List<DocumentSnapshot> documents = queryDocumentSnapshots.getDocuments();
+                    for (DocumentSnapshot document : documents) {
+                        ClassInstance classInstance = tracked(document.toObject(ClassInstance.class));
+                        if (classInstance != null) {
+                            found.add(classInstance);
+                        }
+                    }
+                    if (documents.size() < pageSize || (limit > 0 && found.size() >= limit)) {
+                        classInstancesLiveData.setValue(found);
+                        Log.d(TAG, "Found " + found.size() + " class instances from " + start + " to " + end);
+                    } else {
+                        getClassInstancesBetweenPage(start, end, limit, documents.get(documents.size() - 1),
+                                found, classInstancesLiveData);
                     }
-                    classInstancesLiveData.setValue(classInstances);
-                    Log.d(TAG, "Found " + classInstances.size() + " class instances for date: " + date);
                 })
                 .addOnFailureListener(e -> {
                     classInstancesLiveData.setValue(new ArrayList<>());
-                    Log.e(TAG, "Error searching class instances by date", e);
+                    Log.e(TAG, "Error getting class instances by date range", e);
                 });
+    }
+
+    /**
+     * Get the class instances of consecutive days, grouped per day for calendar views
+     * @param firstDay First day, as an epoch day in the device time zone
+     * @param dayCount Number of days, e.g. 7 for a week
+     * @return LiveData with a map from epoch day to that day's class instances ordered by
+     *         date, in day order; every day in the range has an entry, empty if it has no classes
+     */
+    public LiveData<Map<Long, List<ClassInstance>>> getClassInstancesByDay(long firstDay, int dayCount) {
+        MutableLiveData<Map<Long, List<ClassInstance>>> result = new MutableLiveData<>();
+        TimeZone timeZone = TimeZone.getDefault();
+        Date start = new Date(EpochDays.toStartOfDayMillis(firstDay, timeZone));
+        Date end = new Date(EpochDays.toStartOfDayMillis(firstDay + dayCount, timeZone));
         
-        return classInstancesLiveData;
+        getClassInstancesBetween(start, end, 0).observeForever(classInstances -> {
+            Map<Long, List<ClassInstance>> days = new LinkedHashMap<>();
+            for (long day = firstDay; day < firstDay + dayCount; day++) {
+                days.put(day, new ArrayList<>());
+            }
+            for (ClassInstance classInstance : classInstances) {
+                List<ClassInstance> bucket = days.get(
+                        EpochDays.fromMillis(classInstance.getDate().getTime(), timeZone));
+                if (bucket != null) {
+                    bucket.add(classInstance);
+                }
+            }
+            result.setValue(days);
+        });
+        return result;
+    }
+
+    /**
+     * Get the class instances of the Monday-to-Sunday week containing a date, grouped per day
+     * @param date Any instant in the week
+     * @return LiveData as for {@link #getClassInstancesByDay(long, int)}
+     */
+    public LiveData<Map<Long, List<ClassInstance>>> getWeekOfClassInstances(Date date) {
+        long day = EpochDays.fromMillis(date.getTime(), TimeZone.getDefault());
+        return getClassInstancesByDay(day - EpochDays.dayOfWeek(day), 7);
     }
 
     public LiveData<List<Course>> searchCoursesByDay(String dayOfWeek) {
         MutableLiveData<List<Course>> coursesLiveData = new MutableLiveData<>();
         
+        if (localReadModel != null && localReadModel.isCoursesHydrated()) {
+            runLocalSearch(coursesLiveData, () -> localReadModel.findCoursesByDay(dayOfWeek),
+                    "courses for day: " + dayOfWeek);
+            return coursesLiveData;
+        }
+        
         db.collection(COURSES_COLLECTION)
                 .whereEqualTo("dayOfWeek", dayOfWeek)
                 .get()
                 .addOnSuccessListener(queryDocumentSnapshots -> {
                     List<Course> courses = new ArrayList<>();
                     for (QueryDocumentSnapshot document : queryDocumentSnapshots) {
-                        Course course = document.toObject(Course.class);
+                        Course course = tracked(document.toObject(Course.class));
                         courses.add(course);
                     }
                     coursesLiveData.setValue(courses);
@@ -606,27 +1570,142 @@ public class FirebaseService {
     }
 
     // Helper methods
-    private String getDayNameFromCalendar(int dayOfWeek) {
-        switch (dayOfWeek) {
-            case Calendar.SUNDAY:
-                return "Sunday";
-            case Calendar.MONDAY:
-                return "Monday";
-            case Calendar.TUESDAY:
-                return "Tuesday";
-            case Calendar.WEDNESDAY:
-                return "Wednesday";
-            case Calendar.THURSDAY:
-                return "Thursday";
-            case Calendar.FRIDAY:
-                return "Friday";
-            case Calendar.SATURDAY:
-                return "Saturday";
-            default:
-                return "";
+
+    /**
+     * Run a search against the local read model off the main thread
+     * @param liveData LiveData that receives the results
+     * @param query Read model query
+     * @param description Description of the search, for logging
+     */
+    private <T> void runLocalSearch(MutableLiveData<List<T>> liveData, Callable<List<T>> query, String description) {
+        localReadExecutor.execute(() -> {
+            try {
+                List<T> results = query.call();
+                liveData.postValue(results);
+                Log.d(TAG, "Found " + results.size() + " " + description + " (local)");
+            } catch (Exception e) {
+                liveData.postValue(new ArrayList<>());
+                Log.e(TAG, "Error searching local read model for " + description, e);
+            }
+        });
+    }
+
+    /**
+     * Apply a successful write to the cached class instances of a course. Courses that
+     * are not cached are left alone and will be loaded on their next read.
+     * @param courseId Course that owns the class instance
+     * @param classInstanceId ID of the written class instance
+     * @param replacement New state of the class instance, or null if it was deleted
+     */
+    private void applyToClassInstancesCache(String courseId, String classInstanceId, ClassInstance replacement) {
+        // Any write may add, drop or change a teacher search match
+        teacherSearchCache.clear();
+        lastTeacherPager = null;
+        if (courseId == null || classInstanceId == null) {
+            return;
+        }
+        if (replacement != null) {
+            dropFromOtherCourses(courseId, classInstanceId);
+        }
+        List<CompactClassInstance> cached = classInstancesCache.get(courseId);
+        if (cached == null) {
+            return;
+        }
+        
+        // Copy on write; cached lists are never modified in place
+        List<CompactClassInstance> updated = new ArrayList<>(cached.size() + 1);
+        for (CompactClassInstance existing : cached) {
+            if (!classInstanceId.equals(existing.getId())) {
+                updated.add(existing);
+            }
+        }
+        if (replacement != null) {
+            updated.add(CompactClassInstance.from(replacement));
+        }
+        classInstancesCache.put(courseId, updated);
+    }
+
+    /**
+     * Invalidate the cached list of any other course that still holds a class instance,
+     * for class instances moved to another course
+     */
+    private void dropFromOtherCourses(String courseId, String classInstanceId) {
+        for (List<CompactClassInstance> cached : classInstancesCache.values()) {
+            for (CompactClassInstance existing : cached) {
+                if (classInstanceId.equals(existing.getId()) && existing.getCourseId() != null
+                        && !courseId.equals(existing.getCourseId())) {
+                    classInstancesCache.remove(existing.getCourseId());
+                    Log.d(TAG, "Class instance " + classInstanceId + " moved from course " + existing.getCourseId());
+                    break;
+                }
+            }
         }
     }
 
+    private static boolean sameCourses(List<Course> first, List<Course> second) {
+        if (first.size() != second.size()) {
+            return false;
+        }
+        Map<String, Map<String, Object>> firstById = new HashMap<>();
+        for (Course course : first) {
+            firstById.put(course.getId(), course.toMap());
+        }
+        for (Course course : second) {
+            Map<String, Object> other = firstById.get(course.getId());
+            if (other == null || !other.equals(course.toMap())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int estimateClassInstancesWeight(List<CompactClassInstance> classInstances) {
+        int weight = 40 + 4 * classInstances.size();
+        for (CompactClassInstance classInstance : classInstances) {
+            weight += classInstance.estimateRetainedBytes();
+        }
+        return weight;
+    }
+
+    /**
+     * Cache a course and keep the search index in step with it
+     */
+    private void putCourse(CompactCourse course) {
+        courseCache.put(course.getId(), course);
+        courseSearchIndex.put(course);
+    }
+
+    /**
+     * Mark an object clean after a write of the given changes succeeded, unless it was
+     * edited again while the write was in flight
+     */
+    private static void markCleanIfUnchanged(DirtyTracking value, Map<String, Object> writtenChanges) {
+        if (!value.isTracked() || value.getChanges().equals(writtenChanges)) {
+            value.markClean();
+        }
+    }
+
+    /**
+     * Start change tracking on an object just read from Firestore
+     */
+    private static <T extends DirtyTracking> T tracked(T value) {
+        if (value != null) {
+            value.markClean();
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the date falls on the course's day of week in the default time zone
+     */
+    public static boolean isOnCourseDay(Date date, Course course) {
+        if (date == null) {
+            return false;
+        }
+        long epochDay = EpochDays.fromMillis(date.getTime(), TimeZone.getDefault());
+        return EpochDays.dayOfWeek(epochDay) == EpochDays.parseDayOfWeek(course.getDayOfWeek());
+    }
+
     // Enrollment operations
     private static final String ENROLLMENTS_COLLECTION = "enrollments";
     
@@ -639,45 +1718,34 @@ public class FirebaseService {
     public LiveData<Boolean> enrollInClass(String userId, String classInstanceId) {
         MutableLiveData<Boolean> result = new MutableLiveData<>();
         
-        // Check if the class instance exists
-        getClassInstanceById(classInstanceId).observeForever(classInstance -> {
-            if (classInstance != null) {
-                // Check if the user is already enrolled
-                db.collection(ENROLLMENTS_COLLECTION)
-                        .whereEqualTo("userId", userId)
-                        .whereEqualTo("classInstanceId", classInstanceId)
-                        .get()
-                        .addOnSuccessListener(queryDocumentSnapshots -> {
-                            if (queryDocumentSnapshots.isEmpty()) {
-                                // User is not enrolled, create a new enrollment
-                                Enrollment enrollment = new Enrollment(userId, classInstanceId);
-                                
-                                db.collection(ENROLLMENTS_COLLECTION)
-                                        .add(enrollment)
-                                        .addOnSuccessListener(documentReference -> {
-                                            enrollment.setId(documentReference.getId());
-                                            result.setValue(true);
-                                            Log.d(TAG, "User enrolled in class successfully");
-                                        })
-                                        .addOnFailureListener(e -> {
-                                            result.setValue(false);
-                                            Log.e(TAG, "Error enrolling user in class", e);
-                                        });
-                            } else {
-                                // User is already enrolled
-                                result.setValue(true);
-                                Log.d(TAG, "User is already enrolled in this class");
-                            }
-                        })
-                        .addOnFailureListener(e -> {
+        // The enrollment ID is derived from user and class, so a repeated or retried call
+        // finds the existing document inside the transaction instead of booking twice
+        Enrollment enrollment = new Enrollment(userId, classInstanceId);
+        DocumentReference enrollmentRef = db.collection(ENROLLMENTS_COLLECTION)
+                .document(Enrollment.documentId(userId, classInstanceId));
+        
+        seatCounter.enroll(enrollmentRef, enrollment)
+                .addOnSuccessListener(outcome -> {
+                    switch (outcome) {
+                        case ENROLLED:
+                            enrollment.setId(enrollmentRef.getId());
+                            result.setValue(true);
+                            Log.d(TAG, "User enrolled in class successfully");
+                            break;
+                        case ALREADY_ENROLLED:
+                            result.setValue(true);
+                            Log.d(TAG, "User is already enrolled in this class");
+                            break;
+                        default:
                             result.setValue(false);
-                            Log.e(TAG, "Error checking if user is enrolled", e);
-                        });
-            } else {
-                result.setValue(false);
-                Log.e(TAG, "Class instance not found with ID: " + classInstanceId);
-            }
-        });
+                            Log.d(TAG, "Could not enroll user in class " + classInstanceId + ": " + outcome);
+                            break;
+                    }
+                })
+                .addOnFailureListener(e -> {
+                    result.setValue(false);
+                    Log.e(TAG, "Error enrolling user in class", e);
+                });
         
         return result;
     }
@@ -709,63 +1777,180 @@ public class FirebaseService {
         
         return enrollmentsLiveData;
     }
-    
-    // Data reset operation
-    public LiveData<Boolean> resetAllData() {
+
+    // Data migrations
+
+    /**
+     * Run the one-off data migrations that have not completed yet and record each for all
+     * clients. Meant for an administrator, not for every installation: it reads whole
+     * collections from the server and needs write access to their documents.
+     * @return LiveData with true once every migration has completed
+     */
+    public LiveData<Boolean> runDataMigrations() {
         MutableLiveData<Boolean> result = new MutableLiveData<>();
-        
-        // Delete all class instances
-        db.collection(CLASS_INSTANCES_COLLECTION)
-                .get()
-                .addOnSuccessListener(classInstancesSnapshot -> {
-                    WriteBatch batch = db.batch();
-                    
-                    for (QueryDocumentSnapshot document : classInstancesSnapshot) {
-                        batch.delete(document.getReference());
+        if (!dataMigrationsRunning.compareAndSet(false, true)) {
+            Log.w(TAG, "Data migrations are already running");
+            result.setValue(false);
+            return result;
+        }
+        Runnable finish = () -> finishDataMigrations(result, true);
+        Runnable teacherTokens = () -> {
+            if (DataMigrations.isComplete(DataMigrations.TEACHER_TOKENS)) {
+                finish.run();
+            } else {
+                backfillTeacherTokensPage(null, 0, result, finish);
+            }
+        };
+        if (DataMigrations.isComplete(DataMigrations.ENROLLMENT_IDS)) {
+            teacherTokens.run();
+        } else {
+            migrateEnrollmentIdsPage(null, 0, result, teacherTokens);
+        }
+        return result;
+    }
+
+    private void finishDataMigrations(MutableLiveData<Boolean> result, boolean success) {
+        dataMigrationsRunning.set(false);
+        result.setValue(success);
+    }
+
+    /**
+     * Move enrollments saved before IDs were derived from user and class to their
+     * deterministic IDs, a page at a time, then set {@link DataMigrations#ENROLLMENT_IDS}
+     */
+    private void migrateEnrollmentIdsPage(DocumentSnapshot cursor, int movedSoFar,
+                                          MutableLiveData<Boolean> result, Runnable then) {
+        Query query = db.collection(ENROLLMENTS_COLLECTION)
+                .orderBy(FieldPath.documentId())
+                .limit(MIGRATION_PAGE_SIZE);
+        if (cursor != null) {
+            query = query.startAfter(cursor);
+        }
+        // From the server, so an offline run fails instead of finishing on cached pages
+        query.get(Source.SERVER)
+                .addOnSuccessListener(snapshot -> {
+                    List<Task<Boolean>> moves = new ArrayList<>();
+                    DocumentSnapshot last = null;
+                    for (QueryDocumentSnapshot document : snapshot) {
+                        last = document;
+                        String userId = document.getString("userId");
+                        String classInstanceId = document.getString("classInstanceId");
+                        if (userId != null && classInstanceId != null
+                                && !document.getId().equals(Enrollment.documentId(userId, classInstanceId))) {
+                            moves.add(seatCounter.migrateEnrollment(document.getReference()));
+                        }
                     }
-                    
-                    // Delete all courses
-                    db.collection(COURSES_COLLECTION)
-                            .get()
-                            .addOnSuccessListener(coursesSnapshot -> {
-                                for (QueryDocumentSnapshot document : coursesSnapshot) {
-                                    batch.delete(document.getReference());
+                    int moved = movedSoFar + moves.size();
+                    boolean lastPage = snapshot.size() < MIGRATION_PAGE_SIZE;
+                    DocumentSnapshot next = last;
+                    Tasks.whenAllSuccess(moves)
+                            .addOnSuccessListener(done -> {
+                                if (!lastPage) {
+                                    migrateEnrollmentIdsPage(next, moved, result, then);
+                                    return;
                                 }
-                                
-                                // Delete all enrollments
-                                db.collection(ENROLLMENTS_COLLECTION)
-                                        .get()
-                                        .addOnSuccessListener(enrollmentsSnapshot -> {
-                                            for (QueryDocumentSnapshot document : enrollmentsSnapshot) {
-                                                batch.delete(document.getReference());
-                                            }
-                                            
-                                            // Commit the batch
-                                            batch.commit()
-                                                    .addOnSuccessListener(aVoid -> {
-                                                        result.setValue(true);
-                                                        Log.d(TAG, "All data reset successfully");
-                                                    })
-                                                    .addOnFailureListener(e -> {
-                                                        result.setValue(false);
-                                                        Log.e(TAG, "Error resetting data", e);
-                                                    });
-                                        })
+                                Log.d(TAG, "Moved " + moved + " enrollments to deterministic IDs");
+                                DataMigrations.markComplete(db, DataMigrations.ENROLLMENT_IDS)
+                                        .addOnSuccessListener(aVoid -> then.run())
                                         .addOnFailureListener(e -> {
-                                            result.setValue(false);
-                                            Log.e(TAG, "Error getting enrollments for reset", e);
+                                            Log.e(TAG, "Error recording enrollment ID migration", e);
+                                            finishDataMigrations(result, false);
                                         });
                             })
                             .addOnFailureListener(e -> {
-                                result.setValue(false);
-                                Log.e(TAG, "Error getting courses for reset", e);
+                                Log.e(TAG, "Error moving enrollments to deterministic IDs", e);
+                                finishDataMigrations(result, false);
                             });
                 })
                 .addOnFailureListener(e -> {
-                    result.setValue(false);
-                    Log.e(TAG, "Error getting class instances for reset", e);
+                    Log.e(TAG, "Error reading enrollments to migrate", e);
+                    finishDataMigrations(result, false);
                 });
-        
+    }
+    
+    // Data reset operation
+    public LiveData<Boolean> resetAllData() {
+        return resetAllData(RESET_PAGE_SIZE, RESET_MAX_PARALLEL_COMMITS);
+    }
+
+    /**
+     * Delete all enrollments, class instances and courses in pages, so collections of any
+     * size can be cleared. Calling it again after a failure resumes where it stopped.
+     * @param pageSize Documents read and deleted per batch, at most 500
+     * @param maxParallelCommits Maximum number of batch commits in flight
+     * @return LiveData with boolean result
+     */
+    public LiveData<Boolean> resetAllData(int pageSize, int maxParallelCommits) {
+        MutableLiveData<Boolean> result = new MutableLiveData<>();
+        courseWrites.flush();
+
+        resetDeleter.start(pageSize, maxParallelCommits).observeForever(success -> {
+            // Drop cached documents whether or not every page was deleted
+            clearCache();
+            courseSearchIndex.clear();
+            result.setValue(success);
+            if (success) {
+                Log.d(TAG, "All data reset successfully");
+            } else {
+                Log.e(TAG, "Error resetting data; calling resetAllData again resumes");
+            }
+        });
+
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return LiveData with the progress of the current or last reset
+     */
+    public LiveData<BulkDeleter.Progress> getResetProgress() {
+        return resetDeleter.getProgress();
+    }
+
+    /**
+     * Import courses and class instances from a CSV or JSON file; see {@link BulkImporter}
+     * for the record format
+     * @param input File contents; closed when the import ends
+     * @param json true for a JSON array of records, false for CSV with a header row
+     * @param progress Optional LiveData receiving a report after every committed batch
+     * @return LiveData with the final report, including errors for rejected rows
+     */
+    public LiveData<BulkImporter.Report> importSchedule(InputStream input, boolean json,
+                                                        MutableLiveData<BulkImporter.Report> progress) {
+        MutableLiveData<BulkImporter.Report> result = new MutableLiveData<>();
+        courseWrites.flush();
+
+        BulkImporter importer = new BulkImporter(db, IMPORT_MAX_PARALLEL_COMMITS);
+        if (progress != null) {
+            importer.getProgress().observeForever(progress::setValue);
+        }
+        LiveData<BulkImporter.Report> run = json ? importer.importJson(input) : importer.importCsv(input);
+        run.observeForever(report -> {
+            // Imported courses gain class instances that cached copies do not list, and
+            // are missing from the search index
+            clearCache();
+            courseSearchIndex.clear();
+            result.setValue(report);
+            Log.d(TAG, "Import finished with " + report.getFailedRows() + " failed rows");
+        });
+        return result;
+    }
+
+    /**
+     * Export courses, class instances, enrollments and bookings to a newline-delimited
+     * JSON file; see {@link BulkExporter} for the format. If an earlier export to the same
+     * file was interrupted, it is resumed from its checkpoint.
+     * @param output File to write
+     * @param gzip true to gzip-compress the output
+     * @param progress Optional LiveData receiving progress after every written page
+     * @return LiveData with boolean result
+     */
+    public LiveData<Boolean> exportAllData(File output, boolean gzip, MutableLiveData<BulkExporter.Progress> progress) {
+        courseWrites.flush();
+        BulkExporter exporter = new BulkExporter(db, Arrays.asList(COURSES_COLLECTION,
+                CLASS_INSTANCES_COLLECTION, ENROLLMENTS_COLLECTION, BOOKINGS_COLLECTION), output, gzip);
+        if (progress != null) {
+            exporter.getProgress().observeForever(progress::setValue);
+        }
+        return exporter.start(EXPORT_PAGE_SIZE);
+    }
+}
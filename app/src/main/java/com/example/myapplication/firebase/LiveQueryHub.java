@@ -0,0 +1,240 @@
+package com.example.myapplication.firebase;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+
+import com.example.myapplication.model.DirtyTracking;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.MetadataChanges;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares one Firestore snapshot listener per distinct query between all observers.
+ *
+ * Each query is exposed as a LiveData whose active observers act as the reference count:
+ * the listener is attached when the first observer becomes active and detached after a
+ * grace period once the last one goes away, so quick screen transitions do not re-read
+ * the whole result set. Snapshots are applied as DocumentChange deltas, so only added or
+ * modified documents are deserialized. A listener stopped by an error is attached again
+ * with exponential backoff for as long as the query has active observers.
+ *
+ * A key keeps the same LiveData after its listener is detached, so an observer that
+ * comes back and a new caller of {@link #observe} share one listener.
+ */
+public class LiveQueryHub {
+    private static final String TAG = "LiveQueryHub";
+    private static final long DEFAULT_GRACE_PERIOD_MILLIS = 10 * 1000;
+    // Re-attaching a failed listener, with exponential backoff
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Notified for every document change applied to a live query
+     */
+    public interface ChangeListener<T> {
+        /**
+         * @param documentId ID of the changed document
+         * @param value New value, or null if the document was removed
+         */
+        void onDocumentChanged(String documentId, T value);
+    }
+
+    private final Map<String, LiveQuery<?>> queries = new HashMap<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final long gracePeriodMillis;
+
+    public LiveQueryHub() {
+        this(DEFAULT_GRACE_PERIOD_MILLIS);
+    }
+
+    public LiveQueryHub(long gracePeriodMillis) {
+        this.gracePeriodMillis = gracePeriodMillis;
+    }
+
+    /**
+     * Get the shared live result set for a query
+     * @param key Stable key identifying the query, e.g. "classInstances/courseId=abc"
+     * @param query Firestore query to listen to
+     * @param type Model class documents are converted to
+     * @param changeListener Optional listener notified of every applied change
+     * @return LiveData with the current result set, in query order
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> LiveData<List<T>> observe(String key, Query query, Class<T> type,
+                                                      ChangeListener<T> changeListener) {
+        LiveQuery<?> existing = queries.get(key);
+        if (existing != null) {
+            return (LiveQuery<T>) existing;
+        }
+        LiveQuery<T> liveQuery = new LiveQuery<>(key, query, type, changeListener);
+        queries.put(key, liveQuery);
+        return liveQuery;
+    }
+
+    /**
+     * @return Number of queries that currently hold a snapshot listener
+     */
+    public synchronized int attachedCount() {
+        int count = 0;
+        for (LiveQuery<?> liveQuery : queries.values()) {
+            if (liveQuery.registration != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private final class LiveQuery<T> extends LiveData<List<T>> {
+        private final String key;
+        private final Query query;
+        private final Class<T> type;
+        private final ChangeListener<T> changeListener;
+        private final List<T> items = new ArrayList<>();
+        private final Runnable detachRunnable = this::detach;
+        private final Runnable reattachRunnable = this::reattach;
+        private ListenerRegistration registration;
+        private boolean loaded = false;
+        private boolean retryScheduled = false;
+        private long retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+        LiveQuery(String key, Query query, Class<T> type, ChangeListener<T> changeListener) {
+            this.key = key;
+            this.query = query;
+            this.type = type;
+            this.changeListener = changeListener;
+        }
+
+        @Override
+        protected void onActive() {
+            handler.removeCallbacks(detachRunnable);
+            // While a retry is scheduled it attaches, so activations cannot bypass the backoff
+            if (!retryScheduled) {
+                attach();
+            }
+        }
+
+        private void attach() {
+            if (registration != null) {
+                return;
+            }
+            registration = query.addSnapshotListener(MetadataChanges.EXCLUDE, (snapshot, e) -> {
+                if (e != null) {
+                    Log.e(TAG, "Live query failed: " + key, e);
+                    onListenerFailed();
+                    return;
+                }
+                if (snapshot != null) {
+                    retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+                    apply(snapshot.getDocumentChanges());
+                }
+            });
+            Log.d(TAG, "Attached listener: " + key);
+        }
+
+        private void reattach() {
+            retryScheduled = false;
+            if (hasActiveObservers()) {
+                attach();
+            }
+        }
+
+        @Override
+        protected void onInactive() {
+            handler.postDelayed(detachRunnable, gracePeriodMillis);
+        }
+
+        private void detach() {
+            if (hasActiveObservers() || registration == null) {
+                return;
+            }
+            registration.remove();
+            registration = null;
+
+            // A re-attached listener starts over with a full snapshot of ADDED changes
+            items.clear();
+            loaded = false;
+            Log.d(TAG, "Detached listener: " + key);
+        }
+
+        /**
+         * Firestore stops a listener after an error. Observers get the last result, or an
+         * empty one if nothing had loaded, and while any remain a new listener is attached
+         * after a delay that doubles with each consecutive failure.
+         */
+        private void onListenerFailed() {
+            if (registration != null) {
+                registration.remove();
+                registration = null;
+            }
+            setValue(Collections.unmodifiableList(new ArrayList<>(items)));
+            items.clear();
+            loaded = false;
+            if (hasActiveObservers() && !retryScheduled) {
+                retryScheduled = true;
+                handler.postDelayed(reattachRunnable, retryDelayMillis);
+                Log.d(TAG, "Re-attaching in " + retryDelayMillis + " ms: " + key);
+                retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+            }
+        }
+
+        private void apply(List<DocumentChange> changes) {
+            // The first snapshot is always emitted, even when the result set is empty
+            if (changes.isEmpty() && loaded) {
+                return;
+            }
+            loaded = true;
+            for (DocumentChange change : changes) {
+                QueryDocumentSnapshot document = change.getDocument();
+                switch (change.getType()) {
+                    case ADDED: {
+                        T value = toTrackedObject(document);
+                        items.add(change.getNewIndex(), value);
+                        notifyChange(document.getId(), value);
+                        break;
+                    }
+                    case MODIFIED: {
+                        T value = toTrackedObject(document);
+                        if (change.getOldIndex() == change.getNewIndex()) {
+                            items.set(change.getNewIndex(), value);
+                        } else {
+                            items.remove(change.getOldIndex());
+                            items.add(change.getNewIndex(), value);
+                        }
+                        notifyChange(document.getId(), value);
+                        break;
+                    }
+                    case REMOVED:
+                        items.remove(change.getOldIndex());
+                        notifyChange(document.getId(), null);
+                        break;
+                }
+            }
+            setValue(Collections.unmodifiableList(new ArrayList<>(items)));
+        }
+
+        private T toTrackedObject(QueryDocumentSnapshot document) {
+            T value = document.toObject(type);
+            if (value instanceof DirtyTracking) {
+                ((DirtyTracking) value).markClean();
+            }
+            return value;
+        }
+
+        private void notifyChange(String documentId, T value) {
+            if (changeListener != null) {
+                changeListener.onDocumentChanged(documentId, value);
+            }
+        }
+    }
+}
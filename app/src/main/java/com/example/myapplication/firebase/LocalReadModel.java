@@ -0,0 +1,512 @@
+package com.example.myapplication.firebase;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import com.example.myapplication.model.ClassInstance;
+import com.example.myapplication.model.Course;
+import com.example.myapplication.utils.SearchTokens;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.MetadataChanges;
+import com.google.firebase.firestore.QueryDocumentSnapshot;
+import com.google.firebase.firestore.QuerySnapshot;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local SQLite read model mirroring the courses and classInstances collections.
+ *
+ * The tables are kept current from Firestore snapshot listeners and carry secondary
+ * indexes for the search screens (day of week, teacher name tokens and class date),
+ * so searches can be answered locally and offline. Until a snapshot of a collection
+ * confirmed by the server has been applied, the model reports itself as not hydrated
+ * and callers should query Firestore instead. A listener that fails is re-attached with
+ * backoff, and the collection is not hydrated again until the new listener catches up.
+ */
+public class LocalReadModel extends SQLiteOpenHelper {
+    private static final String TAG = "LocalReadModel";
+    private static final String DATABASE_NAME = "read_model.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String COURSES_COLLECTION = "courses";
+    private static final String CLASS_INSTANCES_COLLECTION = "classInstances";
+
+    private static final String TABLE_COURSES = "courses";
+    private static final String TABLE_CLASS_INSTANCES = "class_instances";
+    private static final String TABLE_TEACHER_TOKENS = "teacher_tokens";
+
+    private static LocalReadModel instance;
+
+    // Snapshot application and all writes happen on this thread, in order
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+
+    private FirebaseFirestore firestore;
+    private ListenerRegistration coursesRegistration;
+    private ListenerRegistration classInstancesRegistration;
+    // Hydrated once a snapshot confirmed by the server has been applied
+    private volatile boolean coursesHydrated = false;
+    private volatile boolean classInstancesHydrated = false;
+    // Whether the current listener's first snapshot, which lists every document, was applied
+    private volatile boolean coursesApplied = false;
+    private volatile boolean classInstancesApplied = false;
+
+    // Re-attaching a failed listener, with exponential backoff
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable reattachCourses = this::attachCourses;
+    private final Runnable reattachClassInstances = this::attachClassInstances;
+    private volatile long coursesRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+    private volatile long classInstancesRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+    private LocalReadModel(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Create the read model. Called once from the Application.
+     * @param context Application context
+     */
+    public static synchronized void initialize(Context context) {
+        if (instance == null) {
+            instance = new LocalReadModel(context.getApplicationContext());
+        }
+    }
+
+    /**
+     * @return The read model, or null if {@link #initialize(Context)} has not been called
+     */
+    public static synchronized LocalReadModel getInstance() {
+        return instance;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Let searches read while snapshots are being written
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_COURSES + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "name TEXT, "
+                + "type TEXT, "
+                + "description TEXT, "
+                + "day_of_week TEXT COLLATE NOCASE, "
+                + "time TEXT, "
+                + "capacity INTEGER, "
+                + "duration INTEGER, "
+                + "price REAL, "
+                + "class_instance_ids TEXT, "
+                + "additional_fields TEXT)");
+        db.execSQL("CREATE INDEX idx_courses_day ON " + TABLE_COURSES + " (day_of_week)");
+
+        db.execSQL("CREATE TABLE " + TABLE_CLASS_INSTANCES + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "course_id TEXT, "
+                + "date INTEGER, "
+                + "teacher_name TEXT, "
+                + "comments TEXT, "
+                + "is_cancelled INTEGER)");
+        db.execSQL("CREATE INDEX idx_class_instances_date ON " + TABLE_CLASS_INSTANCES + " (date)");
+        db.execSQL("CREATE INDEX idx_class_instances_course ON " + TABLE_CLASS_INSTANCES + " (course_id)");
+
+        // One row per prefix of each teacher name word, as in the teacherTokens field
+        db.execSQL("CREATE TABLE " + TABLE_TEACHER_TOKENS + " ("
+                + "token TEXT NOT NULL, "
+                + "class_instance_id TEXT NOT NULL, "
+                + "PRIMARY KEY (token, class_instance_id))");
+        db.execSQL("CREATE INDEX idx_teacher_tokens_class_instance ON " + TABLE_TEACHER_TOKENS
+                + " (class_instance_id)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The read model is a disposable mirror; rebuild it from Firestore
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COURSES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CLASS_INSTANCES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TEACHER_TOKENS);
+        onCreate(db);
+    }
+
+    /**
+     * Start mirroring the courses and classInstances collections
+     * @param firestore Firestore instance to listen to
+     */
+    public synchronized void attach(FirebaseFirestore firestore) {
+        if (this.firestore != null) {
+            return;
+        }
+        this.firestore = firestore;
+        attachCourses();
+        attachClassInstances();
+    }
+
+    /**
+     * Stop mirroring. The tables keep their contents but are no longer considered current.
+     */
+    public synchronized void detach() {
+        handler.removeCallbacks(reattachCourses);
+        handler.removeCallbacks(reattachClassInstances);
+        if (coursesRegistration != null) {
+            coursesRegistration.remove();
+            coursesRegistration = null;
+        }
+        if (classInstancesRegistration != null) {
+            classInstancesRegistration.remove();
+            classInstancesRegistration = null;
+        }
+        firestore = null;
+        coursesHydrated = false;
+        classInstancesHydrated = false;
+        coursesApplied = false;
+        classInstancesApplied = false;
+    }
+
+    // Metadata changes are included so the snapshot that confirms a cached result with
+    // the server arrives even when no document changed
+    private synchronized void attachCourses() {
+        if (firestore == null || coursesRegistration != null) {
+            return;
+        }
+        coursesRegistration = firestore.collection(COURSES_COLLECTION)
+                .addSnapshotListener(writeExecutor, MetadataChanges.INCLUDE, (snapshot, e) -> {
+                    if (e != null) {
+                        Log.e(TAG, "Courses listener failed", e);
+                        onCoursesFailed();
+                        return;
+                    }
+                    if (snapshot != null) {
+                        applyCourses(snapshot, !coursesApplied);
+                        coursesApplied = true;
+                        // A snapshot from the offline cache may be empty or partial
+                        if (!snapshot.getMetadata().isFromCache()) {
+                            coursesHydrated = true;
+                            coursesRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+                        }
+                    }
+                });
+    }
+
+    private synchronized void attachClassInstances() {
+        if (firestore == null || classInstancesRegistration != null) {
+            return;
+        }
+        classInstancesRegistration = firestore.collection(CLASS_INSTANCES_COLLECTION)
+                .addSnapshotListener(writeExecutor, MetadataChanges.INCLUDE, (snapshot, e) -> {
+                    if (e != null) {
+                        Log.e(TAG, "Class instances listener failed", e);
+                        onClassInstancesFailed();
+                        return;
+                    }
+                    if (snapshot != null) {
+                        applyClassInstances(snapshot, !classInstancesApplied);
+                        classInstancesApplied = true;
+                        if (!snapshot.getMetadata().isFromCache()) {
+                            classInstancesHydrated = true;
+                            classInstancesRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+                        }
+                    }
+                });
+    }
+
+    // Firestore stops a listener after an error; searches go back to Firestore until a
+    // new listener has caught up with the server
+
+    private synchronized void onCoursesFailed() {
+        coursesHydrated = false;
+        coursesApplied = false;
+        if (coursesRegistration != null) {
+            coursesRegistration.remove();
+            coursesRegistration = null;
+        }
+        if (firestore != null) {
+            handler.postDelayed(reattachCourses, coursesRetryDelayMillis);
+            coursesRetryDelayMillis = Math.min(coursesRetryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    private synchronized void onClassInstancesFailed() {
+        classInstancesHydrated = false;
+        classInstancesApplied = false;
+        if (classInstancesRegistration != null) {
+            classInstancesRegistration.remove();
+            classInstancesRegistration = null;
+        }
+        if (firestore != null) {
+            handler.postDelayed(reattachClassInstances, classInstancesRetryDelayMillis);
+            classInstancesRetryDelayMillis = Math.min(classInstancesRetryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    public boolean isCoursesHydrated() {
+        return coursesHydrated;
+    }
+
+    public boolean isClassInstancesHydrated() {
+        return classInstancesHydrated;
+    }
+
+    // Snapshot application
+
+    private void applyCourses(QuerySnapshot snapshot, boolean fullSnapshot) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            // The first snapshot after attaching lists every document as ADDED, so it
+            // replaces the table and drops rows deleted while we were not listening
+            if (fullSnapshot) {
+                db.delete(TABLE_COURSES, null, null);
+            }
+            ContentValues values = new ContentValues();
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                QueryDocumentSnapshot document = change.getDocument();
+                if (change.getType() == DocumentChange.Type.REMOVED) {
+                    db.delete(TABLE_COURSES, "id = ?", new String[]{document.getId()});
+                    continue;
+                }
+                Course course = document.toObject(Course.class);
+                values.clear();
+                values.put("id", document.getId());
+                values.put("name", course.getName());
+                values.put("type", course.getType());
+                values.put("description", course.getDescription());
+                values.put("day_of_week", course.getDayOfWeek());
+                values.put("time", course.getTime());
+                values.put("capacity", course.getCapacity());
+                values.put("duration", course.getDuration());
+                values.put("price", course.getPrice());
+                values.put("class_instance_ids", toJson(course.getClassInstanceIds()));
+                values.put("additional_fields", toJson(course.getAdditionalFields()));
+                db.insertWithOnConflict(TABLE_COURSES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void applyClassInstances(QuerySnapshot snapshot, boolean fullSnapshot) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (fullSnapshot) {
+                db.delete(TABLE_CLASS_INSTANCES, null, null);
+                db.delete(TABLE_TEACHER_TOKENS, null, null);
+            }
+            ContentValues values = new ContentValues();
+            ContentValues tokenValues = new ContentValues();
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                QueryDocumentSnapshot document = change.getDocument();
+                String[] idArgs = {document.getId()};
+                if (!fullSnapshot) {
+                    db.delete(TABLE_TEACHER_TOKENS, "class_instance_id = ?", idArgs);
+                }
+                if (change.getType() == DocumentChange.Type.REMOVED) {
+                    db.delete(TABLE_CLASS_INSTANCES, "id = ?", idArgs);
+                    continue;
+                }
+                ClassInstance classInstance = document.toObject(ClassInstance.class);
+                values.clear();
+                values.put("id", document.getId());
+                values.put("course_id", classInstance.getCourseId());
+                if (classInstance.getDate() != null) {
+                    values.put("date", classInstance.getDate().getTime());
+                } else {
+                    values.putNull("date");
+                }
+                values.put("teacher_name", classInstance.getTeacherName());
+                values.put("comments", classInstance.getComments());
+                values.put("is_cancelled", classInstance.isCancelled() ? 1 : 0);
+                db.insertWithOnConflict(TABLE_CLASS_INSTANCES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                for (String token : classInstance.getTeacherTokens()) {
+                    tokenValues.clear();
+                    tokenValues.put("token", token);
+                    tokenValues.put("class_instance_id", document.getId());
+                    db.insertWithOnConflict(TABLE_TEACHER_TOKENS, null, tokenValues, SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Queries
+
+    /**
+     * Find courses scheduled on a day of the week
+     * @param dayOfWeek Day name, matched case-insensitively
+     * @return Matching courses
+     */
+    @WorkerThread
+    public List<Course> findCoursesByDay(String dayOfWeek) {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT * FROM " + TABLE_COURSES + " WHERE day_of_week = ?", new String[]{dayOfWeek});
+        try {
+            List<Course> courses = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                courses.add(readCourse(cursor));
+            }
+            return courses;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Find class instances whose teacher name has a word starting with each word of the
+     * query, ignoring case and accents, e.g. "smi" or "anna s" for "Anna Smith"
+     * @param teacherQuery Teacher name or part of it
+     * @return Matching class instances
+     */
+    @WorkerThread
+    public List<ClassInstance> findClassInstancesByTeacher(String teacherQuery) {
+        List<String> queryWords = SearchTokens.words(teacherQuery);
+        if (queryWords.isEmpty()) {
+            return new ArrayList<>();
+        }
+        StringBuilder where = new StringBuilder();
+        String[] args = new String[queryWords.size()];
+        for (int i = 0; i < queryWords.size(); i++) {
+            if (i > 0) {
+                where.append(" AND ");
+            }
+            where.append("id IN (SELECT class_instance_id FROM " + TABLE_TEACHER_TOKENS + " WHERE token = ?)");
+            args[i] = SearchTokens.indexToken(queryWords.get(i));
+        }
+        List<ClassInstance> candidates = queryClassInstances(where.toString(), args);
+        // Words longer than the stored prefixes are only matched on their prefix above
+        List<ClassInstance> matches = new ArrayList<>(candidates.size());
+        for (ClassInstance classInstance : candidates) {
+            if (SearchTokens.matches(queryWords, classInstance.getTeacherName())) {
+                matches.add(classInstance);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Find class instances dated within an inclusive range
+     * @param startMillis Range start, epoch milliseconds
+     * @param endMillis Range end, epoch milliseconds
+     * @return Matching class instances ordered by date
+     */
+    @WorkerThread
+    public List<ClassInstance> findClassInstancesBetween(long startMillis, long endMillis) {
+        return queryClassInstances("date >= ? AND date <= ? ORDER BY date",
+                new String[]{String.valueOf(startMillis), String.valueOf(endMillis)});
+    }
+
+    private List<ClassInstance> queryClassInstances(String where, String[] args) {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT * FROM " + TABLE_CLASS_INSTANCES + " WHERE " + where, args);
+        try {
+            List<ClassInstance> classInstances = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                classInstances.add(readClassInstance(cursor));
+            }
+            return classInstances;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Course readCourse(Cursor cursor) {
+        Course course = new Course(
+                cursor.getString(cursor.getColumnIndexOrThrow("name")),
+                cursor.getString(cursor.getColumnIndexOrThrow("type")),
+                cursor.getString(cursor.getColumnIndexOrThrow("description")),
+                cursor.getString(cursor.getColumnIndexOrThrow("day_of_week")),
+                cursor.getString(cursor.getColumnIndexOrThrow("time")),
+                cursor.getInt(cursor.getColumnIndexOrThrow("capacity")),
+                cursor.getInt(cursor.getColumnIndexOrThrow("duration")),
+                cursor.getDouble(cursor.getColumnIndexOrThrow("price")));
+        course.setId(cursor.getString(cursor.getColumnIndexOrThrow("id")));
+        course.setClassInstanceIds(readStringList(cursor.getString(cursor.getColumnIndexOrThrow("class_instance_ids"))));
+        course.setAdditionalFields(readMap(cursor.getString(cursor.getColumnIndexOrThrow("additional_fields"))));
+        course.markClean();
+        return course;
+    }
+
+    private ClassInstance readClassInstance(Cursor cursor) {
+        int dateIndex = cursor.getColumnIndexOrThrow("date");
+        ClassInstance classInstance = new ClassInstance(
+                cursor.getString(cursor.getColumnIndexOrThrow("course_id")),
+                cursor.isNull(dateIndex) ? null : new Date(cursor.getLong(dateIndex)),
+                cursor.getString(cursor.getColumnIndexOrThrow("teacher_name")),
+                cursor.getString(cursor.getColumnIndexOrThrow("comments")));
+        classInstance.setId(cursor.getString(cursor.getColumnIndexOrThrow("id")));
+        classInstance.setCancelled(cursor.getInt(cursor.getColumnIndexOrThrow("is_cancelled")) != 0);
+        classInstance.markClean();
+        return classInstance;
+    }
+
+    // Helpers
+
+    private static String toJson(List<String> values) {
+        return values == null ? null : new JSONArray(values).toString();
+    }
+
+    private static String toJson(Map<String, Object> values) {
+        return values == null ? null : new JSONObject(values).toString();
+    }
+
+    private static List<String> readStringList(String json) {
+        List<String> values = new ArrayList<>();
+        if (json == null) {
+            return values;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                values.add(array.getString(i));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Unreadable class instance IDs: " + e.getMessage());
+        }
+        return values;
+    }
+
+    private static Map<String, Object> readMap(String json) {
+        Map<String, Object> values = new HashMap<>();
+        if (json == null) {
+            return values;
+        }
+        try {
+            JSONObject object = new JSONObject(json);
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                Object value = object.get(key);
+                values.put(key, value == JSONObject.NULL ? null : value);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Unreadable additional fields: " + e.getMessage());
+        }
+        return values;
+    }
+}
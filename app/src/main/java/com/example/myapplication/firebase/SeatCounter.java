@@ -0,0 +1,435 @@
+package com.example.myapplication.firebase;
+
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.example.myapplication.model.Enrollment;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.firestore.AggregateSource;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+import com.google.firebase.firestore.Transaction;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps a denormalized count of taken seats on each class instance and books seats
+ * against the course capacity in transactions.
+ *
+ * By default the count is stored in the class instance's "enrolledCount" field. Popular
+ * classes can be split into shards with {@link #enableSharding(String, int)}: the
+ * capacity is then divided between shard documents under the class instance, and each
+ * booking only contends on one randomly chosen shard. Since every shard enforces its own
+ * share, the total never exceeds the capacity.
+ *
+ * Booking reads a fixed number of documents regardless of how many enrollments exist.
+ */
+public class SeatCounter {
+    private static final String TAG = "SeatCounter";
+    private static final String COURSES_COLLECTION = "courses";
+    private static final String CLASS_INSTANCES_COLLECTION = "classInstances";
+    private static final String ENROLLMENTS_COLLECTION = "enrollments";
+    private static final String SHARDS_COLLECTION = "seatShards";
+    public static final String ENROLLED_COUNT_FIELD = "enrolledCount";
+    private static final String SHARD_COUNT_FIELD = "seatShards";
+    private static final String SHARD_SEATS_FIELD = "count";
+
+    /**
+     * Result of a booking attempt
+     */
+    public enum Outcome {
+        ENROLLED,
+        ALREADY_ENROLLED,
+        FULL,
+        UNAVAILABLE
+    }
+
+    // Internal result of a single transaction
+    private enum Attempt {
+        ENROLLED,
+        ALREADY_ENROLLED,
+        FULL,
+        SHARD_FULL,
+        UNAVAILABLE,
+        NEEDS_RECOUNT
+    }
+
+    private final FirebaseFirestore db;
+    private final Random random = new Random();
+
+    public SeatCounter(FirebaseFirestore db) {
+        this.db = db;
+    }
+
+    /**
+     * Book a seat for a user, creating the enrollment document in the same transaction.
+     * If the enrollment document already exists nothing is written, so retries are safe.
+     * Until {@link DataMigrations#ENROLLMENT_IDS} has completed, enrollments stored under
+     * other IDs are looked up by a query first and also count as already enrolled.
+     * @param enrollmentRef Document the enrollment is written to
+     * @param enrollment Enrollment to write
+     * @return Task with the booking outcome
+     */
+    public Task<Outcome> enroll(DocumentReference enrollmentRef, Enrollment enrollment) {
+        if (DataMigrations.isComplete(DataMigrations.ENROLLMENT_IDS)) {
+            return attemptEnroll(enrollmentRef, enrollment, -1, 0, true);
+        }
+        return db.collection(ENROLLMENTS_COLLECTION)
+                .whereEqualTo("userId", enrollment.getUserId())
+                .whereEqualTo("classInstanceId", enrollment.getClassInstanceId())
+                .limit(1)
+                .get()
+                .continueWithTask(task -> {
+                    if (task.isSuccessful() && !task.getResult().isEmpty()) {
+                        return Tasks.forResult(Outcome.ALREADY_ENROLLED);
+                    }
+                    // The transaction checks the enrollment document itself either way
+                    return attemptEnroll(enrollmentRef, enrollment, -1, 0, true);
+                });
+    }
+
+    /**
+     * Same as {@link #enroll(DocumentReference, Enrollment)}, reported as LiveData
+     * @return LiveData with true if a seat was booked
+     */
+    public LiveData<Boolean> enrollLiveData(DocumentReference enrollmentRef, Enrollment enrollment) {
+        MutableLiveData<Boolean> result = new MutableLiveData<>();
+        enroll(enrollmentRef, enrollment)
+                .addOnSuccessListener(outcome -> {
+                    result.setValue(outcome == Outcome.ENROLLED || outcome == Outcome.ALREADY_ENROLLED);
+                    Log.d(TAG, "Enrollment in " + enrollment.getClassInstanceId() + ": " + outcome);
+                })
+                .addOnFailureListener(e -> {
+                    result.setValue(false);
+                    Log.e(TAG, "Error enrolling in class", e);
+                });
+        return result;
+    }
+
+    /**
+     * Delete an enrollment and give its seat back, in one transaction
+     * @param enrollmentRef Enrollment to delete
+     * @return Task with true if the enrollment existed and was deleted
+     */
+    public Task<Boolean> cancel(DocumentReference enrollmentRef) {
+        return db.runTransaction(transaction -> {
+            DocumentSnapshot enrollment = transaction.get(enrollmentRef);
+            if (!enrollment.exists()) {
+                return false;
+            }
+            releaseSeat(transaction, enrollment);
+            transaction.delete(enrollmentRef);
+            return true;
+        });
+    }
+
+    /**
+     * Move an enrollment stored under another ID to its deterministic ID, in one
+     * transaction. If the user also holds an enrollment under the deterministic ID, the
+     * duplicate is deleted and its seat given back.
+     * @param legacyRef Enrollment under a legacy ID
+     * @return Task with true if the enrollment is now stored under its deterministic ID;
+     *         false if it no longer exists or lacks its user or class instance
+     */
+    Task<Boolean> migrateEnrollment(DocumentReference legacyRef) {
+        return db.runTransaction(transaction -> {
+            DocumentSnapshot legacy = transaction.get(legacyRef);
+            String userId = legacy.getString("userId");
+            String classInstanceId = legacy.getString("classInstanceId");
+            if (!legacy.exists() || userId == null || classInstanceId == null) {
+                return false;
+            }
+            DocumentReference targetRef = db.collection(ENROLLMENTS_COLLECTION)
+                    .document(Enrollment.documentId(userId, classInstanceId));
+            if (targetRef.getId().equals(legacyRef.getId())) {
+                return true;
+            }
+            if (transaction.get(targetRef).exists()) {
+                releaseSeat(transaction, legacy);
+            } else {
+                transaction.set(targetRef, legacy.getData());
+            }
+            transaction.delete(legacyRef);
+            return true;
+        });
+    }
+
+    /**
+     * Give back the seat held by an enrollment. Reads first, then writes, so the caller
+     * may only write afterwards.
+     */
+    private void releaseSeat(Transaction transaction, DocumentSnapshot enrollment) throws FirebaseFirestoreException {
+        String classInstanceId = enrollment.getString("classInstanceId");
+        DocumentReference classInstanceRef = db.collection(CLASS_INSTANCES_COLLECTION).document(classInstanceId);
+        DocumentSnapshot classInstance = transaction.get(classInstanceRef);
+
+        int shardCount = shardCount(classInstance);
+        Long seatShard = enrollment.getLong("seatShard");
+        DocumentReference counterRef = null;
+        String counterField = SHARD_SEATS_FIELD;
+        if (shardCount > 1 && seatShard != null && seatShard < shardCount) {
+            counterRef = shardRef(classInstanceId, seatShard.intValue());
+        } else if (shardCount > 1) {
+            // Booked before sharding; give the seat back to any shard that holds one
+            for (int i = 0; i < shardCount && counterRef == null; i++) {
+                DocumentReference ref = shardRef(classInstanceId, i);
+                if (seats(transaction.get(ref), SHARD_SEATS_FIELD) > 0) {
+                    counterRef = ref;
+                }
+            }
+        } else if (classInstance.exists() && seats(classInstance, ENROLLED_COUNT_FIELD) > 0) {
+            counterRef = classInstanceRef;
+            counterField = ENROLLED_COUNT_FIELD;
+        }
+
+        if (counterRef != null) {
+            transaction.update(counterRef, counterField, FieldValue.increment(-1));
+        }
+    }
+
+    /**
+     * Split a class instance's seat count into shards, for classes that are booked by
+     * many users at once. Existing bookings are carried over.
+     * @param classInstanceId Class instance ID
+     * @param shardCount Number of shards, at least 2
+     * @return LiveData with boolean result
+     */
+    public LiveData<Boolean> enableSharding(String classInstanceId, int shardCount) {
+        MutableLiveData<Boolean> result = new MutableLiveData<>();
+        if (shardCount < 2) {
+            result.setValue(false);
+            return result;
+        }
+        DocumentReference classInstanceRef = db.collection(CLASS_INSTANCES_COLLECTION).document(classInstanceId);
+        db.runTransaction(transaction -> {
+            DocumentSnapshot classInstance = transaction.get(classInstanceRef);
+            if (!classInstance.exists() || shardCount(classInstance) > 1) {
+                return false;
+            }
+            Long enrolled = classInstance.getLong(ENROLLED_COUNT_FIELD);
+            if (enrolled == null) {
+                throw new FirebaseFirestoreException("Seat count not initialized",
+                        FirebaseFirestoreException.Code.FAILED_PRECONDITION);
+            }
+            DocumentSnapshot course = transaction.get(
+                    db.collection(COURSES_COLLECTION).document(classInstance.getString("courseId")));
+            int capacity = capacity(course);
+
+            // Fill shards up to their share so the per-shard limits hold from the start
+            long remaining = enrolled;
+            for (int i = 0; i < shardCount; i++) {
+                long seats = Math.min(remaining, shardCapacity(capacity, shardCount, i));
+                remaining -= seats;
+                Map<String, Object> shard = new HashMap<>();
+                shard.put(SHARD_SEATS_FIELD, seats);
+                transaction.set(shardRef(classInstanceId, i), shard);
+            }
+            transaction.update(classInstanceRef, SHARD_COUNT_FIELD, shardCount);
+            return true;
+        }).addOnSuccessListener(success -> {
+            result.setValue(success);
+            Log.d(TAG, "Sharded seat count of " + classInstanceId + " into " + shardCount + ": " + success);
+        }).addOnFailureListener(e -> {
+            result.setValue(false);
+            Log.e(TAG, "Error sharding seat count", e);
+        });
+        return result;
+    }
+
+    /**
+     * Get the number of seats taken in a class instance
+     * @param classInstanceId Class instance ID
+     * @return LiveData with the count, or -1 on error
+     */
+    public LiveData<Integer> getEnrolledCount(String classInstanceId) {
+        MutableLiveData<Integer> result = new MutableLiveData<>();
+        DocumentReference classInstanceRef = db.collection(CLASS_INSTANCES_COLLECTION).document(classInstanceId);
+        classInstanceRef.get()
+                .continueWithTask(task -> {
+                    DocumentSnapshot classInstance = task.getResult();
+                    int shardCount = shardCount(classInstance);
+                    if (shardCount <= 1) {
+                        return Tasks.forResult(seats(classInstance, ENROLLED_COUNT_FIELD));
+                    }
+                    List<Task<DocumentSnapshot>> shards = new ArrayList<>();
+                    for (int i = 0; i < shardCount; i++) {
+                        shards.add(shardRef(classInstanceId, i).get());
+                    }
+                    return Tasks.<DocumentSnapshot>whenAllSuccess(shards).continueWith(shardsTask -> {
+                        long total = 0;
+                        for (DocumentSnapshot shard : shardsTask.getResult()) {
+                            total += seats(shard, SHARD_SEATS_FIELD);
+                        }
+                        return total;
+                    });
+                })
+                .addOnSuccessListener(count -> result.setValue((int) (long) count))
+                .addOnFailureListener(e -> {
+                    result.setValue(-1);
+                    Log.e(TAG, "Error getting enrolled count", e);
+                });
+        return result;
+    }
+
+    private Task<Outcome> attemptEnroll(DocumentReference enrollmentRef, Enrollment enrollment,
+                                        int shard, int triedShards, boolean mayRecount) {
+        String classInstanceId = enrollment.getClassInstanceId();
+        DocumentReference classInstanceRef = db.collection(CLASS_INSTANCES_COLLECTION).document(classInstanceId);
+        int[] chosenShard = {shard};
+        int[] shardCount = {1};
+
+        return db.runTransaction((Transaction.Function<Attempt>) transaction -> {
+            if (transaction.get(enrollmentRef).exists()) {
+                return Attempt.ALREADY_ENROLLED;
+            }
+            DocumentSnapshot classInstance = transaction.get(classInstanceRef);
+            if (!classInstance.exists() || Boolean.TRUE.equals(classInstance.getBoolean("cancelled"))) {
+                return Attempt.UNAVAILABLE;
+            }
+            DocumentSnapshot course = transaction.get(
+                    db.collection(COURSES_COLLECTION).document(classInstance.getString("courseId")));
+            if (!course.exists()) {
+                return Attempt.UNAVAILABLE;
+            }
+            int capacity = capacity(course);
+            shardCount[0] = shardCount(classInstance);
+
+            if (shardCount[0] <= 1) {
+                Long enrolled = classInstance.getLong(ENROLLED_COUNT_FIELD);
+                if (enrolled == null) {
+                    return Attempt.NEEDS_RECOUNT;
+                }
+                if (enrolled >= capacity) {
+                    return Attempt.FULL;
+                }
+                enrollment.setSeatShard(null);
+                transaction.update(classInstanceRef, ENROLLED_COUNT_FIELD, enrolled + 1);
+            } else {
+                if (chosenShard[0] < 0 || chosenShard[0] >= shardCount[0]) {
+                    chosenShard[0] = random.nextInt(shardCount[0]);
+                }
+                DocumentReference ref = shardRef(classInstanceId, chosenShard[0]);
+                long seats = seats(transaction.get(ref), SHARD_SEATS_FIELD);
+                if (seats >= shardCapacity(capacity, shardCount[0], chosenShard[0])) {
+                    return Attempt.SHARD_FULL;
+                }
+                enrollment.setSeatShard(chosenShard[0]);
+                transaction.update(ref, SHARD_SEATS_FIELD, seats + 1);
+            }
+            transaction.set(enrollmentRef, enrollment);
+            return Attempt.ENROLLED;
+        }).continueWithTask(task -> {
+            switch (task.getResult()) {
+                case ENROLLED:
+                    return Tasks.forResult(Outcome.ENROLLED);
+                case ALREADY_ENROLLED:
+                    return Tasks.forResult(Outcome.ALREADY_ENROLLED);
+                case SHARD_FULL:
+                    // Other shards may still have seats; try them in turn
+                    if (triedShards + 1 < shardCount[0]) {
+                        int next = (chosenShard[0] + 1) % shardCount[0];
+                        return attemptEnroll(enrollmentRef, enrollment, next, triedShards + 1, mayRecount);
+                    }
+                    return Tasks.forResult(Outcome.FULL);
+                case NEEDS_RECOUNT:
+                    if (mayRecount) {
+                        return recount(classInstanceId).continueWithTask(recountTask ->
+                                attemptEnroll(enrollmentRef, enrollment, -1, 0, false));
+                    }
+                    return Tasks.forResult(Outcome.UNAVAILABLE);
+                case FULL:
+                    return Tasks.forResult(Outcome.FULL);
+                default:
+                    return Tasks.forResult(Outcome.UNAVAILABLE);
+            }
+        });
+    }
+
+    /**
+     * Initialize the seat count of a class instance created before seat counting, from
+     * a server-side count of its enrollments
+     */
+    private Task<Void> recount(String classInstanceId) {
+        DocumentReference classInstanceRef = db.collection(CLASS_INSTANCES_COLLECTION).document(classInstanceId);
+        return db.collection(ENROLLMENTS_COLLECTION)
+                .whereEqualTo("classInstanceId", classInstanceId)
+                .count()
+                .get(AggregateSource.SERVER)
+                .continueWithTask(task -> {
+                    long count = task.getResult().getCount();
+                    // Only set the count if nobody else initialized it in the meantime
+                    return db.runTransaction(transaction -> {
+                        DocumentSnapshot classInstance = transaction.get(classInstanceRef);
+                        if (classInstance.exists() && classInstance.getLong(ENROLLED_COUNT_FIELD) == null) {
+                            transaction.update(classInstanceRef, ENROLLED_COUNT_FIELD, count);
+                        }
+                        return null;
+                    });
+                });
+    }
+
+    /**
+     * Start the seat count of a class instance at zero, in the batch that creates it, so
+     * its first booking does not have to count enrollments
+     * @param batch Batch that sets the class instance document before this call
+     * @param classInstanceRef New class instance
+     */
+    public static void initializeSeatCount(WriteBatch batch, DocumentReference classInstanceRef) {
+        batch.update(classInstanceRef, ENROLLED_COUNT_FIELD, 0L);
+    }
+
+    /**
+     * Seat shard documents stored under a class instance, which have to be deleted
+     * together with it
+     * @param classInstance Class instance document
+     * @return References to its shards; empty if its seat count is not sharded
+     */
+    static List<DocumentReference> shardRefs(DocumentSnapshot classInstance) {
+        int shardCount = shardCount(classInstance);
+        List<DocumentReference> refs = new ArrayList<>();
+        for (int i = 0; shardCount > 1 && i < shardCount; i++) {
+            refs.add(classInstance.getReference().collection(SHARDS_COLLECTION).document(String.valueOf(i)));
+        }
+        return refs;
+    }
+
+    private DocumentReference shardRef(String classInstanceId, int shard) {
+        return db.collection(CLASS_INSTANCES_COLLECTION)
+                .document(classInstanceId)
+                .collection(SHARDS_COLLECTION)
+                .document(String.valueOf(shard));
+    }
+
+    private static int shardCount(DocumentSnapshot classInstance) {
+        Long shards = classInstance != null && classInstance.exists() ? classInstance.getLong(SHARD_COUNT_FIELD) : null;
+        return shards != null ? shards.intValue() : 1;
+    }
+
+    private static long seats(DocumentSnapshot document, String field) {
+        Long seats = document != null && document.exists() ? document.getLong(field) : null;
+        return seats != null ? seats : 0;
+    }
+
+    private static int capacity(DocumentSnapshot course) {
+        Long capacity = course.getLong("capacity");
+        return capacity != null ? capacity.intValue() : 0;
+    }
+
+    /**
+     * Share of the capacity held by one shard; the shares add up to the capacity
+     */
+    private static long shardCapacity(int capacity, int shardCount, int shard) {
+        return capacity / shardCount + (shard < capacity % shardCount ? 1 : 0);
+    }
+}
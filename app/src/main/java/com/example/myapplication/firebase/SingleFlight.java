@@ -0,0 +1,117 @@
+package com.example.myapplication.firebase;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces concurrent loads of the same document into a single in-flight request.
+ *
+ * The first caller for a key starts the load; callers that arrive before it completes
+ * wait for the same result. Every caller gets its own LiveData, and if a copier is given
+ * every caller after the first gets its own copy of the value, so mutable values are not
+ * shared between them. Once the load completes the key is released, so later calls start
+ * a fresh load.
+ *
+ * @param <V> Loaded value type
+ */
+public class SingleFlight<V> {
+
+    /**
+     * Delivers the result of a load
+     */
+    public interface Completion<V> {
+        void complete(V value);
+    }
+
+    /**
+     * Starts a load and reports its result through the given completion
+     */
+    public interface Loader<V> {
+        void load(Completion<V> completion);
+    }
+
+    /**
+     * Makes an independent copy of a loaded value for one more caller
+     */
+    public interface Copier<V> {
+        V copy(V value);
+    }
+
+    private final Map<String, List<MutableLiveData<V>>> inFlight = new HashMap<>();
+    private final Copier<V> copier;
+    private long loadCount = 0;
+    private long coalescedCount = 0;
+
+    /**
+     * Coalesce loads of immutable values, which callers may share
+     */
+    public SingleFlight() {
+        this(null);
+    }
+
+    /**
+     * @param copier Copies the loaded value for each caller that joined a load, or null
+     *               to share it
+     */
+    public SingleFlight(Copier<V> copier) {
+        this.copier = copier;
+    }
+
+    /**
+     * Join the in-flight load for a key, or start one if none is running
+     * @param key Document ID
+     * @param loader Loader used when no request is in flight
+     * @return LiveData of this caller that receives the loaded value once
+     */
+    public LiveData<V> execute(String key, Loader<V> loader) {
+        MutableLiveData<V> target = new MutableLiveData<>();
+        List<MutableLiveData<V>> waiters;
+        synchronized (this) {
+            waiters = inFlight.get(key);
+            if (waiters != null) {
+                coalescedCount++;
+                waiters.add(target);
+                return target;
+            }
+            waiters = new ArrayList<>();
+            waiters.add(target);
+            inFlight.put(key, waiters);
+            loadCount++;
+        }
+
+        final List<MutableLiveData<V>> joined = waiters;
+        loader.load(value -> {
+            synchronized (SingleFlight.this) {
+                inFlight.remove(key, joined);
+            }
+            for (int i = 0; i < joined.size(); i++) {
+                boolean copy = i > 0 && copier != null && value != null;
+                joined.get(i).setValue(copy ? copier.copy(value) : value);
+            }
+        });
+        return target;
+    }
+
+    public synchronized int inFlightCount() {
+        return inFlight.size();
+    }
+
+    public synchronized long loadCount() {
+        return loadCount;
+    }
+
+    public synchronized long coalescedCount() {
+        return coalescedCount;
+    }
+
+    public synchronized String stats() {
+        return "loads=" + loadCount
+                + ", coalesced=" + coalescedCount
+                + ", inFlight=" + inFlight.size();
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.myapplication.firebase;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind queue that coalesces document writes made within a short window.
+ *
+ * Writes are keyed by document path; a later set or delete of the same document replaces
+ * the pending one, and partial updates are merged into a pending update. All callers of
+ * the coalesced writes are completed with the result of the write that is actually
+ * committed. Pending writes are flushed as WriteBatch commits
+ * of at most 500 operations once the window elapses, or immediately on {@link #flush()}.
+ */
+public class WriteBehindQueue {
+    private static final String TAG = "WriteBehindQueue";
+    private static final long DEFAULT_WINDOW_MILLIS = 500;
+    private static final int MAX_BATCH_WRITES = 500;
+
+    private static final class PendingWrite {
+        final DocumentReference reference;
+        Object data; // null for a delete
+        Map<String, Object> fields; // set for a partial update
+        final List<MutableLiveData<Boolean>> waiters = new ArrayList<>(1);
+
+        PendingWrite(DocumentReference reference) {
+            this.reference = reference;
+        }
+    }
+
+    private final FirebaseFirestore db;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+    private final long windowMillis;
+    private Map<String, PendingWrite> pending = new LinkedHashMap<>();
+    private long writeCount = 0;
+    private long coalescedCount = 0;
+    private long commitCount = 0;
+
+    public WriteBehindQueue(FirebaseFirestore db) {
+        this(db, DEFAULT_WINDOW_MILLIS);
+    }
+
+    public WriteBehindQueue(FirebaseFirestore db, long windowMillis) {
+        this.db = db;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Queue a full overwrite of a document
+     * @param reference Document to write
+     * @param data Object to write; must not be modified by the caller afterwards
+     * @return LiveData that receives the result once the write is committed
+     */
+    public LiveData<Boolean> set(DocumentReference reference, Object data) {
+        return enqueue(reference, data, null);
+    }
+
+    /**
+     * Queue a partial update of a document. It is merged into a pending update of the same
+     * document unless both touch a field with a FieldValue transform, in which case the
+     * pending writes are flushed first to keep them in order.
+     * @param reference Document to update
+     * @param fields Field paths and values to update
+     * @return LiveData that receives the result once the update is committed
+     */
+    public LiveData<Boolean> update(DocumentReference reference, Map<String, Object> fields) {
+        // Checked and queued under one lock, so no other write to the document can slip
+        // in between and be merged with an update it must not be merged with
+        synchronized (this) {
+            PendingWrite existing = pending.get(reference.getPath());
+            if (existing != null && !canMerge(existing.fields, fields)) {
+                flushLocked();
+            }
+            return enqueue(reference, null, new HashMap<>(fields));
+        }
+    }
+
+    /**
+     * Queue a document deletion, replacing any pending write to it
+     * @return LiveData that receives the result once the delete is committed
+     */
+    public LiveData<Boolean> delete(DocumentReference reference) {
+        return enqueue(reference, null, null);
+    }
+
+    /**
+     * Drop any pending write to a document, e.g. because it is deleted by another
+     * operation. Callers waiting on the dropped write receive false.
+     */
+    public void discard(DocumentReference reference) {
+        PendingWrite write;
+        synchronized (this) {
+            write = pending.remove(reference.getPath());
+        }
+        if (write != null) {
+            complete(write, false);
+            Log.d(TAG, "Discarded pending write: " + reference.getPath());
+        }
+    }
+
+    /**
+     * Commit all pending writes now
+     */
+    public synchronized void flush() {
+        flushLocked();
+    }
+
+    /**
+     * Commit all pending writes. Batches are handed to Firestore while the lock is held,
+     * so commits start in the order their writes were queued.
+     */
+    private void flushLocked() {
+        handler.removeCallbacks(flushRunnable);
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, PendingWrite> toFlush = pending;
+        pending = new LinkedHashMap<>();
+
+        List<PendingWrite> writes = new ArrayList<>(toFlush.values());
+        for (int from = 0; from < writes.size(); from += MAX_BATCH_WRITES) {
+            List<PendingWrite> chunk = writes.subList(from, Math.min(from + MAX_BATCH_WRITES, writes.size()));
+            WriteBatch batch = db.batch();
+            for (PendingWrite write : chunk) {
+                if (write.fields != null) {
+                    batch.update(write.reference, write.fields);
+                } else if (write.data != null) {
+                    batch.set(write.reference, write.data);
+                } else {
+                    batch.delete(write.reference);
+                }
+            }
+            commitCount++;
+            batch.commit()
+                    .addOnSuccessListener(aVoid -> {
+                        for (PendingWrite write : chunk) {
+                            complete(write, true);
+                        }
+                        Log.d(TAG, "Committed " + chunk.size() + " coalesced writes");
+                    })
+                    .addOnFailureListener(e -> {
+                        for (PendingWrite write : chunk) {
+                            complete(write, false);
+                        }
+                        Log.e(TAG, "Error committing " + chunk.size() + " coalesced writes", e);
+                    });
+        }
+    }
+
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    public synchronized String stats() {
+        return "writes=" + writeCount
+                + ", coalesced=" + coalescedCount
+                + ", commits=" + commitCount
+                + ", pending=" + pending.size();
+    }
+
+    private LiveData<Boolean> enqueue(DocumentReference reference, Object data, Map<String, Object> fields) {
+        MutableLiveData<Boolean> result = new MutableLiveData<>();
+        synchronized (this) {
+            writeCount++;
+            PendingWrite write = pending.get(reference.getPath());
+            if (write == null) {
+                write = new PendingWrite(reference);
+                pending.put(reference.getPath(), write);
+            } else {
+                coalescedCount++;
+            }
+            if (fields != null) {
+                // update() has already flushed, under this lock, any pending write this
+                // cannot merge with
+                if (write.fields != null) {
+                    write.fields.putAll(fields);
+                } else {
+                    write.fields = fields;
+                }
+            } else {
+                write.data = data;
+                write.fields = null;
+            }
+            write.waiters.add(result);
+
+            // The window starts with the first pending write, so a steady stream of
+            // edits cannot postpone the flush indefinitely
+            if (pending.size() == 1 && write.waiters.size() == 1) {
+                handler.postDelayed(flushRunnable, windowMillis);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param pendingFields Fields of the pending update, or null if a set or delete is pending
+     * @param fields Fields of the new update
+     * @return true if the new update can be folded into the pending one
+     */
+    static boolean canMerge(Map<String, Object> pendingFields, Map<String, Object> fields) {
+        if (pendingFields == null) {
+            // An update cannot be folded into a pending set or delete
+            return false;
+        }
+        for (Map.Entry<String, Object> entry : fields.entrySet()) {
+            Object pendingValue = pendingFields.get(entry.getKey());
+            if (pendingValue instanceof FieldValue || (pendingValue != null && entry.getValue() instanceof FieldValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void complete(PendingWrite write, boolean success) {
+        for (MutableLiveData<Boolean> waiter : write.waiters) {
+            waiter.setValue(success);
+        }
+    }
+}
@@ -1,17 +1,24 @@
 package com.example.myapplication.model;
 
+import com.example.myapplication.utils.SearchTokens;
 import com.google.firebase.firestore.DocumentId;
 import com.google.firebase.firestore.Exclude;
+import com.google.firebase.firestore.IgnoreExtraProperties;
 
 import java.io.Serializable;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * Model class representing a specific instance of a yoga class
  */
-public class ClassInstance implements Serializable {
+@IgnoreExtraProperties
+public class ClassInstance implements Serializable, DirtyTracking {
     @DocumentId
     private String id;
     private String courseId; // Reference to the parent course
@@ -20,6 +27,9 @@ public class ClassInstance implements Serializable {
     private String comments;
     private boolean isCancelled;
 
+    // Change tracking; null until markClean() is called
+    private transient Set<String> dirtyFields;
+
     // Required empty constructor for Firestore
     public ClassInstance() {
     }
@@ -46,6 +56,7 @@ public class ClassInstance implements Serializable {
     }
 
     public void setCourseId(String courseId) {
+        markDirty("courseId", !Objects.equals(this.courseId, courseId));
         this.courseId = courseId;
     }
 
@@ -54,6 +65,7 @@ public class ClassInstance implements Serializable {
     }
 
     public void setDate(Date date) {
+        markDirty("date", !Objects.equals(this.date, date));
         this.date = date;
     }
 
@@ -62,14 +74,25 @@ public class ClassInstance implements Serializable {
     }
 
     public void setTeacherName(String teacherName) {
+        markDirty("teacherName", !Objects.equals(this.teacherName, teacherName));
         this.teacherName = teacherName;
     }
 
+    /**
+     * Search index for the teacher name, derived on every write; stored values are not
+     * read back
+     * @return Prefixes of the case-folded, accent-stripped words of the teacher name
+     */
+    public List<String> getTeacherTokens() {
+        return SearchTokens.prefixes(teacherName);
+    }
+
     public String getComments() {
         return comments;
     }
 
     public void setComments(String comments) {
+        markDirty("comments", !Objects.equals(this.comments, comments));
         this.comments = comments;
     }
 
@@ -78,15 +101,72 @@ public class ClassInstance implements Serializable {
     }
 
     public void setCancelled(boolean cancelled) {
+        markDirty("cancelled", isCancelled != cancelled);
         isCancelled = cancelled;
     }
 
+    @Exclude
+    @Override
+    public void markClean() {
+        dirtyFields = new LinkedHashSet<>();
+    }
+
+    @Exclude
+    @Override
+    public boolean isTracked() {
+        return dirtyFields != null;
+    }
+
+    @Exclude
+    @Override
+    public boolean isDirty() {
+        return dirtyFields != null && !dirtyFields.isEmpty();
+    }
+
+    @Exclude
+    @Override
+    public Map<String, Object> getChanges() {
+        Map<String, Object> changes = new HashMap<>();
+        if (dirtyFields == null) {
+            return changes;
+        }
+        for (String field : dirtyFields) {
+            switch (field) {
+                case "courseId":
+                    changes.put(field, courseId);
+                    break;
+                case "date":
+                    changes.put(field, date);
+                    break;
+                case "teacherName":
+                    changes.put(field, teacherName);
+                    changes.put("teacherTokens", getTeacherTokens());
+                    break;
+                case "comments":
+                    changes.put(field, comments);
+                    break;
+                case "cancelled":
+                    // Stored under the bean property name of isCancelled()
+                    changes.put(field, isCancelled);
+                    break;
+            }
+        }
+        return changes;
+    }
+
+    private void markDirty(String field, boolean changed) {
+        if (changed && dirtyFields != null) {
+            dirtyFields.add(field);
+        }
+    }
+
     @Exclude
     public Map<String, Object> toMap() {
         Map<String, Object> map = new HashMap<>();
         map.put("courseId", courseId);
         map.put("date", date);
         map.put("teacherName", teacherName);
+        map.put("teacherTokens", getTeacherTokens());
         map.put("comments", comments);
         map.put("isCancelled", isCancelled);
         return map;
@@ -0,0 +1,80 @@
+package com.example.myapplication.model;
+
+import com.example.myapplication.utils.StringInterner;
+
+import java.util.Date;
+
+/**
+ * Compact, immutable in-memory form of a {@link ClassInstance}, used by the in-memory
+ * caches. The date is kept as primitive epoch milliseconds and the course ID and
+ * teacher name, which repeat across many instances, are interned.
+ */
+public final class CompactClassInstance {
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private final String id;
+    private final String courseId;
+    private final long dateMillis;
+    private final String teacherName;
+    private final String comments;
+    private final boolean cancelled;
+
+    private CompactClassInstance(ClassInstance classInstance) {
+        id = classInstance.getId();
+        courseId = StringInterner.intern(classInstance.getCourseId());
+        dateMillis = classInstance.getDate() != null ? classInstance.getDate().getTime() : NO_DATE;
+        teacherName = StringInterner.intern(classInstance.getTeacherName());
+        comments = classInstance.getComments();
+        cancelled = classInstance.isCancelled();
+    }
+
+    public static CompactClassInstance from(ClassInstance classInstance) {
+        return new CompactClassInstance(classInstance);
+    }
+
+    /**
+     * Inflate a new, independent ClassInstance equal to the one this was created from
+     */
+    public ClassInstance toClassInstance() {
+        ClassInstance classInstance = new ClassInstance(courseId,
+                dateMillis != NO_DATE ? new Date(dateMillis) : null, teacherName, comments);
+        classInstance.setId(id);
+        classInstance.setCancelled(cancelled);
+        classInstance.markClean();
+        return classInstance;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCourseId() {
+        return courseId;
+    }
+
+    /**
+     * @return Class date in epoch milliseconds, or Long.MIN_VALUE if unset
+     */
+    public long getDateMillis() {
+        return dateMillis;
+    }
+
+    public String getTeacherName() {
+        return teacherName;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Rough retained size in bytes, for cache weighing. Interned strings are shared
+     * between entries and only counted as references.
+     */
+    public int estimateRetainedBytes() {
+        int bytes = 40;
+        bytes += id == null ? 0 : 40 + 2 * id.length();
+        bytes += comments == null ? 0 : 40 + 2 * comments.length();
+        return bytes;
+    }
+}
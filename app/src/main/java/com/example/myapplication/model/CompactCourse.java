@@ -0,0 +1,192 @@
+package com.example.myapplication.model;
+
+import com.example.myapplication.utils.StringInterner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compact, immutable in-memory form of a {@link Course}, used by the in-memory caches.
+ *
+ * The day of week is stored as a byte and the start time as minutes since midnight,
+ * falling back to the original strings only when they are not in the app's canonical
+ * format, so converting back always reproduces the Firestore document. Type and day
+ * strings are interned and an empty additional fields map is not retained.
+ */
+public final class CompactCourse {
+    private static final String[] DAY_NAMES = {
+            "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"
+    };
+    private static final byte NO_DAY = -1;
+    private static final short NO_TIME = -1;
+    private static final String[] NO_IDS = new String[0];
+
+    private final String id;
+    private final String name;
+    private final String type;
+    private final String description;
+    private final byte day;
+    private final short startMinutes;
+    // Only set when the stored value has no compact form
+    private final String rawDayOfWeek;
+    private final String rawTime;
+    private final int capacity;
+    private final int duration;
+    private final double price;
+    private final String[] classInstanceIds;
+    private final Map<String, Object> additionalFields;
+
+    private CompactCourse(Course course) {
+        id = course.getId();
+        name = course.getName();
+        type = StringInterner.intern(course.getType());
+        description = course.getDescription();
+
+        byte parsedDay = parseDay(course.getDayOfWeek());
+        day = parsedDay;
+        rawDayOfWeek = parsedDay == NO_DAY ? StringInterner.intern(course.getDayOfWeek()) : null;
+
+        short parsedTime = parseTime(course.getTime());
+        startMinutes = parsedTime;
+        rawTime = parsedTime == NO_TIME ? course.getTime() : null;
+
+        capacity = course.getCapacity();
+        duration = course.getDuration();
+        price = course.getPrice();
+
+        List<String> ids = course.getClassInstanceIds();
+        classInstanceIds = ids == null || ids.isEmpty() ? NO_IDS : ids.toArray(new String[0]);
+
+        Map<String, Object> fields = course.getAdditionalFields();
+        additionalFields = fields == null || fields.isEmpty() ? null : new HashMap<>(fields);
+    }
+
+    public static CompactCourse from(Course course) {
+        return new CompactCourse(course);
+    }
+
+    /**
+     * Inflate a new, independent Course equal to the one this was created from
+     */
+    public Course toCourse() {
+        Course course = new Course(name, type, description, getDayOfWeek(), getTime(), capacity, duration, price);
+        course.setId(id);
+        course.setClassInstanceIds(new ArrayList<>(Arrays.asList(classInstanceIds)));
+        if (additionalFields != null) {
+            course.setAdditionalFields(new HashMap<>(additionalFields));
+        }
+        course.markClean();
+        return course;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getDayOfWeek() {
+        return day != NO_DAY ? DAY_NAMES[day] : rawDayOfWeek;
+    }
+
+    public String getTime() {
+        return startMinutes != NO_TIME ? formatTime(startMinutes) : rawTime;
+    }
+
+    /**
+     * @return Start time in minutes since midnight, or -1 if the time is not in h:mm a format
+     */
+    public int getStartMinutes() {
+        return startMinutes;
+    }
+
+    public int getClassInstanceCount() {
+        return classInstanceIds.length;
+    }
+
+    /**
+     * Rough retained size in bytes, for cache weighing. Interned strings are shared
+     * between entries and only counted as references.
+     */
+    public int estimateRetainedBytes() {
+        int bytes = 72;
+        bytes += stringBytes(id) + stringBytes(name) + stringBytes(description);
+        bytes += stringBytes(rawTime);
+        bytes += 16 + 4 * classInstanceIds.length;
+        for (String classInstanceId : classInstanceIds) {
+            bytes += stringBytes(classInstanceId);
+        }
+        if (additionalFields != null) {
+            bytes += 48 + 48 * additionalFields.size();
+        }
+        return bytes;
+    }
+
+    private static int stringBytes(String value) {
+        return value == null ? 0 : 40 + 2 * value.length();
+    }
+
+    private static byte parseDay(String dayOfWeek) {
+        if (dayOfWeek != null) {
+            for (byte i = 0; i < DAY_NAMES.length; i++) {
+                if (DAY_NAMES[i].equals(dayOfWeek)) {
+                    return i;
+                }
+            }
+        }
+        return NO_DAY;
+    }
+
+    /**
+     * Parse times written by AddCourseActivity ("h:mm a"), accepting only values that
+     * format back to the exact same string
+     */
+    private static short parseTime(String time) {
+        if (time == null) {
+            return NO_TIME;
+        }
+        int colon = time.indexOf(':');
+        int space = time.indexOf(' ');
+        if (colon < 1 || space != colon + 3 || time.length() != space + 3) {
+            return NO_TIME;
+        }
+        try {
+            int hour = Integer.parseInt(time.substring(0, colon));
+            int minute = Integer.parseInt(time.substring(colon + 1, space));
+            String marker = time.substring(space + 1);
+            if (hour < 1 || hour > 12 || minute < 0 || minute > 59) {
+                return NO_TIME;
+            }
+            int hour24 = hour % 12;
+            if ("PM".equals(marker)) {
+                hour24 += 12;
+            } else if (!"AM".equals(marker)) {
+                return NO_TIME;
+            }
+            short minutes = (short) (hour24 * 60 + minute);
+            return time.equals(formatTime(minutes)) ? minutes : NO_TIME;
+        } catch (NumberFormatException e) {
+            return NO_TIME;
+        }
+    }
+
+    private static String formatTime(int minutes) {
+        int hour24 = minutes / 60;
+        int hour12 = hour24 % 12 == 0 ? 12 : hour24 % 12;
+        return String.format(Locale.US, "%d:%02d %s", hour12, minutes % 60, hour24 < 12 ? "AM" : "PM");
+    }
+}
@@ -2,17 +2,21 @@ package com.example.myapplication.model;
 
 import com.google.firebase.firestore.DocumentId;
 import com.google.firebase.firestore.Exclude;
+import com.google.firebase.firestore.FieldValue;
 
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * Model class representing a yoga course
  */
-public class Course implements Serializable {
+public class Course implements Serializable, DirtyTracking {
     @DocumentId
     private String id;
     private String name;
@@ -26,6 +30,11 @@ public class Course implements Serializable {
     private List<String> classInstanceIds; // References to class instances
     private Map<String, Object> additionalFields; // For any additional creative fields
 
+    // Change tracking; null until markClean() is called
+    private transient Set<String> dirtyFields;
+    private transient Set<String> addedClassInstanceIds;
+    private transient Set<String> removedClassInstanceIds;
+
     // Required empty constructor for Firestore
     public Course() {
         classInstanceIds = new ArrayList<>();
@@ -60,6 +69,7 @@ public class Course implements Serializable {
     }
 
     public void setName(String name) {
+        markDirty("name", !Objects.equals(this.name, name));
         this.name = name;
     }
 
@@ -68,6 +78,7 @@ public class Course implements Serializable {
     }
 
     public void setType(String type) {
+        markDirty("type", !Objects.equals(this.type, type));
         this.type = type;
     }
 
@@ -76,6 +87,7 @@ public class Course implements Serializable {
     }
 
     public void setDescription(String description) {
+        markDirty("description", !Objects.equals(this.description, description));
         this.description = description;
     }
 
@@ -84,6 +96,7 @@ public class Course implements Serializable {
     }
 
     public void setDayOfWeek(String dayOfWeek) {
+        markDirty("dayOfWeek", !Objects.equals(this.dayOfWeek, dayOfWeek));
         this.dayOfWeek = dayOfWeek;
     }
 
@@ -92,6 +105,7 @@ public class Course implements Serializable {
     }
 
     public void setTime(String time) {
+        markDirty("time", !Objects.equals(this.time, time));
         this.time = time;
     }
 
@@ -100,6 +114,7 @@ public class Course implements Serializable {
     }
 
     public void setCapacity(int capacity) {
+        markDirty("capacity", this.capacity != capacity);
         this.capacity = capacity;
     }
 
@@ -108,6 +123,7 @@ public class Course implements Serializable {
     }
 
     public void setDuration(int duration) {
+        markDirty("duration", this.duration != duration);
         this.duration = duration;
     }
 
@@ -116,6 +132,7 @@ public class Course implements Serializable {
     }
 
     public void setPrice(double price) {
+        markDirty("price", Double.compare(this.price, price) != 0);
         this.price = price;
     }
 
@@ -124,6 +141,12 @@ public class Course implements Serializable {
     }
 
     public void setClassInstanceIds(List<String> classInstanceIds) {
+        // Replacing the list cannot be expressed as membership changes
+        if (dirtyFields != null) {
+            addedClassInstanceIds.clear();
+            removedClassInstanceIds.clear();
+        }
+        markDirty("classInstanceIds", true);
         this.classInstanceIds = classInstanceIds;
     }
 
@@ -132,6 +155,18 @@ public class Course implements Serializable {
             this.classInstanceIds = new ArrayList<>();
         }
         this.classInstanceIds.add(classInstanceId);
+        if (dirtyFields != null && !removedClassInstanceIds.remove(classInstanceId)) {
+            addedClassInstanceIds.add(classInstanceId);
+        }
+    }
+
+    public void removeClassInstanceId(String classInstanceId) {
+        if (this.classInstanceIds == null || !this.classInstanceIds.remove(classInstanceId)) {
+            return;
+        }
+        if (dirtyFields != null && !addedClassInstanceIds.remove(classInstanceId)) {
+            removedClassInstanceIds.add(classInstanceId);
+        }
     }
 
     public Map<String, Object> getAdditionalFields() {
@@ -139,13 +174,90 @@ public class Course implements Serializable {
     }
 
     public void setAdditionalFields(Map<String, Object> additionalFields) {
+        markDirty("additionalFields", !Objects.equals(this.additionalFields, additionalFields));
         this.additionalFields = additionalFields;
     }
 
     public void addAdditionalField(String key, Object value) {
+        markDirty("additionalFields." + key, !Objects.equals(this.additionalFields.get(key), value));
         this.additionalFields.put(key, value);
     }
 
+    /**
+     * Copy the user-editable fields of another course onto this one, so that only the
+     * fields that actually differ are marked as changed
+     */
+    @Exclude
+    public void applyEdits(Course edited) {
+        setName(edited.getName());
+        setType(edited.getType());
+        setDescription(edited.getDescription());
+        setDayOfWeek(edited.getDayOfWeek());
+        setTime(edited.getTime());
+        setCapacity(edited.getCapacity());
+        setDuration(edited.getDuration());
+        setPrice(edited.getPrice());
+        setAdditionalFields(edited.getAdditionalFields());
+    }
+
+    @Exclude
+    @Override
+    public void markClean() {
+        dirtyFields = new LinkedHashSet<>();
+        addedClassInstanceIds = new LinkedHashSet<>();
+        removedClassInstanceIds = new LinkedHashSet<>();
+    }
+
+    @Exclude
+    @Override
+    public boolean isTracked() {
+        return dirtyFields != null;
+    }
+
+    @Exclude
+    @Override
+    public boolean isDirty() {
+        return dirtyFields != null && (!dirtyFields.isEmpty()
+                || !addedClassInstanceIds.isEmpty() || !removedClassInstanceIds.isEmpty());
+    }
+
+    @Exclude
+    @Override
+    public Map<String, Object> getChanges() {
+        Map<String, Object> changes = new HashMap<>();
+        if (dirtyFields == null) {
+            return changes;
+        }
+        Map<String, Object> values = toMap();
+        for (String field : dirtyFields) {
+            if (field.startsWith("additionalFields.")) {
+                if (dirtyFields.contains("additionalFields")) {
+                    continue;
+                }
+                changes.put(field, additionalFields.get(field.substring("additionalFields.".length())));
+            } else {
+                changes.put(field, values.get(field));
+            }
+        }
+        if (!changes.containsKey("classInstanceIds")) {
+            // A field can only take one array transform per update
+            if (!addedClassInstanceIds.isEmpty() && !removedClassInstanceIds.isEmpty()) {
+                changes.put("classInstanceIds", classInstanceIds);
+            } else if (!addedClassInstanceIds.isEmpty()) {
+                changes.put("classInstanceIds", FieldValue.arrayUnion(addedClassInstanceIds.toArray()));
+            } else if (!removedClassInstanceIds.isEmpty()) {
+                changes.put("classInstanceIds", FieldValue.arrayRemove(removedClassInstanceIds.toArray()));
+            }
+        }
+        return changes;
+    }
+
+    private void markDirty(String field, boolean changed) {
+        if (changed && dirtyFields != null) {
+            dirtyFields.add(field);
+        }
+    }
+
     @Exclude
     public Map<String, Object> toMap() {
         Map<String, Object> map = new HashMap<>();
@@ -0,0 +1,34 @@
+package com.example.myapplication.model;
+
+import java.util.Map;
+
+/**
+ * Implemented by models that record which fields changed since they were loaded, so
+ * writes can send a partial update instead of rewriting the whole document.
+ *
+ * Tracking starts with {@link #markClean()}, which loaders call once an object reflects
+ * the stored document. Objects that were never marked clean, such as ones built from
+ * form input, are untracked and must be written in full.
+ */
+public interface DirtyTracking {
+
+    /**
+     * Start tracking, treating the current state as the stored state
+     */
+    void markClean();
+
+    /**
+     * @return true if changes are being tracked
+     */
+    boolean isTracked();
+
+    /**
+     * @return true if any field changed since the last {@link #markClean()}
+     */
+    boolean isDirty();
+
+    /**
+     * @return Firestore update map with only the changed fields, keyed by field path
+     */
+    Map<String, Object> getChanges();
+}
@@ -18,6 +18,7 @@ public class Enrollment implements Serializable {
     private String classInstanceId;
     private Date enrollmentDate;
     private boolean attended;
+    private Integer seatShard; // Seat counter shard holding this booking, null if unsharded
 
     // Required empty constructor for Firestore
     public Enrollment() {
@@ -32,6 +33,14 @@ public class Enrollment implements Serializable {
         this.attended = false;
     }
 
+    /**
+     * Document ID of a user's enrollment in a class instance. Each user can hold at most
+     * one enrollment per class, so enrolling and cancelling address it directly.
+     */
+    public static String documentId(String userId, String classInstanceId) {
+        return userId + "_" + classInstanceId;
+    }
+
     // Getters and setters
     public String getId() {
         return id;
@@ -73,6 +82,14 @@ public class Enrollment implements Serializable {
         this.attended = attended;
     }
 
+    public Integer getSeatShard() {
+        return seatShard;
+    }
+
+    public void setSeatShard(Integer seatShard) {
+        this.seatShard = seatShard;
+    }
+
     @Exclude
     public Map<String, Object> toMap() {
         Map<String, Object> map = new HashMap<>();
@@ -80,6 +97,7 @@ public class Enrollment implements Serializable {
         map.put("classInstanceId", classInstanceId);
         map.put("enrollmentDate", enrollmentDate);
         map.put("attended", attended);
+        map.put("seatShard", seatShard);
         return map;
     }
 }
\ No newline at end of file
@@ -5,12 +5,20 @@ import android.util.Log;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.Observer;
 
+import com.example.myapplication.firebase.DataMigrations;
 import com.example.myapplication.firebase.FirebaseService;
+import com.example.myapplication.firebase.SeatCounter;
 import com.example.myapplication.model.ClassInstance;
 import com.example.myapplication.model.Course;
+import com.google.firebase.firestore.FirebaseFirestore;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -18,6 +26,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class DataSyncService {
     private static final String TAG = "DataSyncService";
+    private static final String COURSES_COLLECTION = "courses";
+    private static final String CLASS_INSTANCES_COLLECTION = "classInstances";
     
     private static DataSyncService instance;
     private final FirebaseService firebaseService;
@@ -47,51 +57,140 @@ public class DataSyncService {
             return resultLiveData;
         }
         
-        // Get all courses from Firebase
-        firebaseService.getAllCourses().observeForever(courses -> {
-            if (courses != null) {
-                // For each course, get its class instances
-                AtomicInteger coursesProcessed = new AtomicInteger(0);
-                
-                if (courses.isEmpty()) {
-                    resultLiveData.setValue(new SyncResult(true, "No courses to sync"));
-                    return;
-                }
-                
-                for (Course course : courses) {
-                    firebaseService.getClassInstancesForCourse(course.getId()).observeForever(classInstances -> {
-                        // Process class instances if needed
-                        
-                        // Check if all courses have been processed
-                        if (coursesProcessed.incrementAndGet() == courses.size()) {
-                            resultLiveData.setValue(new SyncResult(true, "Data synchronized successfully"));
-                        }
-                    });
-                }
-            } else {
-                resultLiveData.setValue(new SyncResult(false, "Failed to retrieve courses from Firebase"));
+        // Pick up data migrations completed since the app started
+        DataMigrations migrations = DataMigrations.getInstance();
+        if (migrations != null) {
+            migrations.refresh(FirebaseFirestore.getInstance());
+        }
+        
+        // Get all courses from Firebase. The list may be emitted again after a background
+        // revalidation; only the first is synced, so the sync reports once.
+        LiveData<List<Course>> allCourses = firebaseService.getAllCourses();
+        allCourses.observeForever(new Observer<List<Course>>() {
+            @Override
+            public void onChanged(List<Course> courses) {
+                allCourses.removeObserver(this);
+                syncCourses(courses, resultLiveData);
             }
         });
         
         return resultLiveData;
     }
     
+    private void syncCourses(List<Course> courses, MutableLiveData<SyncResult> resultLiveData) {
+        if (courses != null) {
+            // For each course, get its class instances
+            AtomicInteger coursesProcessed = new AtomicInteger(0);
+
+            if (courses.isEmpty()) {
+                resultLiveData.setValue(new SyncResult(true, "No courses to sync"));
+                return;
+            }
+
+            for (Course course : courses) {
+                firebaseService.getClassInstancesForCourse(course.getId()).observeForever(classInstances -> {
+                    // Process class instances if needed
+
+                    // Check if all courses have been processed
+                    if (coursesProcessed.incrementAndGet() == courses.size()) {
+                        resultLiveData.setValue(new SyncResult(true, "Data synchronized successfully"));
+                    }
+                });
+            }
+        } else {
+            resultLiveData.setValue(new SyncResult(false, "Failed to retrieve courses from Firebase"));
+        }
+    }
+    
     /**
-     * Upload a course to Firebase
-     * @param course Course to upload
-     * @return LiveData with upload result
+     * Upload a course to Firebase. The write goes through the persistent outbox, so it is
+     * kept across restarts and sent once the device is online.
+     * @param course Course to upload; its ID is assigned here
+     * @return LiveData with upload result, set once the write reaches the server
      */
     public LiveData<Boolean> uploadCourse(Course course) {
-        return firebaseService.addCourse(course);
+        MutationOutbox outbox = MutationOutbox.getInstance();
+        if (outbox == null) {
+            return firebaseService.addCourse(course);
+        }
+        
+        course.setId(newDocumentId(COURSES_COLLECTION));
+        firebaseService.cacheCourse(course);
+        return outbox.set(COURSES_COLLECTION + "/" + course.getId(), course.toMap());
     }
     
     /**
-     * Upload a class instance to Firebase
-     * @param classInstance ClassInstance to upload
-     * @return LiveData with upload result
+     * Upload a class instance to Firebase through the persistent outbox, linking it to
+     * its course
+     * @param classInstance ClassInstance to upload; its ID is assigned here
+     * @return LiveData with upload result, set once both writes reach the server
      */
     public LiveData<Boolean> uploadClassInstance(ClassInstance classInstance) {
-        return firebaseService.addClassInstance(classInstance);
+        MutationOutbox outbox = MutationOutbox.getInstance();
+        if (outbox == null) {
+            return firebaseService.addClassInstance(classInstance);
+        }
+        
+        MutableLiveData<Boolean> result = new MutableLiveData<>();
+        firebaseService.getCourseById(classInstance.getCourseId()).observeForever(course -> {
+            if (course == null) {
+                result.setValue(false);
+                Log.e(TAG, "Course not found with ID: " + classInstance.getCourseId());
+                return;
+            }
+            if (!FirebaseService.isOnCourseDay(classInstance.getDate(), course)) {
+                result.setValue(false);
+                Log.e(TAG, "Class instance date does not match course day of week");
+                return;
+            }
+            
+            classInstance.setId(newDocumentId(CLASS_INSTANCES_COLLECTION));
+            Map<String, Object> data = new HashMap<>();
+            data.put("courseId", classInstance.getCourseId());
+            data.put("date", classInstance.getDate());
+            data.put("teacherName", classInstance.getTeacherName());
+            data.put("teacherTokens", classInstance.getTeacherTokens());
+            data.put("comments", classInstance.getComments());
+            data.put("cancelled", classInstance.isCancelled());
+            data.put(SeatCounter.ENROLLED_COUNT_FIELD, 0L);
+            Map<String, Object> link = new HashMap<>();
+            link.put("classInstanceIds", new MutationOutbox.ArrayUnion(
+                    new ArrayList<>(Collections.singletonList(classInstance.getId()))));
+            
+            // The instance is queued before the link, so the course never lists an ID
+            // that was not written
+            LiveData<Boolean> instanceWrite = outbox.set(
+                    CLASS_INSTANCES_COLLECTION + "/" + classInstance.getId(), data);
+            LiveData<Boolean> linkWrite = outbox.update(
+                    COURSES_COLLECTION + "/" + classInstance.getCourseId(), link);
+            firebaseService.cacheClassInstance(classInstance);
+            
+            instanceWrite.observeForever(instanceSuccess -> linkWrite.observeForever(linkSuccess -> {
+                boolean success = instanceSuccess && linkSuccess;
+                if (success) {
+                    Log.d(TAG, "Class instance uploaded with ID: " + classInstance.getId());
+                } else {
+                    Log.e(TAG, "Error uploading class instance " + classInstance.getId());
+                }
+                result.setValue(success);
+            }));
+        });
+        
+        return result;
+    }
+    
+    /**
+     * @return LiveData with the number of queued writes and the age of the oldest,
+     *         or null if the outbox is not initialized
+     */
+    public LiveData<MutationOutbox.Status> getOutboxStatus() {
+        MutationOutbox outbox = MutationOutbox.getInstance();
+        return outbox != null ? outbox.getStatus() : null;
+    }
+    
+    private static String newDocumentId(String collection) {
+        // IDs are generated on the device, so no round trip is needed before queuing
+        return FirebaseFirestore.getInstance().collection(collection).document().getId();
     }
     
     /**
@@ -101,12 +200,20 @@ public class DataSyncService {
     public LiveData<Boolean> syncData() {
         MutableLiveData<Boolean> resultLiveData = new MutableLiveData<>();
         
-        // Get all courses from Firebase to refresh local data
-        firebaseService.getAllCourses().observeForever(courses -> {
-            if (courses != null) {
-                resultLiveData.setValue(true);
-            } else {
-                resultLiveData.setValue(false);
+        // Send queued writes without waiting for their backoff
+        MutationOutbox outbox = MutationOutbox.getInstance();
+        if (outbox != null) {
+            outbox.drainNow();
+        }
+        
+        // Get all courses from Firebase to refresh local data; a later revalidated list
+        // must not report the sync again
+        LiveData<List<Course>> allCourses = firebaseService.getAllCourses();
+        allCourses.observeForever(new Observer<List<Course>>() {
+            @Override
+            public void onChanged(List<Course> courses) {
+                allCourses.removeObserver(this);
+                resultLiveData.setValue(courses != null);
             }
         });
         
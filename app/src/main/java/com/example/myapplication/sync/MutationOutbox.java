@@ -0,0 +1,553 @@
+package com.example.myapplication.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.util.Log;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.firestore.DocumentReference;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.FirebaseFirestoreException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable outbox of Firestore mutations, stored in SQLite so queued writes survive
+ * process death.
+ *
+ * Commands are applied one at a time in the order they were queued. A command that fails
+ * with a transient error is retried with exponential backoff and jitter; one rejected by
+ * the server (e.g. permission denied) is dropped. A new command for the document whose
+ * command was queued last is merged into it where the result is equivalent: a set or
+ * delete replaces the pending command, and an update is folded into a pending set or
+ * update. All commands are idempotent, so re-sending after an unacknowledged attempt is
+ * safe. Database work and draining happen on a single background thread.
+ */
+public class MutationOutbox extends SQLiteOpenHelper {
+    private static final String TAG = "MutationOutbox";
+    private static final String DATABASE_NAME = "outbox.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE_COMMANDS = "commands";
+
+    static final String OP_SET = "set";
+    static final String OP_UPDATE = "update";
+    static final String OP_DELETE = "delete";
+
+    // JSON markers for values that plain JSON cannot represent
+    private static final String DATE_MARKER = "$date";
+    static final String ARRAY_UNION_MARKER = "$arrayUnion";
+
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Queue depth and age of the oldest queued command
+     */
+    public static final class Status {
+        private final int depth;
+        private final long oldestEnqueuedAt;
+
+        Status(int depth, long oldestEnqueuedAt) {
+            this.depth = depth;
+            this.oldestEnqueuedAt = oldestEnqueuedAt;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return Milliseconds the oldest command has been waiting, or 0 if the queue is empty
+         */
+        public long getOldestAgeMillis() {
+            return depth == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldestEnqueuedAt);
+        }
+    }
+
+    /**
+     * Array union value that can be stored in the outbox; applied as
+     * {@link FieldValue#arrayUnion(Object...)}
+     */
+    public static final class ArrayUnion {
+        private final List<Object> values;
+
+        public ArrayUnion(List<Object> values) {
+            this.values = values;
+        }
+    }
+
+    private static MutationOutbox instance;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+    private final MutableLiveData<Status> status = new MutableLiveData<>();
+    private final Map<Long, List<MutableLiveData<Boolean>>> waiters = new HashMap<>();
+
+    // Drain state; only touched on the executor thread
+    private long inFlightSeq = -1;
+    private ScheduledFuture<?> scheduledDrain;
+
+    private MutationOutbox(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    /**
+     * Create the outbox and start draining commands left from earlier runs.
+     * Called once from the Application.
+     * @param context Application context
+     */
+    public static synchronized void initialize(Context context) {
+        if (instance != null) {
+            return;
+        }
+        instance = new MutationOutbox(context.getApplicationContext());
+        instance.watchConnectivity(context.getApplicationContext());
+        // Count commands left from earlier runs before any new ones are queued
+        instance.executor.execute(instance::publishStatus);
+        instance.drainNow();
+    }
+
+    /**
+     * @return The outbox, or null if {@link #initialize(Context)} has not been called
+     */
+    public static synchronized MutationOutbox getInstance() {
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_COMMANDS + " ("
+                + "seq INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "path TEXT NOT NULL, "
+                + "op TEXT NOT NULL, "
+                + "payload TEXT, "
+                + "enqueued_at INTEGER NOT NULL, "
+                + "attempts INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX idx_commands_path ON " + TABLE_COMMANDS + " (path)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Version 1 is the only schema so far
+    }
+
+    /**
+     * Queue a full write of a document
+     * @param path Document path, e.g. "courses/abc"
+     * @param data Field values; may contain Dates, Lists, Maps and {@link ArrayUnion}
+     * @return LiveData that receives true once the write is applied, or false if dropped
+     */
+    public LiveData<Boolean> set(String path, Map<String, Object> data) {
+        return enqueue(path, OP_SET, data);
+    }
+
+    /**
+     * Queue a partial update of an existing document
+     * @param path Document path
+     * @param fields Top-level fields to update
+     * @return LiveData that receives true once the update is applied, or false if dropped
+     */
+    public LiveData<Boolean> update(String path, Map<String, Object> fields) {
+        return enqueue(path, OP_UPDATE, fields);
+    }
+
+    /**
+     * Queue a document deletion
+     * @param path Document path
+     * @return LiveData that receives true once the delete is applied, or false if dropped
+     */
+    public LiveData<Boolean> delete(String path) {
+        return enqueue(path, OP_DELETE, null);
+    }
+
+    /**
+     * @return LiveData with the queue depth and oldest command age, updated on every change
+     */
+    public LiveData<Status> getStatus() {
+        return status;
+    }
+
+    /**
+     * Try to apply queued commands now instead of waiting for the current backoff
+     */
+    public void drainNow() {
+        executor.execute(() -> {
+            if (scheduledDrain != null) {
+                scheduledDrain.cancel(false);
+                scheduledDrain = null;
+            }
+            drain();
+        });
+    }
+
+    // Enqueueing
+
+    private LiveData<Boolean> enqueue(String path, String op, Map<String, Object> values) {
+        MutableLiveData<Boolean> result = new MutableLiveData<>();
+        executor.execute(() -> {
+            try {
+                JSONObject payload = values == null ? null : (JSONObject) encode(values);
+                long seq = coalesceOrInsert(path, op, payload);
+                addWaiter(seq, result);
+                publishStatus();
+                if (inFlightSeq < 0 && scheduledDrain == null) {
+                    drain();
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Could not encode command for " + path, e);
+                result.postValue(false);
+            }
+        });
+        return result;
+    }
+
+    private long coalesceOrInsert(String path, String op, JSONObject payload) throws JSONException {
+        SQLiteDatabase db = getWritableDatabase();
+        // Only the last queued command may absorb the new one; merging into an earlier
+        // command would apply this write ahead of commands for other documents queued since
+        Cursor cursor = db.rawQuery("SELECT seq, path, op, payload FROM " + TABLE_COMMANDS
+                + " ORDER BY seq DESC LIMIT 1", null);
+        try {
+            if (cursor.moveToFirst() && path.equals(cursor.getString(1))) {
+                long seq = cursor.getLong(0);
+                String pendingOp = cursor.getString(2);
+                String pendingPayload = cursor.getString(3);
+                // The command being sent cannot change any more
+                if (seq != inFlightSeq) {
+                    JSONObject merged = merge(pendingOp, pendingPayload, op, payload);
+                    if (merged != null || !OP_UPDATE.equals(op)) {
+                        ContentValues values = new ContentValues();
+                        values.put("op", OP_UPDATE.equals(op) ? pendingOp : op);
+                        values.put("payload", merged != null ? merged.toString() : null);
+                        db.update(TABLE_COMMANDS, values, "seq = ?", new String[]{String.valueOf(seq)});
+                        Log.d(TAG, "Coalesced " + op + " into pending " + pendingOp + " for " + path);
+                        return seq;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put("path", path);
+        values.put("op", op);
+        values.put("payload", payload != null ? payload.toString() : null);
+        values.put("enqueued_at", System.currentTimeMillis());
+        return db.insert(TABLE_COMMANDS, null, values);
+    }
+
+    /**
+     * Merge a new command into a pending one for the same document
+     * @return Payload of the merged command; null if the new command replaces the pending
+     *         one outright (set/delete) or cannot be merged (update)
+     */
+    static JSONObject merge(String pendingOp, String pendingPayload, String op, JSONObject payload)
+            throws JSONException {
+        if (!OP_UPDATE.equals(op)) {
+            return payload;
+        }
+        if (OP_DELETE.equals(pendingOp) || pendingPayload == null) {
+            return null;
+        }
+        JSONObject merged = new JSONObject(pendingPayload);
+        boolean intoSet = OP_SET.equals(pendingOp);
+        Iterator<String> keys = payload.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (intoSet && key.indexOf('.') >= 0) {
+                // Nested field paths would become literal top-level fields in a set
+                return null;
+            }
+            Object value = payload.get(key);
+            Object pending = merged.opt(key);
+            JSONArray union = arrayUnionValues(value);
+            if (union == null) {
+                merged.put(key, value);
+            } else if (pending == null) {
+                // A set without the field leaves it absent, which the union fills in
+                merged.put(key, intoSet ? union : value);
+            } else if (pending instanceof JSONArray) {
+                merged.put(key, union(((JSONArray) pending), union));
+            } else if (arrayUnionValues(pending) != null) {
+                JSONObject marker = new JSONObject();
+                marker.put(ARRAY_UNION_MARKER, union(arrayUnionValues(pending), union));
+                merged.put(key, marker);
+            } else {
+                return null;
+            }
+        }
+        return merged;
+    }
+
+    private static JSONArray union(JSONArray first, JSONArray second) throws JSONException {
+        Set<Object> values = new LinkedHashSet<>();
+        for (int i = 0; i < first.length(); i++) {
+            values.add(first.get(i));
+        }
+        for (int i = 0; i < second.length(); i++) {
+            values.add(second.get(i));
+        }
+        return new JSONArray(values);
+    }
+
+    private static JSONArray arrayUnionValues(Object value) {
+        if (value instanceof JSONObject) {
+            Object values = ((JSONObject) value).opt(ARRAY_UNION_MARKER);
+            if (values instanceof JSONArray) {
+                return (JSONArray) values;
+            }
+        }
+        return null;
+    }
+
+    // Draining
+
+    private void drain() {
+        if (inFlightSeq >= 0) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor cursor = db.rawQuery("SELECT seq, path, op, payload, attempts FROM " + TABLE_COMMANDS
+                + " ORDER BY seq LIMIT 1", null);
+        long seq;
+        String path;
+        String op;
+        String payload;
+        int attempts;
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            seq = cursor.getLong(0);
+            path = cursor.getString(1);
+            op = cursor.getString(2);
+            payload = cursor.getString(3);
+            attempts = cursor.getInt(4);
+        } finally {
+            cursor.close();
+        }
+
+        Task<Void> write;
+        try {
+            write = apply(path, op, payload);
+        } catch (JSONException | RuntimeException e) {
+            Log.e(TAG, "Dropping malformed command " + seq + " for " + path, e);
+            finish(seq, false);
+            drain();
+            return;
+        }
+
+        inFlightSeq = seq;
+        write.addOnCompleteListener(executor, task -> {
+            inFlightSeq = -1;
+            if (task.isSuccessful()) {
+                Log.d(TAG, "Applied " + op + " " + path);
+                finish(seq, true);
+                drain();
+            } else if (isPermanent(task.getException())) {
+                Log.e(TAG, "Dropping rejected " + op + " " + path, task.getException());
+                finish(seq, false);
+                drain();
+            } else {
+                retryLater(seq, attempts + 1, task.getException());
+            }
+        });
+    }
+
+    private Task<Void> apply(String path, String op, String payload) throws JSONException {
+        DocumentReference ref = FirebaseFirestore.getInstance().document(path);
+        switch (op) {
+            case OP_SET:
+                return ref.set(decodeFields(new JSONObject(payload)));
+            case OP_UPDATE:
+                return ref.update(decodeFields(new JSONObject(payload)));
+            case OP_DELETE:
+                return ref.delete();
+            default:
+                throw new JSONException("Unknown op " + op);
+        }
+    }
+
+    private void retryLater(long seq, int attempts, Exception e) {
+        ContentValues values = new ContentValues();
+        values.put("attempts", attempts);
+        getWritableDatabase().update(TABLE_COMMANDS, values, "seq = ?", new String[]{String.valueOf(seq)});
+
+        // Exponential backoff with jitter in the upper half, so retries from many
+        // devices coming back online at once are spread out
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 20));
+        long delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+        Log.w(TAG, "Command " + seq + " failed (attempt " + attempts + "), retrying in " + delay + " ms", e);
+        scheduledDrain = executor.schedule(() -> {
+            scheduledDrain = null;
+            drain();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void finish(long seq, boolean success) {
+        getWritableDatabase().delete(TABLE_COMMANDS, "seq = ?", new String[]{String.valueOf(seq)});
+        List<MutableLiveData<Boolean>> done;
+        synchronized (waiters) {
+            done = waiters.remove(seq);
+        }
+        if (done != null) {
+            for (MutableLiveData<Boolean> waiter : done) {
+                waiter.postValue(success);
+            }
+        }
+        publishStatus();
+    }
+
+    private static boolean isPermanent(Exception e) {
+        if (!(e instanceof FirebaseFirestoreException)) {
+            return false;
+        }
+        switch (((FirebaseFirestoreException) e).getCode()) {
+            case INVALID_ARGUMENT:
+            case NOT_FOUND:
+            case ALREADY_EXISTS:
+            case PERMISSION_DENIED:
+            case FAILED_PRECONDITION:
+            case OUT_OF_RANGE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void addWaiter(long seq, MutableLiveData<Boolean> result) {
+        synchronized (waiters) {
+            List<MutableLiveData<Boolean>> list = waiters.get(seq);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                waiters.put(seq, list);
+            }
+            list.add(result);
+        }
+    }
+
+    private void publishStatus() {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT COUNT(*), MIN(enqueued_at) FROM " + TABLE_COMMANDS, null);
+        try {
+            if (cursor.moveToFirst()) {
+                status.postValue(new Status(cursor.getInt(0), cursor.isNull(1) ? 0 : cursor.getLong(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void watchConnectivity(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return;
+        }
+        connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                drainNow();
+            }
+        });
+    }
+
+    // Encoding
+
+    private static Object encode(Object value) throws JSONException {
+        if (value == null) {
+            return JSONObject.NULL;
+        }
+        if (value instanceof Date) {
+            JSONObject marker = new JSONObject();
+            marker.put(DATE_MARKER, ((Date) value).getTime());
+            return marker;
+        }
+        if (value instanceof ArrayUnion) {
+            JSONObject marker = new JSONObject();
+            marker.put(ARRAY_UNION_MARKER, encode(((ArrayUnion) value).values));
+            return marker;
+        }
+        if (value instanceof Map) {
+            JSONObject object = new JSONObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                object.put(String.valueOf(entry.getKey()), encode(entry.getValue()));
+            }
+            return object;
+        }
+        if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object item : (List<?>) value) {
+                array.put(encode(item));
+            }
+            return array;
+        }
+        if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+            return value;
+        }
+        throw new JSONException("Unsupported value type " + value.getClass().getName());
+    }
+
+    private static Map<String, Object> decodeFields(JSONObject object) throws JSONException {
+        Map<String, Object> fields = new HashMap<>();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            fields.put(key, decode(object.get(key)));
+        }
+        return fields;
+    }
+
+    private static Object decode(Object value) throws JSONException {
+        if (value == JSONObject.NULL) {
+            return null;
+        }
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            Object date = object.opt(DATE_MARKER);
+            if (date instanceof Number && object.length() == 1) {
+                return new Date(((Number) date).longValue());
+            }
+            JSONArray union = arrayUnionValues(object);
+            if (union != null && object.length() == 1) {
+                return FieldValue.arrayUnion(((List<?>) decode(union)).toArray());
+            }
+            return decodeFields(object);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                list.add(decode(array.get(i)));
+            }
+            return list;
+        }
+        return value;
+    }
+}
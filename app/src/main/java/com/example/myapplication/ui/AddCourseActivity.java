@@ -21,6 +21,7 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.LiveData;
 import androidx.lifecycle.Observer;
 
 import java.text.SimpleDateFormat;
@@ -329,11 +330,12 @@ public class AddCourseActivity extends AppCompatActivity {
         };
         messageUpdateHandler.postDelayed(messageUpdateRunnable, 5000); // 5 seconds timeout
         
-        Course updatedCourse = createCourseFromInputs();
-        updatedCourse.setId(existingCourse.getId());
-        updatedCourse.setClassInstanceIds(existingCourse.getClassInstanceIds());
+        // Edit the loaded course so only the fields that changed are written
+        Course updatedCourse = existingCourse;
+        updatedCourse.applyEdits(createCourseFromInputs());
         
         // Create a LiveData observer that we can remove later
+        final LiveData<Boolean> update = firebaseService.updateCourse(updatedCourse);
         final Observer<Boolean> updateObserver = new Observer<Boolean>() {
             @Override
             public void onChanged(Boolean success) {
@@ -342,7 +344,7 @@ public class AddCourseActivity extends AppCompatActivity {
                 messageUpdateHandler.removeCallbacks(messageUpdateRunnable);
                 
                 // Remove this observer to prevent memory leaks
-                firebaseService.updateCourse(updatedCourse).removeObserver(this);
+                update.removeObserver(this);
                 
                 if (success) {
                     Toast.makeText(AddCourseActivity.this, "Course updated successfully", Toast.LENGTH_SHORT).show();
@@ -354,7 +356,7 @@ public class AddCourseActivity extends AppCompatActivity {
         };
         
         // Observe the LiveData with our custom observer
-        firebaseService.updateCourse(updatedCourse).observe(this, updateObserver);
+        update.observe(this, updateObserver);
     }
 
     private void showPreview() {
@@ -3,7 +3,11 @@ package com.example.myapplication.ui;
 import android.app.DatePickerDialog;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ArrayAdapter;
@@ -12,28 +16,51 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.myapplication.R;
 import com.example.myapplication.adapter.ClassInstanceAdapter;
 import com.example.myapplication.databinding.ActivitySearchBinding;
+import com.example.myapplication.firebase.ClassInstancePager;
+import com.example.myapplication.firebase.ClassSearchCriteria;
 import com.example.myapplication.firebase.FirebaseService;
 import com.example.myapplication.model.ClassInstance;
 import com.example.myapplication.model.Course;
+import com.example.myapplication.utils.EpochDays;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
 
 public class SearchActivity extends AppCompatActivity implements ClassInstanceAdapter.ClassInstanceClickListener {
+    private static final int MAX_COURSE_MATCHES = 20;
+    // Typing pause before a teacher or course search runs on its own
+    private static final long SEARCH_DEBOUNCE_MILLIS = 300;
+    private static final int MIN_INCREMENTAL_QUERY_LENGTH = 2;
+    // Teacher and date results are loaded a page at a time while scrolling
+    private static final int SEARCH_PAGE_SIZE = 20;
+    // Rows left below the last visible one when the next page starts loading
+    private static final int PREFETCH_DISTANCE = 10;
+
     private ActivitySearchBinding binding;
     private FirebaseService firebaseService;
     private ClassInstanceAdapter classInstanceAdapter;
     private List<ClassInstance> classInstances = new ArrayList<>();
     private SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, MMM d, yyyy", Locale.getDefault());
     private Date selectedDate;
+    // End of the date range in a combined search
+    private Date selectedToDate;
+    private final Handler searchHandler = new Handler(Looper.getMainLooper());
+    private final Runnable debouncedSearch = this::performIncrementalSearch;
+    // Incremented per search, so results of superseded searches are ignored
+    private int searchGeneration = 0;
+    // Pager of the current search, or null if its results are loaded in full
+    private ClassInstancePager pager;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,6 +77,15 @@ public class SearchActivity extends AppCompatActivity implements ClassInstanceAd
         classInstanceAdapter = new ClassInstanceAdapter(this, classInstances, this);
         binding.resultsRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         binding.resultsRecyclerView.setAdapter(classInstanceAdapter);
+        binding.resultsRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (dy > 0 && layoutManager.findLastVisibleItemPosition() + PREFETCH_DISTANCE >= classInstances.size()) {
+                    loadNextPage();
+                }
+            }
+        });
 
         // Setup search type spinner
         ArrayAdapter<CharSequence> searchTypeAdapter = ArrayAdapter.createFromResource(
@@ -63,6 +99,16 @@ public class SearchActivity extends AppCompatActivity implements ClassInstanceAd
         dayAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         binding.daySpinner.setAdapter(dayAdapter);
 
+        // Setup class status spinner
+        ArrayAdapter<CharSequence> statusAdapter = ArrayAdapter.createFromResource(
+                this, R.array.class_statuses, android.R.layout.simple_spinner_item);
+        statusAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        binding.statusSpinner.setAdapter(statusAdapter);
+
+        // Setup course day and type spinners of the combined search; the first item is "any"
+        binding.courseDaySpinner.setAdapter(anyOrOneOf("Any Day", R.array.days_of_week));
+        binding.courseTypeSpinner.setAdapter(anyOrOneOf("Any Type", R.array.yoga_course_types));
+
         // Setup search type change listener
         binding.searchTypeSpinner.setOnItemSelectedListener(new android.widget.AdapterView.OnItemSelectedListener() {
             @Override
@@ -76,19 +122,55 @@ public class SearchActivity extends AppCompatActivity implements ClassInstanceAd
             }
         });
 
-        // Setup date picker
-        binding.dateEditText.setOnClickListener(v -> showDatePicker());
+        // Setup date pickers
+        binding.dateEditText.setOnClickListener(v -> showDatePicker(false));
+        binding.toDateEditText.setOnClickListener(v -> showDatePicker(true));
 
         // Setup search button
         binding.searchButton.setOnClickListener(v -> performSearch());
+
+        // Search while typing once the input settles
+        TextWatcher searchAsYouType = new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                searchHandler.removeCallbacks(debouncedSearch);
+                searchHandler.postDelayed(debouncedSearch, SEARCH_DEBOUNCE_MILLIS);
+            }
+        };
+        binding.teacherEditText.addTextChangedListener(searchAsYouType);
+        binding.courseEditText.addTextChangedListener(searchAsYouType);
+    }
+
+    @Override
+    protected void onDestroy() {
+        searchHandler.removeCallbacks(debouncedSearch);
+        super.onDestroy();
     }
 
     private void updateSearchInputVisibility(int searchTypePosition) {
         // Hide all inputs first
         binding.teacherInputLayout.setVisibility(View.GONE);
+        binding.courseInputLayout.setVisibility(View.GONE);
         binding.dateInputLayout.setVisibility(View.GONE);
+        binding.toDateInputLayout.setVisibility(View.GONE);
         binding.daySpinner.setVisibility(View.GONE);
         binding.dayLabel.setVisibility(View.GONE);
+        binding.statusSpinner.setVisibility(View.GONE);
+        binding.statusLabel.setVisibility(View.GONE);
+        binding.courseDaySpinner.setVisibility(View.GONE);
+        binding.courseDayLabel.setVisibility(View.GONE);
+        binding.courseTypeSpinner.setVisibility(View.GONE);
+        binding.courseTypeLabel.setVisibility(View.GONE);
+        binding.priceBandLayout.setVisibility(View.GONE);
+        binding.dateInputLayout.setHint("Select Date");
 
         // Show the appropriate input based on search type
         String searchType = binding.searchTypeSpinner.getSelectedItem().toString();
@@ -99,10 +181,33 @@ public class SearchActivity extends AppCompatActivity implements ClassInstanceAd
         } else if (searchType.equals("Day of Week")) {
             binding.daySpinner.setVisibility(View.VISIBLE);
             binding.dayLabel.setVisibility(View.VISIBLE);
+        } else if (searchType.equals("Course")) {
+            binding.courseInputLayout.setVisibility(View.VISIBLE);
+        } else if (searchType.equals("Combined")) {
+            binding.teacherInputLayout.setVisibility(View.VISIBLE);
+            binding.dateInputLayout.setVisibility(View.VISIBLE);
+            binding.dateInputLayout.setHint("From Date");
+            binding.toDateInputLayout.setVisibility(View.VISIBLE);
+            binding.statusSpinner.setVisibility(View.VISIBLE);
+            binding.statusLabel.setVisibility(View.VISIBLE);
+            binding.courseDaySpinner.setVisibility(View.VISIBLE);
+            binding.courseDayLabel.setVisibility(View.VISIBLE);
+            binding.courseTypeSpinner.setVisibility(View.VISIBLE);
+            binding.courseTypeLabel.setVisibility(View.VISIBLE);
+            binding.priceBandLayout.setVisibility(View.VISIBLE);
         }
     }
 
-    private void showDatePicker() {
+    private ArrayAdapter<String> anyOrOneOf(String any, int arrayResId) {
+        List<String> items = new ArrayList<>();
+        items.add(any);
+        items.addAll(Arrays.asList(getResources().getStringArray(arrayResId)));
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, items);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        return adapter;
+    }
+
+    private void showDatePicker(boolean toDate) {
         Calendar calendar = Calendar.getInstance();
         DatePickerDialog datePickerDialog = new DatePickerDialog(
                 this,
@@ -110,8 +215,13 @@ public class SearchActivity extends AppCompatActivity implements ClassInstanceAd
                     calendar.set(Calendar.YEAR, year);
                     calendar.set(Calendar.MONTH, month);
                     calendar.set(Calendar.DAY_OF_MONTH, dayOfMonth);
-                    selectedDate = calendar.getTime();
-                    binding.dateEditText.setText(dateFormat.format(selectedDate));
+                    if (toDate) {
+                        selectedToDate = calendar.getTime();
+                        binding.toDateEditText.setText(dateFormat.format(selectedToDate));
+                    } else {
+                        selectedDate = calendar.getTime();
+                        binding.dateEditText.setText(dateFormat.format(selectedDate));
+                    }
                 },
                 calendar.get(Calendar.YEAR),
                 calendar.get(Calendar.MONTH),
@@ -120,7 +230,25 @@ public class SearchActivity extends AppCompatActivity implements ClassInstanceAd
         datePickerDialog.show();
     }
 
+    private void performIncrementalSearch() {
+        String searchType = binding.searchTypeSpinner.getSelectedItem().toString();
+        String query;
+        if (searchType.equals("Teacher")) {
+            query = binding.teacherEditText.getText().toString().trim();
+        } else if (searchType.equals("Course")) {
+            query = binding.courseEditText.getText().toString().trim();
+        } else {
+            return;
+        }
+        if (query.length() >= MIN_INCREMENTAL_QUERY_LENGTH) {
+            performSearch();
+        }
+    }
+
     private void performSearch() {
+        searchHandler.removeCallbacks(debouncedSearch);
+        int generation = ++searchGeneration;
+        pager = null;
         binding.progressBar.setVisibility(View.VISIBLE);
         binding.emptyView.setVisibility(View.GONE);
         binding.resultsRecyclerView.setVisibility(View.GONE);
@@ -134,71 +262,210 @@ public class SearchActivity extends AppCompatActivity implements ClassInstanceAd
                 binding.progressBar.setVisibility(View.GONE);
                 return;
             }
-            searchByTeacher(teacherName);
+            searchByTeacher(teacherName, generation);
         } else if (searchType.equals("Date")) {
             if (selectedDate == null) {
                 binding.dateEditText.setError("Please select a date");
                 binding.progressBar.setVisibility(View.GONE);
                 return;
             }
-            searchByDate(selectedDate);
+            searchByDate(selectedDate, generation);
         } else if (searchType.equals("Day of Week")) {
             String dayOfWeek = binding.daySpinner.getSelectedItem().toString();
-            searchByDay(dayOfWeek);
+            searchByDay(dayOfWeek, generation);
+        } else if (searchType.equals("Course")) {
+            String query = binding.courseEditText.getText().toString().trim();
+            if (TextUtils.isEmpty(query)) {
+                binding.courseEditText.setError("Please enter a course name, type or description");
+                binding.progressBar.setVisibility(View.GONE);
+                return;
+            }
+            searchByCourse(query, generation);
+        } else if (searchType.equals("Combined")) {
+            ClassSearchCriteria criteria = buildCombinedCriteria();
+            if (criteria == null) {
+                binding.progressBar.setVisibility(View.GONE);
+                return;
+            }
+            searchCombined(criteria, generation);
+        }
+    }
+
+    /**
+     * @return Criteria from the teacher, date range, status, course day, course type and
+     * price inputs, or null after showing an error if none is set or a range is invalid
+     */
+    private ClassSearchCriteria buildCombinedCriteria() {
+        ClassSearchCriteria criteria = new ClassSearchCriteria();
+        boolean any = false;
+
+        String teacherName = binding.teacherEditText.getText().toString().trim();
+        if (!TextUtils.isEmpty(teacherName)) {
+            criteria.setTeacher(teacherName);
+            any = true;
+        }
+
+        // Whole days in the local time zone; the end date is included
+        TimeZone timeZone = TimeZone.getDefault();
+        Date from = null;
+        Date to = null;
+        if (selectedDate != null) {
+            from = new Date(EpochDays.toStartOfDayMillis(
+                    EpochDays.fromMillis(selectedDate.getTime(), timeZone), timeZone));
+        }
+        if (selectedToDate != null) {
+            to = new Date(EpochDays.toStartOfDayMillis(
+                    EpochDays.fromMillis(selectedToDate.getTime(), timeZone) + 1, timeZone) - 1);
+        }
+        if (from != null && to != null && from.after(to)) {
+            binding.toDateEditText.setError("The end date is before the start date");
+            return null;
+        }
+        if (from != null || to != null) {
+            criteria.setDateRange(from, to);
+            any = true;
         }
+
+        int status = binding.statusSpinner.getSelectedItemPosition();
+        if (status > 0) {
+            // Running only or cancelled only
+            criteria.setCancelled(status == 2);
+            any = true;
+        }
+
+        if (binding.courseDaySpinner.getSelectedItemPosition() > 0) {
+            criteria.setDayOfWeek(binding.courseDaySpinner.getSelectedItem().toString());
+            any = true;
+        }
+
+        if (binding.courseTypeSpinner.getSelectedItemPosition() > 0) {
+            criteria.setCourseType(binding.courseTypeSpinner.getSelectedItem().toString());
+            any = true;
+        }
+
+        Double minPrice;
+        Double maxPrice;
+        try {
+            minPrice = parsePrice(binding.minPriceEditText.getText().toString());
+        } catch (NumberFormatException e) {
+            binding.minPriceEditText.setError("Please enter a valid price");
+            return null;
+        }
+        try {
+            maxPrice = parsePrice(binding.maxPriceEditText.getText().toString());
+        } catch (NumberFormatException e) {
+            binding.maxPriceEditText.setError("Please enter a valid price");
+            return null;
+        }
+        if (minPrice != null && maxPrice != null && minPrice > maxPrice) {
+            binding.maxPriceEditText.setError("The maximum is below the minimum");
+            return null;
+        }
+        if (minPrice != null || maxPrice != null) {
+            criteria.setPriceRange(minPrice, maxPrice);
+            any = true;
+        }
+
+        if (!any) {
+            Toast.makeText(this, "Enter at least one search criterion", Toast.LENGTH_SHORT).show();
+            return null;
+        }
+        return criteria;
+    }
+
+    /**
+     * @return The price entered, or null if the field is empty
+     * @throws NumberFormatException if the text is not a price
+     */
+    private static Double parsePrice(String text) {
+        String trimmed = text.trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        double price = Double.parseDouble(trimmed);
+        if (price < 0 || Double.isNaN(price) || Double.isInfinite(price)) {
+            throw new NumberFormatException("Not a price: " + trimmed);
+        }
+        return price;
     }
 
-    private void searchByTeacher(String teacherName) {
-        firebaseService.searchClassInstancesByTeacher(teacherName).observe(this, results -> {
-            binding.progressBar.setVisibility(View.GONE);
-            updateSearchResults(results);
+    private void searchCombined(ClassSearchCriteria criteria, int generation) {
+        firebaseService.searchClassInstances(criteria).observe(this, results -> {
+            if (generation == searchGeneration) {
+                binding.progressBar.setVisibility(View.GONE);
+                updateSearchResults(results);
+            }
         });
     }
 
-    private void searchByDate(Date date) {
-        firebaseService.searchClassInstancesByDate(date).observe(this, results -> {
-            binding.progressBar.setVisibility(View.GONE);
-            updateSearchResults(results);
+    private void searchByTeacher(String teacherName, int generation) {
+        pager = firebaseService.pageClassInstancesByTeacher(teacherName, SEARCH_PAGE_SIZE);
+        loadFirstPage(generation);
+    }
+
+    private void searchByDate(Date date, int generation) {
+        pager = firebaseService.pageClassInstancesByDate(date, SEARCH_PAGE_SIZE);
+        loadFirstPage(generation);
+    }
+
+    private void loadFirstPage(int generation) {
+        pager.loadNextPage().observe(this, results -> {
+            if (generation == searchGeneration) {
+                binding.progressBar.setVisibility(View.GONE);
+                updateSearchResults(results);
+            }
         });
     }
 
-    private void searchByDay(String dayOfWeek) {
-        firebaseService.searchCoursesByDay(dayOfWeek).observe(this, courses -> {
-            binding.progressBar.setVisibility(View.GONE);
-            
-            if (courses != null && !courses.isEmpty()) {
-                // For each course, get its class instances
-                List<String> courseIds = new ArrayList<>();
-                for (Course course : courses) {
-                    courseIds.add(course.getId());
-                }
-                
-                // We need to track when all queries are complete
-                binding.progressBar.setVisibility(View.VISIBLE);
-                final int[] completedQueries = {0};
-                final List<ClassInstance> allClassInstances = new ArrayList<>();
-                
-                for (String courseId : courseIds) {
-                    firebaseService.getClassInstancesForCourse(courseId).observe(this, classInstances -> {
-                        completedQueries[0]++;
-                        
-                        if (classInstances != null && !classInstances.isEmpty()) {
-                            allClassInstances.addAll(classInstances);
-                        }
-                        
-                        // Check if all queries are complete
-                        if (completedQueries[0] == courseIds.size()) {
-                            binding.progressBar.setVisibility(View.GONE);
-                            updateSearchResults(allClassInstances);
-                        }
-                    });
-                }
-            } else {
-                updateSearchResults(new ArrayList<>());
+    private void loadNextPage() {
+        if (pager == null || !pager.hasMore() || pager.isLoading()) {
+            return;
+        }
+        int generation = searchGeneration;
+        pager.loadNextPage().observe(this, results -> {
+            if (generation != searchGeneration || results.isEmpty()) {
+                return;
             }
+            int start = classInstances.size();
+            classInstances.addAll(results);
+            classInstanceAdapter.notifyItemRangeInserted(start, results.size());
         });
     }
 
+    private void searchByDay(String dayOfWeek, int generation) {
+        firebaseService.searchCoursesByDay(dayOfWeek).observe(this,
+                courses -> showClassInstancesOfCourses(courses, generation));
+    }
+
+    private void searchByCourse(String query, int generation) {
+        firebaseService.searchCourses(query, MAX_COURSE_MATCHES).observe(this,
+                courses -> showClassInstancesOfCourses(courses, generation));
+    }
+
+    private void showClassInstancesOfCourses(List<Course> courses, int generation) {
+        if (generation != searchGeneration) {
+            return;
+        }
+        binding.progressBar.setVisibility(View.GONE);
+        
+        if (courses != null && !courses.isEmpty()) {
+            List<String> courseIds = new ArrayList<>();
+            for (Course course : courses) {
+                courseIds.add(course.getId());
+            }
+            
+            binding.progressBar.setVisibility(View.VISIBLE);
+            firebaseService.getClassInstancesForCourses(courseIds).observe(this, classInstances -> {
+                if (generation == searchGeneration) {
+                    binding.progressBar.setVisibility(View.GONE);
+                    updateSearchResults(classInstances);
+                }
+            });
+        } else {
+            updateSearchResults(new ArrayList<>());
+        }
+    }
+
     private void updateSearchResults(List<ClassInstance> results) {
         classInstances.clear();
         
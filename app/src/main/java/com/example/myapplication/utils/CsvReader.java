@@ -0,0 +1,120 @@
+package com.example.myapplication.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader for RFC 4180 CSV: comma separated, optionally double-quoted fields,
+ * with "" as an escaped quote and line breaks allowed inside quotes. Only the current
+ * record is held in memory, so files of any size can be read.
+ */
+public class CsvReader implements Closeable {
+    private final Reader reader;
+    private final StringBuilder field = new StringBuilder();
+    private int pushedBack = -2;
+    private int lineNumber = 1;
+    private int recordLine = 0;
+
+    /**
+     * @param reader Source of CSV text; wrap it in a BufferedReader for speed
+     */
+    public CsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Read the next record
+     * @return Field values, or null at the end of the input
+     * @throws IOException if reading fails or a quoted field is not closed
+     */
+    public List<String> readRecord() throws IOException {
+        int c = read();
+        // Skip blank lines between records
+        while (c == '\r' || c == '\n') {
+            c = read();
+        }
+        if (c == -1) {
+            return null;
+        }
+        recordLine = lineNumber;
+
+        List<String> fields = new ArrayList<>();
+        field.setLength(0);
+        boolean quoted = false;
+        boolean afterQuote = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted field starting on line " + recordLine);
+                }
+                if (c == '"') {
+                    int next = read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        afterQuote = true;
+                        c = next;
+                        continue;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+                afterQuote = false;
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r') {
+                    int next = read();
+                    if (next != '\n') {
+                        unread(next);
+                    }
+                }
+                fields.add(field.toString());
+                return fields;
+            } else if (c == '"' && field.length() == 0 && !afterQuote) {
+                quoted = true;
+            } else {
+                field.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    /**
+     * @return Line on which the last record returned by {@link #readRecord()} started
+     */
+    public int getRecordLine() {
+        return recordLine;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private int read() throws IOException {
+        int c;
+        if (pushedBack != -2) {
+            c = pushedBack;
+            pushedBack = -2;
+        } else {
+            c = reader.read();
+        }
+        if (c == '\n') {
+            lineNumber++;
+        }
+        return c;
+    }
+
+    private void unread(int c) {
+        if (c == '\n') {
+            lineNumber--;
+        }
+        pushedBack = c;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.myapplication.utils;
+
+import java.util.TimeZone;
+
+/**
+ * Calendar-free day arithmetic on epoch days (days since 1970-01-01 in a given time zone).
+ * None of the methods allocate, so they can be used in loops over many dates.
+ */
+public final class EpochDays {
+    public static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static final String[] DAY_NAMES = {
+            "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"
+    };
+
+    private EpochDays() {
+    }
+
+    /**
+     * @return Epoch day containing the given instant in the given time zone
+     */
+    public static long fromMillis(long millis, TimeZone timeZone) {
+        return Math.floorDiv(millis + timeZone.getOffset(millis), MILLIS_PER_DAY);
+    }
+
+    /**
+     * @return Instant of local midnight at the start of the given epoch day
+     */
+    public static long toStartOfDayMillis(long epochDay, TimeZone timeZone) {
+        long localMillis = epochDay * MILLIS_PER_DAY;
+        long estimate = localMillis - timeZone.getRawOffset();
+        return localMillis - timeZone.getOffset(estimate);
+    }
+
+    /**
+     * @return Day of week index, 0 for Monday through 6 for Sunday
+     */
+    public static int dayOfWeek(long epochDay) {
+        // 1970-01-01 was a Thursday
+        return (int) Math.floorMod(epochDay + 3, 7L);
+    }
+
+    /**
+     * @return English day name as stored on courses, e.g. "Monday"
+     */
+    public static String dayName(long epochDay) {
+        return DAY_NAMES[dayOfWeek(epochDay)];
+    }
+
+    /**
+     * @return English day name for a day of week index, 0 for Monday through 6 for Sunday
+     */
+    public static String dayOfWeekName(int dayOfWeek) {
+        return DAY_NAMES[dayOfWeek];
+    }
+
+    /**
+     * Parse an ISO calendar date such as "2024-03-18"
+     * @return Epoch day of the date
+     * @throws IllegalArgumentException if the text is not a valid yyyy-MM-dd date
+     */
+    public static long parseIsoDate(String text) {
+        String value = text == null ? "" : text.trim();
+        if (value.length() != 10 || value.charAt(4) != '-' || value.charAt(7) != '-') {
+            throw new IllegalArgumentException("Expected yyyy-MM-dd but was \"" + text + "\"");
+        }
+        int year = parseDigits(value, 0, 4);
+        int month = parseDigits(value, 5, 7);
+        int day = parseDigits(value, 8, 10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            throw new IllegalArgumentException("Invalid date \"" + text + "\"");
+        }
+
+        // Days from the civil calendar, counting years from March so leap days come last
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int parseDigits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * Parse a course day name, ignoring case
+     * @return Day of week index, 0 for Monday through 6 for Sunday, or -1 if not a day name
+     */
+    public static int parseDayOfWeek(String dayName) {
+        if (dayName != null) {
+            for (int i = 0; i < DAY_NAMES.length; i++) {
+                if (DAY_NAMES[i].equalsIgnoreCase(dayName.trim())) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
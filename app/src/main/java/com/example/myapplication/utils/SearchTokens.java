@@ -0,0 +1,120 @@
+package com.example.myapplication.utils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Normalizes free text into search tokens: case-folded, accent-stripped words.
+ *
+ * Documents store the prefixes of their words in an array field, so a query word can be
+ * matched with a single array-contains filter, e.g. "smi" finds "Anna Smith".
+ */
+public final class SearchTokens {
+    /**
+     * Longest prefix stored per word; longer query words are matched on this prefix and
+     * then checked in full
+     */
+    public static final int MAX_PREFIX_LENGTH = 15;
+
+    private SearchTokens() {
+    }
+
+    /**
+     * @return Text in lower case with accents removed, so accented and plain spellings match
+     */
+    public static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                folded.append(c);
+            }
+        }
+        return folded.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return Distinct folded words of the text, in order; anything other than letters
+     *         and digits separates words
+     */
+    public static List<String> words(String text) {
+        String folded = fold(text);
+        Set<String> words = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean wordChar = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return new ArrayList<>(words);
+    }
+
+    /**
+     * @return Distinct prefixes of every word, up to {@link #MAX_PREFIX_LENGTH} characters,
+     *         for storing in an index field
+     */
+    public static List<String> prefixes(String text) {
+        Set<String> prefixes = new LinkedHashSet<>();
+        for (String word : words(text)) {
+            int longest = Math.min(word.length(), MAX_PREFIX_LENGTH);
+            for (int length = 1; length <= longest; length++) {
+                prefixes.add(word.substring(0, length));
+            }
+        }
+        return new ArrayList<>(prefixes);
+    }
+
+    /**
+     * @return Index token to look up for a query: its longest word, as the most selective,
+     *         cut to the stored prefix length; null if the query has no words
+     */
+    public static String lookupToken(List<String> queryWords) {
+        String longest = null;
+        for (String word : queryWords) {
+            if (longest == null || word.length() > longest.length()) {
+                longest = word;
+            }
+        }
+        return longest == null ? null : indexToken(longest);
+    }
+
+    /**
+     * @return Stored token matching a folded query word, i.e. the word cut to
+     *         {@link #MAX_PREFIX_LENGTH} characters
+     */
+    public static String indexToken(String word) {
+        return word.length() > MAX_PREFIX_LENGTH ? word.substring(0, MAX_PREFIX_LENGTH) : word;
+    }
+
+    /**
+     * @return true if every query word is a prefix of some word of the text
+     */
+    public static boolean matches(List<String> queryWords, String text) {
+        List<String> words = words(text);
+        for (String queryWord : queryWords) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(queryWord)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
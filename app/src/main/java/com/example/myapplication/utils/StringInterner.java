@@ -0,0 +1,36 @@
+package com.example.myapplication.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Weak string interner for values that repeat across many cached documents,
+ * such as course types and teacher names. Pooled strings are released once no
+ * cached object refers to them any more.
+ */
+public final class StringInterner {
+    private static final WeakHashMap<String, WeakReference<String>> POOL = new WeakHashMap<>();
+
+    private StringInterner() {
+    }
+
+    /**
+     * Get the canonical instance of a string
+     * @param value String to intern, may be null
+     * @return Pooled instance equal to value, or null
+     */
+    public static String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        synchronized (POOL) {
+            WeakReference<String> reference = POOL.get(value);
+            String pooled = reference != null ? reference.get() : null;
+            if (pooled == null) {
+                POOL.put(value, new WeakReference<>(value));
+                pooled = value;
+            }
+            return pooled;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.myapplication.firebase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks expiry, weight-bounded eviction and frequency-based admission of the cache,
+ * using a manual clock.
+ */
+public class EntityCacheTest {
+
+    private static final class ManualClockCache<V> extends EntityCache<String, V> {
+        long now = 0;
+
+        ManualClockCache(long maxWeight, long defaultTtlMillis, Weigher<V> weigher) {
+            super(maxWeight, defaultTtlMillis, 16, weigher);
+        }
+
+        @Override
+        long now() {
+            return now;
+        }
+    }
+
+    @Test
+    public void get_expiresEntriesAfterTheirTimeToLive() {
+        ManualClockCache<String> cache = new ManualClockCache<>(10, 100, null);
+        cache.put("a", "value");
+        cache.put("b", "value", 500);
+
+        cache.now = 99;
+        assertEquals("value", cache.get("a"));
+        assertTrue(cache.containsKey("a"));
+
+        cache.now = 100;
+        assertNull(cache.get("a"));
+        assertFalse(cache.containsKey("a"));
+        assertEquals("value", cache.get("b"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void values_skipsExpiredEntries() {
+        ManualClockCache<String> cache = new ManualClockCache<>(10, 100, null);
+        cache.put("a", "first");
+        cache.now = 50;
+        cache.put("b", "second");
+
+        cache.now = 120;
+
+        assertEquals(1, cache.values().size());
+        assertEquals("second", cache.values().get(0));
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedToStayWithinWeight() {
+        ManualClockCache<String> cache = new ManualClockCache<>(10, 1000, String::length);
+        assertTrue(cache.put("a", "aaaa"));
+        assertTrue(cache.put("b", "bbbb"));
+        cache.get("a");
+
+        assertTrue(cache.put("c", "cccc"));
+
+        assertEquals("aaaa", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("cccc", cache.get("c"));
+        assertEquals(8, cache.weight());
+    }
+
+    @Test
+    public void put_rejectsValueHeavierThanTheCache() {
+        ManualClockCache<String> cache = new ManualClockCache<>(10, 1000, String::length);
+        cache.put("a", "aaaa");
+
+        assertFalse(cache.put("b", "bbbbbbbbbbb"));
+
+        assertNull(cache.get("b"));
+        assertEquals("aaaa", cache.get("a"));
+    }
+
+    @Test
+    public void put_makesRoomByDroppingExpiredEntriesFirst() {
+        ManualClockCache<String> cache = new ManualClockCache<>(2, 100, null);
+        cache.put("hot", "value", 1000);
+        cache.put("stale", "value");
+        for (int i = 0; i < 5; i++) {
+            cache.get("hot");
+        }
+
+        cache.now = 200;
+
+        assertTrue(cache.put("new", "value"));
+        assertEquals("value", cache.get("hot"));
+        assertEquals("value", cache.get("new"));
+    }
+
+    @Test
+    public void put_doesNotAdmitColdKeyOverFrequentlyReadOnes() {
+        ManualClockCache<String> cache = new ManualClockCache<>(2, 1000, null);
+        cache.put("hot-1", "value");
+        cache.put("hot-2", "value");
+        for (int i = 0; i < 5; i++) {
+            cache.get("hot-1");
+            cache.get("hot-2");
+        }
+
+        assertFalse(cache.put("cold", "value"));
+
+        assertFalse(cache.containsKey("cold"));
+        assertTrue(cache.containsKey("hot-1"));
+        assertTrue(cache.containsKey("hot-2"));
+    }
+
+    @Test
+    public void put_alwaysAdmitsUpdatesOfResidentKeys() {
+        ManualClockCache<String> cache = new ManualClockCache<>(8, 1000, String::length);
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        for (int i = 0; i < 5; i++) {
+            cache.get("b");
+        }
+
+        assertTrue(cache.put("a", "aaaaaa"));
+
+        assertEquals("aaaaaa", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(6, cache.weight());
+    }
+
+    @Test
+    public void trimTo_dropsLeastRecentlyUsedDownToTheFraction() {
+        ManualClockCache<String> cache = new ManualClockCache<>(4, 1000, null);
+        cache.put("a", "value");
+        cache.put("b", "value");
+        cache.put("c", "value");
+        cache.put("d", "value");
+        cache.get("a");
+
+        cache.trimTo(0.5f);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.containsKey("a"));
+        assertTrue(cache.containsKey("d"));
+    }
+}
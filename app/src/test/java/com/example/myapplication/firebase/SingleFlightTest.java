@@ -0,0 +1,101 @@
+package com.example.myapplication.firebase;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+import androidx.lifecycle.LiveData;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that concurrent loads of a key are coalesced and that every caller gets its
+ * own result.
+ */
+public class SingleFlightTest {
+
+    @Rule
+    public InstantTaskExecutorRule instantTaskExecutor = new InstantTaskExecutorRule();
+
+    private final List<SingleFlight.Completion<List<String>>> started = new ArrayList<>();
+
+    @Test
+    public void execute_coalescesCallsWhileALoadIsInFlight() {
+        SingleFlight<List<String>> flight = new SingleFlight<>();
+
+        LiveData<List<String>> first = flight.execute("a", started::add);
+        LiveData<List<String>> second = flight.execute("a", started::add);
+        flight.execute("b", started::add);
+
+        assertEquals(2, started.size());
+        assertEquals(2, flight.loadCount());
+        assertEquals(1, flight.coalescedCount());
+        assertEquals(2, flight.inFlightCount());
+        assertNotSame(first, second);
+        assertNull(first.getValue());
+    }
+
+    @Test
+    public void execute_sharesImmutableValuesWithoutACopier() {
+        SingleFlight<List<String>> flight = new SingleFlight<>();
+        LiveData<List<String>> first = flight.execute("a", started::add);
+        LiveData<List<String>> second = flight.execute("a", started::add);
+
+        List<String> loaded = Arrays.asList("x", "y");
+        started.get(0).complete(loaded);
+
+        assertSame(loaded, first.getValue());
+        assertSame(loaded, second.getValue());
+    }
+
+    @Test
+    public void execute_givesEveryJoinedCallerItsOwnCopy() {
+        SingleFlight<List<String>> flight = new SingleFlight<>(ArrayList::new);
+        LiveData<List<String>> first = flight.execute("a", started::add);
+        LiveData<List<String>> second = flight.execute("a", started::add);
+        LiveData<List<String>> third = flight.execute("a", started::add);
+
+        List<String> loaded = new ArrayList<>(Arrays.asList("x", "y"));
+        started.get(0).complete(loaded);
+
+        assertSame(loaded, first.getValue());
+        assertEquals(loaded, second.getValue());
+        assertEquals(loaded, third.getValue());
+        assertNotSame(loaded, second.getValue());
+        assertNotSame(second.getValue(), third.getValue());
+
+        second.getValue().add("z");
+        assertEquals(2, first.getValue().size());
+        assertEquals(2, third.getValue().size());
+    }
+
+    @Test
+    public void execute_doesNotCopyAMissingValue() {
+        SingleFlight<List<String>> flight = new SingleFlight<>(ArrayList::new);
+        flight.execute("a", started::add);
+        LiveData<List<String>> second = flight.execute("a", started::add);
+
+        started.get(0).complete(null);
+
+        assertNull(second.getValue());
+    }
+
+    @Test
+    public void execute_startsAFreshLoadOnceTheLastOneCompleted() {
+        SingleFlight<List<String>> flight = new SingleFlight<>();
+        flight.execute("a", started::add);
+        started.get(0).complete(Arrays.asList("old"));
+
+        assertEquals(0, flight.inFlightCount());
+
+        LiveData<List<String>> later = flight.execute("a", started::add);
+
+        assertEquals(2, started.size());
+        assertEquals(2, flight.loadCount());
+        assertNull(later.getValue());
+    }
+}
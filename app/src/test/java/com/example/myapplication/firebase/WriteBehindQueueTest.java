@@ -0,0 +1,54 @@
+package com.example.myapplication.firebase;
+
+import com.google.firebase.firestore.FieldValue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which partial updates the write-behind queue may fold into a pending one.
+ */
+public class WriteBehindQueueTest {
+
+    @Test
+    public void canMerge_foldsPlainValuesIntoAPendingUpdate() {
+        Map<String, Object> pending = fields("name", "Flow", "capacity", 20);
+
+        assertTrue(WriteBehindQueue.canMerge(pending, fields("name", "Slow Flow")));
+        assertTrue(WriteBehindQueue.canMerge(pending, fields("price", 12.5)));
+    }
+
+    @Test
+    public void canMerge_neverFoldsIntoAPendingSetOrDelete() {
+        assertFalse(WriteBehindQueue.canMerge(null, fields("name", "Flow")));
+    }
+
+    @Test
+    public void canMerge_keepsTransformsOnTheSameFieldInOrder() {
+        Map<String, Object> pendingTransform = fields("classInstanceIds", FieldValue.arrayUnion("a"));
+        Map<String, Object> pendingValue = fields("capacity", 20);
+
+        assertFalse(WriteBehindQueue.canMerge(pendingTransform, fields("classInstanceIds", FieldValue.arrayRemove("a"))));
+        assertFalse(WriteBehindQueue.canMerge(pendingTransform, fields("classInstanceIds", null)));
+        assertFalse(WriteBehindQueue.canMerge(pendingValue, fields("capacity", FieldValue.increment(1))));
+    }
+
+    @Test
+    public void canMerge_allowsTransformsOnOtherFields() {
+        Map<String, Object> pending = fields("name", "Flow");
+
+        assertTrue(WriteBehindQueue.canMerge(pending, fields("capacity", FieldValue.increment(1))));
+    }
+
+    private static Map<String, Object> fields(Object... keysAndValues) {
+        Map<String, Object> fields = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            fields.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return fields;
+    }
+}
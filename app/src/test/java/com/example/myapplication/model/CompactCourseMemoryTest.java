@@ -0,0 +1,123 @@
+package com.example.myapplication.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the compact cache representations round-trip and share the strings
+ * that repeat across many documents instead of retaining a copy per course.
+ */
+public class CompactCourseMemoryTest {
+    private static final String[] DAYS = {
+            "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"
+    };
+    private static final String[] TYPES = {"Flow Yoga", "Aerial Yoga", "Family Yoga"};
+
+    @Test
+    public void compactCourse_roundTrips() {
+        Course course = createCourse(42);
+        Course copy = CompactCourse.from(course).toCourse();
+
+        assertEquals(course.getId(), copy.getId());
+        assertEquals(course.getName(), copy.getName());
+        assertEquals(course.getType(), copy.getType());
+        assertEquals(course.getDescription(), copy.getDescription());
+        assertEquals(course.getDayOfWeek(), copy.getDayOfWeek());
+        assertEquals(course.getTime(), copy.getTime());
+        assertEquals(course.getCapacity(), copy.getCapacity());
+        assertEquals(course.getDuration(), copy.getDuration());
+        assertEquals(course.getPrice(), copy.getPrice(), 0.0);
+        assertEquals(course.getClassInstanceIds(), copy.getClassInstanceIds());
+        assertNotSame(course.getClassInstanceIds(), copy.getClassInstanceIds());
+    }
+
+    @Test
+    public void compactCourse_keepsNonCanonicalValues() {
+        Course course = createCourse(1);
+        course.setDayOfWeek("monday");
+        course.setTime("18:30");
+
+        CompactCourse compact = CompactCourse.from(course);
+
+        assertEquals("monday", compact.getDayOfWeek());
+        assertEquals("18:30", compact.getTime());
+        assertEquals(-1, compact.getStartMinutes());
+    }
+
+    @Test
+    public void compactCourse_parsesStartMinutes() {
+        Course course = createCourse(1);
+        course.setTime("12:05 AM");
+        assertEquals(5, CompactCourse.from(course).getStartMinutes());
+
+        course.setTime("6:30 PM");
+        assertEquals(18 * 60 + 30, CompactCourse.from(course).getStartMinutes());
+        assertEquals("6:30 PM", CompactCourse.from(course).getTime());
+    }
+
+    @Test
+    public void compactClassInstance_roundTrips() {
+        ClassInstance classInstance = new ClassInstance("course-1", new Date(1700000000000L), "Alice", "Bring a mat");
+        classInstance.setId("instance-1");
+        classInstance.setCancelled(true);
+
+        ClassInstance copy = CompactClassInstance.from(classInstance).toClassInstance();
+
+        assertEquals(classInstance.getId(), copy.getId());
+        assertEquals(classInstance.getCourseId(), copy.getCourseId());
+        assertEquals(classInstance.getDate(), copy.getDate());
+        assertEquals(classInstance.getTeacherName(), copy.getTeacherName());
+        assertEquals(classInstance.getComments(), copy.getComments());
+        assertEquals(classInstance.isCancelled(), copy.isCancelled());
+
+        ClassInstance undated = new ClassInstance("course-1", null, "Alice", null);
+        assertNull(CompactClassInstance.from(undated).toClassInstance().getDate());
+    }
+
+    @Test
+    public void compactCourses_shareRepeatedStrings() {
+        // Deserialization allocates a separate copy of every string, as createCourse does
+        Course first = createCourse(0);
+        Course second = createCourse(TYPES.length * DAYS.length);
+        assertEquals(first.getType(), second.getType());
+        assertNotSame(first.getType(), second.getType());
+        assertNotSame(first.getDayOfWeek(), second.getDayOfWeek());
+
+        CompactCourse firstCompact = CompactCourse.from(first);
+        CompactCourse secondCompact = CompactCourse.from(second);
+
+        assertSame(firstCompact.getType(), secondCompact.getType());
+        assertSame(firstCompact.getDayOfWeek(), secondCompact.getDayOfWeek());
+        assertSame(firstCompact.toCourse().getType(), secondCompact.toCourse().getType());
+    }
+
+    @Test
+    public void compactCourse_storesCanonicalTimeWithoutItsString() {
+        Course canonical = createCourse(1);
+        Course nonCanonical = createCourse(1);
+        nonCanonical.setTime("18:00");
+
+        // Same fields, except that only the non-canonical time is kept as a string
+        assertTrue(CompactCourse.from(nonCanonical).estimateRetainedBytes()
+                > CompactCourse.from(canonical).estimateRetainedBytes());
+        assertEquals("18:00", CompactCourse.from(nonCanonical).toCourse().getTime());
+        assertEquals(canonical.getTime(), CompactCourse.from(canonical).toCourse().getTime());
+    }
+
+    private static Course createCourse(int i) {
+        Course course = new Course("Course " + i, new String(TYPES[i % TYPES.length]),
+                "Description for course " + i, new String(DAYS[i % DAYS.length]),
+                new String((i % 12 + 1) + ":00 PM"), 20, 60, 10.0);
+        course.setId("course-" + i);
+        List<String> classInstanceIds = new ArrayList<>();
+        classInstanceIds.add("instance-" + i + "-a");
+        classInstanceIds.add("instance-" + i + "-b");
+        course.setClassInstanceIds(classInstanceIds);
+        return course;
+    }
+}
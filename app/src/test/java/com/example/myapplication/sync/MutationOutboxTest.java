@@ -0,0 +1,101 @@
+package com.example.myapplication.sync;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how a new outbox command is merged into the pending command for the same
+ * document.
+ */
+public class MutationOutboxTest {
+
+    @Test
+    public void merge_setOrDeleteReplacesThePendingCommand() throws JSONException {
+        JSONObject set = new JSONObject().put("name", "Flow");
+
+        assertSame(set, MutationOutbox.merge(MutationOutbox.OP_UPDATE, "{\"name\":\"Old\"}",
+                MutationOutbox.OP_SET, set));
+        assertNull(MutationOutbox.merge(MutationOutbox.OP_SET, "{\"name\":\"Old\"}",
+                MutationOutbox.OP_DELETE, null));
+    }
+
+    @Test
+    public void merge_foldsUpdateIntoPendingUpdate() throws JSONException {
+        JSONObject merged = MutationOutbox.merge(MutationOutbox.OP_UPDATE,
+                "{\"name\":\"Old\",\"capacity\":20}", MutationOutbox.OP_UPDATE,
+                new JSONObject().put("name", "Flow").put("price", 12.5));
+
+        assertEquals("Flow", merged.getString("name"));
+        assertEquals(20, merged.getInt("capacity"));
+        assertEquals(12.5, merged.getDouble("price"), 0.0);
+    }
+
+    @Test
+    public void merge_foldsUpdateIntoPendingSet() throws JSONException {
+        JSONObject merged = MutationOutbox.merge(MutationOutbox.OP_SET,
+                "{\"name\":\"Old\",\"capacity\":20}", MutationOutbox.OP_UPDATE,
+                new JSONObject().put("capacity", 25));
+
+        assertEquals("Old", merged.getString("name"));
+        assertEquals(25, merged.getInt("capacity"));
+    }
+
+    @Test
+    public void merge_cannotFoldUpdateIntoPendingDelete() throws JSONException {
+        assertNull(MutationOutbox.merge(MutationOutbox.OP_DELETE, null, MutationOutbox.OP_UPDATE,
+                new JSONObject().put("name", "Flow")));
+    }
+
+    @Test
+    public void merge_cannotFoldNestedFieldPathIntoPendingSet() throws JSONException {
+        assertNull(MutationOutbox.merge(MutationOutbox.OP_SET, "{\"name\":\"Old\"}", MutationOutbox.OP_UPDATE,
+                new JSONObject().put("additionalFields.level", "Beginner")));
+    }
+
+    @Test
+    public void merge_appliesArrayUnionToPendingSetArray() throws JSONException {
+        JSONObject merged = MutationOutbox.merge(MutationOutbox.OP_SET,
+                "{\"classInstanceIds\":[\"a\",\"b\"]}", MutationOutbox.OP_UPDATE,
+                new JSONObject().put("classInstanceIds", arrayUnion("b", "c")));
+
+        assertEquals(new JSONArray().put("a").put("b").put("c").toString(),
+                merged.getJSONArray("classInstanceIds").toString());
+    }
+
+    @Test
+    public void merge_fillsMissingSetFieldFromArrayUnion() throws JSONException {
+        JSONObject merged = MutationOutbox.merge(MutationOutbox.OP_SET, "{\"name\":\"Flow\"}",
+                MutationOutbox.OP_UPDATE, new JSONObject().put("classInstanceIds", arrayUnion("a")));
+
+        assertEquals("[\"a\"]", merged.getJSONArray("classInstanceIds").toString());
+    }
+
+    @Test
+    public void merge_combinesPendingArrayUnions() throws JSONException {
+        JSONObject merged = MutationOutbox.merge(MutationOutbox.OP_UPDATE,
+                new JSONObject().put("classInstanceIds", arrayUnion("a")).toString(),
+                MutationOutbox.OP_UPDATE, new JSONObject().put("classInstanceIds", arrayUnion("a", "b")));
+
+        JSONArray values = merged.getJSONObject("classInstanceIds")
+                .getJSONArray(MutationOutbox.ARRAY_UNION_MARKER);
+        assertEquals("[\"a\",\"b\"]", values.toString());
+    }
+
+    @Test
+    public void merge_cannotFoldArrayUnionIntoPendingScalar() throws JSONException {
+        assertNull(MutationOutbox.merge(MutationOutbox.OP_UPDATE, "{\"classInstanceIds\":\"a\"}",
+                MutationOutbox.OP_UPDATE, new JSONObject().put("classInstanceIds", arrayUnion("b"))));
+    }
+
+    private static JSONObject arrayUnion(String... values) throws JSONException {
+        JSONArray array = new JSONArray();
+        for (String value : values) {
+            array.put(value);
+        }
+        return new JSONObject().put(MutationOutbox.ARRAY_UNION_MARKER, array);
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.myapplication.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks RFC 4180 parsing: quoting, escaped quotes, line endings and line numbers.
+ */
+public class CsvReaderTest {
+
+    @Test
+    public void readRecord_splitsPlainFields() throws IOException {
+        CsvReader reader = reader("record,name,price\ncourse,Flow,12.5\n");
+
+        assertEquals(Arrays.asList("record", "name", "price"), reader.readRecord());
+        assertEquals(Arrays.asList("course", "Flow", "12.5"), reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_keepsEmptyFields() throws IOException {
+        CsvReader reader = reader(",a,,\n");
+
+        assertEquals(Arrays.asList("", "a", "", ""), reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_unquotesFieldsAndEscapedQuotes() throws IOException {
+        CsvReader reader = reader("\"Flow, slow\",\"Say \"\"om\"\"\",\"\"\n");
+
+        assertEquals(Arrays.asList("Flow, slow", "Say \"om\"", ""), reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_keepsQuotesInsideUnquotedFields() throws IOException {
+        CsvReader reader = reader("5\" mat,a\"b\n");
+
+        assertEquals(Arrays.asList("5\" mat", "a\"b"), reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_acceptsCrLfAndBareCrLineEndings() throws IOException {
+        CsvReader reader = reader("a,b\r\nc,d\re,f");
+
+        assertEquals(Arrays.asList("a", "b"), reader.readRecord());
+        assertEquals(Arrays.asList("c", "d"), reader.readRecord());
+        assertEquals(Arrays.asList("e", "f"), reader.readRecord());
+        assertNull(reader.readRecord());
+    }
+
+    @Test
+    public void readRecord_keepsLineBreaksInsideQuotes() throws IOException {
+        CsvReader reader = reader("class,\"Bring a mat\r\nand water\nplease\",x\r\nnext\r\n");
+
+        assertEquals(Arrays.asList("class", "Bring a mat\r\nand water\nplease", "x"), reader.readRecord());
+        assertEquals(Collections.singletonList("next"), reader.readRecord());
+        assertEquals(4, reader.getRecordLine());
+    }
+
+    @Test
+    public void readRecord_skipsBlankLinesAndCountsThem() throws IOException {
+        CsvReader reader = reader("a\n\r\n\nb\n");
+
+        assertEquals(Collections.singletonList("a"), reader.readRecord());
+        assertEquals(1, reader.getRecordLine());
+        assertEquals(Collections.singletonList("b"), reader.readRecord());
+        assertEquals(4, reader.getRecordLine());
+    }
+
+    @Test
+    public void readRecord_rejectsUnterminatedQuotedField() throws IOException {
+        CsvReader reader = reader("ok\n\"never closed,\nstill open");
+        reader.readRecord();
+
+        try {
+            reader.readRecord();
+            fail("Accepted an unterminated quoted field");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("line 2"));
+        }
+    }
+
+    private static CsvReader reader(String text) {
+        return new CsvReader(new StringReader(text));
+    }
+}
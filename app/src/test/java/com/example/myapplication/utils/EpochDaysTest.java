@@ -0,0 +1,88 @@
+package com.example.myapplication.utils;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks epoch day arithmetic against java.util.Calendar, including daylight saving
+ * transitions.
+ */
+public class EpochDaysTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final TimeZone LONDON = TimeZone.getTimeZone("Europe/London");
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    @Test
+    public void parseIsoDate_countsDaysFromTheEpoch() {
+        assertEquals(0, EpochDays.parseIsoDate("1970-01-01"));
+        assertEquals(-1, EpochDays.parseIsoDate("1969-12-31"));
+        assertEquals(19800, EpochDays.parseIsoDate("2024-03-18"));
+        assertEquals(EpochDays.parseIsoDate("2024-02-28") + 2, EpochDays.parseIsoDate("2024-03-01"));
+        assertEquals(EpochDays.parseIsoDate("2023-02-28") + 1, EpochDays.parseIsoDate("2023-03-01"));
+    }
+
+    @Test
+    public void parseIsoDate_rejectsInvalidDates() {
+        String[] invalid = {"2024-3-18", "2024/03/18", "2023-02-29", "1900-02-29", "2024-13-01", "2024-04-31", "", null};
+        for (String text : invalid) {
+            try {
+                EpochDays.parseIsoDate(text);
+                fail("Accepted " + text);
+            } catch (IllegalArgumentException expected) {
+                // Rejected as it should be
+            }
+        }
+        assertEquals(EpochDays.parseIsoDate("2000-02-28") + 1, EpochDays.parseIsoDate("2000-02-29"));
+    }
+
+    @Test
+    public void dayOfWeek_matchesTheCalendar() {
+        // 1970-01-01 was a Thursday, 2024-03-18 a Monday
+        assertEquals(3, EpochDays.dayOfWeek(0));
+        assertEquals("Monday", EpochDays.dayName(EpochDays.parseIsoDate("2024-03-18")));
+        assertEquals("Wednesday", EpochDays.dayName(-1));
+        assertEquals("Sunday", EpochDays.dayOfWeekName(6));
+    }
+
+    @Test
+    public void parseDayOfWeek_ignoresCaseAndSpaces() {
+        assertEquals(0, EpochDays.parseDayOfWeek("Monday"));
+        assertEquals(6, EpochDays.parseDayOfWeek(" sunday "));
+        assertEquals(-1, EpochDays.parseDayOfWeek("Mon"));
+        assertEquals(-1, EpochDays.parseDayOfWeek(null));
+    }
+
+    @Test
+    public void fromMillis_usesTheLocalDate() {
+        Calendar calendar = Calendar.getInstance(NEW_YORK);
+        calendar.clear();
+        calendar.set(2024, Calendar.MARCH, 18, 23, 30);
+
+        long epochDay = EpochDays.fromMillis(calendar.getTimeInMillis(), NEW_YORK);
+
+        assertEquals(EpochDays.parseIsoDate("2024-03-18"), epochDay);
+        assertEquals(epochDay + 1, EpochDays.fromMillis(calendar.getTimeInMillis(), UTC));
+    }
+
+    @Test
+    public void toStartOfDayMillis_returnsLocalMidnightAcrossDaylightSavingChanges() {
+        String[] dates = {"2024-03-31", "2024-04-01", "2024-10-26", "2024-10-27", "2024-10-28"};
+        for (String date : dates) {
+            long epochDay = EpochDays.parseIsoDate(date);
+            Calendar midnight = Calendar.getInstance(LONDON);
+            midnight.clear();
+            midnight.set(Integer.parseInt(date.substring(0, 4)), Integer.parseInt(date.substring(5, 7)) - 1,
+                    Integer.parseInt(date.substring(8, 10)));
+
+            long start = EpochDays.toStartOfDayMillis(epochDay, LONDON);
+
+            assertEquals(date, midnight.getTimeInMillis(), start);
+            assertEquals(date, epochDay, EpochDays.fromMillis(start, LONDON));
+            assertEquals(date, epochDay - 1, EpochDays.fromMillis(start - 1, LONDON));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.myapplication.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks normalization of search text into words, stored prefixes and lookup tokens.
+ */
+public class SearchTokensTest {
+
+    @Test
+    public void fold_lowerCasesAndStripsAccents() {
+        assertEquals("zoe lopez", SearchTokens.fold("Zo\u00eb L\u00f3pez"));
+        assertEquals("", SearchTokens.fold(null));
+    }
+
+    @Test
+    public void words_splitsOnNonAlphanumericsAndDropsDuplicates() {
+        assertEquals(Arrays.asList("anna", "smith", "jones"), SearchTokens.words("  Anna Smith-Jones, anna "));
+        assertEquals(Arrays.asList("yoga", "101"), SearchTokens.words("Yoga 101"));
+        assertTrue(SearchTokens.words(" - ").isEmpty());
+    }
+
+    @Test
+    public void prefixes_coversEveryWordUpToTheMaximumLength() {
+        assertEquals(Arrays.asList("a", "an", "al", "ali"), SearchTokens.prefixes("An Ali"));
+
+        List<String> prefixes = SearchTokens.prefixes("Abcdefghijklmnopqrst");
+        assertEquals(SearchTokens.MAX_PREFIX_LENGTH, prefixes.size());
+        assertEquals("abcdefghijklmno", prefixes.get(prefixes.size() - 1));
+    }
+
+    @Test
+    public void lookupToken_usesTheLongestWordCutToThePrefixLength() {
+        assertEquals("smith", SearchTokens.lookupToken(Arrays.asList("an", "smith")));
+        assertEquals("abcdefghijklmno", SearchTokens.lookupToken(Collections.singletonList("abcdefghijklmnopq")));
+        assertNull(SearchTokens.lookupToken(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void matches_requiresEveryQueryWordToStartAWord() {
+        assertTrue(SearchTokens.matches(SearchTokens.words("an sm"), "Anna Smith"));
+        assertTrue(SearchTokens.matches(SearchTokens.words("SMITH"), "Anna Smith"));
+        assertTrue(SearchTokens.matches(SearchTokens.words("zoe"), "Zo\u00eb L\u00f3pez"));
+        assertFalse(SearchTokens.matches(SearchTokens.words("mith"), "Anna Smith"));
+        assertFalse(SearchTokens.matches(SearchTokens.words("anna jones"), "Anna Smith"));
+    }
+
+    @Test
+    public void storedPrefixes_containTheLookupTokenOfEveryMatchingQuery() {
+        String teacher = "Maximiliana Featherstonehaugh";
+        List<String> stored = SearchTokens.prefixes(teacher);
+        for (String query : new String[]{"max", "featherstonehaugh", "maximiliana feath"}) {
+            List<String> words = SearchTokens.words(query);
+            assertTrue(query, SearchTokens.matches(words, teacher));
+            assertTrue(query, stored.contains(SearchTokens.lookupToken(words)));
+        }
+    }
+}